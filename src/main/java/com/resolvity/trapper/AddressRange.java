@@ -0,0 +1,128 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * <code>AddressRange</code> is a set of IP addresses given either as a CIDR block
+ * ("10.0.112.0/24") or in our older wildcard form ("10.0.112.%"), where everything
+ * before the % must prefix the dotted address.
+ * @author justin.good
+ */
+public class AddressRange
+{
+    private final String spec;
+    private final String prefix; // wildcard form only
+    private final byte[] network; // CIDR form only
+    private final int bits;
+
+    /**
+     * @param aSpec CIDR block or % wildcard
+     */
+    private AddressRange(String aSpec, String aPrefix, byte[] aNetwork, int aBits)
+    {
+        spec = aSpec;
+        prefix = aPrefix;
+        network = aNetwork;
+        bits = aBits;
+    }
+
+    /**
+     * @param aSpec sender specification from the properties file
+     * @return true if aSpec is a range rather than a single host
+     */
+    public static boolean isRange(String aSpec)
+    {
+        return aSpec.indexOf('%') >= 0 || aSpec.indexOf('/') >= 0;
+    }
+
+    /**
+     * @param aSpec CIDR block or % wildcard
+     * @return AddressRange
+     * @throws IllegalArgumentException if aSpec cannot be parsed
+     */
+    public static AddressRange parse(String aSpec)
+    {
+        String spec = aSpec.trim();
+        int pct = spec.indexOf('%');
+        if (pct >= 0)
+        {
+            return new AddressRange(spec, spec.substring(0, pct), null, 0);
+        }
+
+        int slash = spec.indexOf('/');
+        if (slash < 0)
+        {
+            throw new IllegalArgumentException("not a range: " + spec);
+        }
+
+        try
+        {
+            byte[] network = InetAddress.getByName(spec.substring(0, slash)).getAddress();
+            int bits = Integer.parseInt(spec.substring(slash + 1).trim());
+            if (bits < 0 || bits > network.length * 8)
+            {
+                throw new IllegalArgumentException("bad prefix length: " + spec);
+            }
+            return new AddressRange(spec, null, network, bits);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("bad prefix length: " + spec, ex);
+        }
+        catch (UnknownHostException ex)
+        {
+            throw new IllegalArgumentException("bad network: " + spec, ex);
+        }
+    }
+
+    /**
+     * @param aInet InetAddress
+     * @return true if aInet falls in this range
+     */
+    public boolean contains(InetAddress aInet)
+    {
+        if (prefix != null)
+        {
+            return aInet.getHostAddress().startsWith(prefix);
+        }
+        return contains(aInet.getAddress());
+    }
+
+    /**
+     * @param aAddress raw address bytes, 4 for IPv4 or 16 for IPv6
+     * @return true if aAddress falls in this CIDR block
+     */
+    private boolean contains(byte[] aAddress)
+    {
+        if (aAddress.length != network.length)
+        {
+            return false;
+        }
+
+        int whole = bits / 8;
+        for (int i = 0; i < whole; ++i)
+        {
+            if (aAddress[i] != network[i])
+            {
+                return false;
+            }
+        }
+
+        int rest = bits % 8;
+        if (rest == 0)
+        {
+            return true;
+        }
+        int mask = (0xff << (8 - rest)) & 0xff;
+        return (aAddress[whole] & mask) == (network[whole] & mask);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+
+/**
+ * <code>AsyncResponder</code> hands every PDU to its delegate on a thread of its own, so
+ * the dispatcher pool is never held up by the DNS lookups, primary checks and SMTP
+ * conversations the delegate performs. On JVMs with virtual threads each trap gets a
+ * virtual thread; otherwise a bounded pool of daemon threads with a bounded queue is
+ * used, and a trap arriving when both are full runs on the dispatcher thread itself,
+ * which slows intake rather than growing threads without limit (such traps are counted
+ * at liveness /execution). Either way the number of concurrent SMTP conversations is
+ * capped per host by TrapForwarder, not here.
+ * @author justin.good
+ */
+public class AsyncResponder implements CommandResponder, TrapperAlive.Page
+{
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_QUEUE = 1000;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final CommandResponder delegate;
+    private final int threads;
+    private final int queueSize;
+    private final AtomicLong overflows = new AtomicLong();
+    private final ExecutorService executor;
+
+    /**
+     * @param aDelegate CommandResponder which does the actual work
+     */
+    public AsyncResponder(CommandResponder aDelegate)
+    {
+        this(aDelegate, DEFAULT_THREADS, DEFAULT_QUEUE);
+    }
+
+    /**
+     * @param aDelegate CommandResponder which does the actual work
+     * @param aThreads most threads, without virtual threads
+     * @param aQueue most traps waiting for a thread, without virtual threads
+     */
+    public AsyncResponder(CommandResponder aDelegate, int aThreads, int aQueue)
+    {
+        delegate = aDelegate;
+        threads = Math.max(1, aThreads);
+        queueSize = Math.max(1, aQueue);
+        executor = createExecutor();
+    }
+
+    /** {@inheritDoc} */
+    public void processPdu(final CommandResponderEvent aEvent)
+    {
+        // later responders must not see the event while our delegate still owns it
+        aEvent.setProcessed(true);
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        delegate.processPdu(aEvent);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        log.error("error processing " + aEvent.getPDU(), ex);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            log.warn("dropped trap, executor is shut down: " + aEvent.getPDU());
+        }
+    }
+
+    /**
+     * Take no more traps and wait for those already handed over
+     * @param aDeadline time in milliseconds to give up waiting
+     * @return true if every trap was processed
+     * @throws InterruptedException
+     */
+    public boolean drain(long aDeadline) throws InterruptedException
+    {
+        executor.shutdown();
+        return executor.awaitTermination(Math.max(0, aDeadline - System.currentTimeMillis()),
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return traps run on the dispatcher thread because the pool and queue were full
+     */
+    public long getOverflows()
+    {
+        return overflows.get();
+    }
+
+    /** {@inheritDoc} */
+    public String render()
+    {
+        StringBuilder str = new StringBuilder();
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            str.append(pool.getActiveCount()).append(" of ").append(threads);
+            str.append(" threads busy, ").append(pool.getQueue().size()).append(" of ");
+            str.append(queueSize).append(" queued, ");
+        }
+        else
+        {
+            str.append("virtual threads, ");
+        }
+        str.append(overflows.get()).append(" run on the dispatcher\n");
+        return str.toString();
+    }
+
+    /**
+     * @return ExecutorService used for every trap
+     */
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * @return virtual thread per task executor if this JVM has one, else a bounded pool
+     */
+    private ExecutorService createExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService virtual = (ExecutorService) factory.invoke(null);
+            log.info("processing traps on virtual threads");
+            return virtual;
+        }
+        catch (Exception ex)
+        {
+            log.info("virtual threads unavailable, processing traps on " + threads
+                + " threads with a queue of " + queueSize);
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable aTask)
+                {
+                    Thread thread = new Thread(aTask, "Classify-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler()
+            {
+                public void rejectedExecution(Runnable aTask, ThreadPoolExecutor aPool)
+                {
+                    if (aPool.isShutdown())
+                    {
+                        throw new RejectedExecutionException("shut down");
+                    }
+                    // full: slow the dispatcher down instead of piling up traps
+                    overflows.incrementAndGet();
+                    aTask.run();
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -1,10 +1,22 @@
 // Copyright 2010 Resolvity Inc.
 package com.resolvity.trapper;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 import com.resolvity.utility.file.ReadableProperties;
 
@@ -14,31 +26,343 @@ import com.resolvity.utility.file.ReadableProperties;
  */
 public class ClassifierFactory
 {
+    public static final int DEFAULT_LANES_RESERVED = 1;
+    public static final int DEFAULT_LANES_QUEUE = 10000;
+    public static final int DEFAULT_STORM_MINUTES = 5;
+    public static final int DEFAULT_CORRELATE_SECONDS = 10;
+    public static final int DEFAULT_CORRELATE_SIZE = 1000;
+    public static final int DEFAULT_FLAP_TRANSITIONS = 4;
+    public static final int DEFAULT_FLAP_MINUTES = 15;
+    public static final int DEFAULT_FLAP_REPORT = 5;
+    public static final int DEFAULT_FLAP_SIZE = 1000;
+    private static final int MAX_FLAPS = 10;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final Logger log = Logger.getLogger("ClassifierFactory");
+
     /**
      * @param aProps ReadableProperties describing our groups
      * @return TrapClassifier object
      */
     public static TrapClassifier create(ReadableProperties aProps)
     {
-        List<TrapGroup> accept = new ArrayList<TrapGroup>();
-        for (String name : aProps.getStringList(null, "accept"))
+        return create(aProps, SystemClock.INSTANCE, SmtpMailer.INSTANCE);
+    }
+
+    /**
+     * @param aProps ReadableProperties describing our groups
+     * @param aClock Clock for the classifier and its groups
+     * @param aMailer Mailer which delivers every email
+     * @return TrapClassifier object, with a TrapContext of its own
+     */
+    public static TrapClassifier create(ReadableProperties aProps, Clock aClock,
+                                        Mailer aMailer)
+    {
+        return create(aProps, new TrapContext(aMailer, aClock));
+    }
+
+    /**
+     * Anything other than the system clock builds a simulation: it is always primary, runs
+     * traps inline rather than on lanes and has no maintenance calendar (whose windows
+     * are in real time), and the caller drives consolidate() and correlate()
+     * @param aProps ReadableProperties describing our groups
+     * @param aContext TrapContext shared by the groups and forwarders built
+     * @return TrapClassifier object
+     */
+    public static TrapClassifier create(ReadableProperties aProps, TrapContext aContext)
+    {
+        Clock aClock = aContext.getClock();
+        Phases phases = new Phases();
+        List<String> names = new ArrayList<String>(aProps.getStringList(null, "accept"));
+        int accepted = names.size();
+        names.addAll(aProps.getStringList(null, "ignore"));
+        List<TrapGroup> groups = buildGroups(aProps, names, aContext);
+        List<TrapGroup> accept = new ArrayList<TrapGroup>(groups.subList(0, accepted));
+        List<TrapGroup> ignore =
+            new ArrayList<TrapGroup>(groups.subList(accepted, groups.size()));
+        TemplateCache templates = aContext.getTemplates();
+        phases.end(groups.size() + " groups (" + templates.getPaths() + " templates, "
+            + templates.getTexts() + " distinct)");
+
+        boolean real = (aClock == SystemClock.INSTANCE);
+        TrapClassifier classifier;
+        URL primary = parsePrimary(aProps);
+        if (!real)
+        {
+            classifier = new TrapClassifier(accept, ignore, aClock);
+        }
+        else if (primary != null)
         {
-            accept.add(new TrapGroup(aProps, name));
+            classifier = new SecondaryTrapClassifier(accept, ignore, primary);
         }
+        else
+        {
+            classifier = new TrapClassifier(accept, ignore);
+        }
+
+        classifier.setQuotas(aContext.getQuotas());
+        phases.end("classifier");
 
-        List<TrapGroup> ignore = new ArrayList<TrapGroup>();
-        for (String name : aProps.getStringList(null, "ignore"))
+        if (real)
         {
-            ignore.add(new TrapGroup(aProps, name));
+            classifier.setLanes(parseLanes(aProps, accept));
+            phases.end("lanes");
+            classifier.setCalendar(parseCalendar(aProps));
+            phases.end("maintenance");
         }
+        classifier.setStorm(parseStorm(aProps));
+        classifier.setCorrelator(parseCorrelator(aProps));
+        classifier.setFlaps(parseFlaps(aProps, accept, aClock));
+        phases.end("storm, correlate and flap");
+        log.info("built configuration: " + phases);
+        return classifier;
+    }
 
-        URL primary = parsePrimary(aProps);
-        if (primary != null)
+    /**
+     * Build groups in parallel, each on a pool thread, reporting every bad group at once
+     * @param aProps ReadableProperties describing our groups
+     * @param aNames group names
+     * @param aContext TrapContext shared by the groups
+     * @return TrapGroups, in the order of aNames
+     */
+    private static List<TrapGroup> buildGroups(final ReadableProperties aProps,
+                                               List<String> aNames,
+                                               final TrapContext aContext)
+    {
+        int threads = Math.min(aNames.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+            new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable aTask)
+                {
+                    Thread thread = new Thread(aTask, "Config-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try
+        {
+            List<Future<TrapGroup>> futures = new ArrayList<Future<TrapGroup>>();
+            for (final String name : aNames)
+            {
+                futures.add(pool.submit(new Callable<TrapGroup>()
+                {
+                    public TrapGroup call()
+                    {
+                        return new TrapGroup(aProps, name, aContext);
+                    }
+                }));
+            }
+
+            List<TrapGroup> groups = new ArrayList<TrapGroup>(aNames.size());
+            StringBuilder errors = new StringBuilder();
+            Throwable first = null;
+            for (int i = 0; i < futures.size(); ++i)
+            {
+                try
+                {
+                    groups.add(futures.get(i).get());
+                }
+                catch (ExecutionException ex)
+                {
+                    Throwable cause = ex.getCause();
+                    errors.append("\n").append(aNames.get(i)).append(": ").append(cause);
+                    first = (first != null) ? first : cause;
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted building groups", ex);
+                }
+            }
+            if (first != null)
+            {
+                throw new IllegalArgumentException("bad groups:" + errors, first);
+            }
+            return groups;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * <code>Phases</code> times the phases of building a configuration.
+     */
+    private static class Phases
+    {
+        private final long start = System.nanoTime();
+        private final StringBuilder str = new StringBuilder();
+        private long last = start;
+
+        /**
+         * @param aPhase description of the phase which just ended
+         */
+        void end(String aPhase)
+        {
+            long now = System.nanoTime();
+            str.append(aPhase).append(" ").append((now - last) / NANOS_PER_MILLI);
+            str.append("ms, ");
+            last = now;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            return str + "total " + (last - start) / NANOS_PER_MILLI + "ms";
+        }
+    }
+
+    /**
+     * @param aProps Properties file which may specify lanes.threads, lanes.weights,
+     *            lanes.reserved and lanes.queue
+     * @param aAccept accepted TrapGroups, checked against the configured lanes
+     * @return PriorityLanes, or null if lanes are not enabled
+     */
+    private static PriorityLanes parseLanes(ReadableProperties aProps,
+                                            List<TrapGroup> aAccept)
+    {
+        int threads = aProps.getInt("lanes", "threads", 0);
+        if (threads <= 0)
         {
-            return new SecondaryTrapClassifier(accept, ignore, primary);
+            return null;
         }
 
-        return new TrapClassifier(accept, ignore);
+        Map<String,Integer> weights = new LinkedHashMap<String,Integer>();
+        Map<String,String> weightMap = aProps.getStringMap("lanes", "weights");
+        for (String lane : weightMap.keySet())
+        {
+            try
+            {
+                weights.put(lane.trim(), Integer.valueOf(weightMap.get(lane).trim()));
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IllegalArgumentException("bad weight for lane " + lane, ex);
+            }
+        }
+
+        PriorityLanes lanes =
+            new PriorityLanes(weights, threads,
+                              aProps.getInt("lanes", "reserved", DEFAULT_LANES_RESERVED),
+                              aProps.getInt("lanes", "queue", DEFAULT_LANES_QUEUE));
+        for (TrapGroup group : aAccept)
+        {
+            if (!lanes.hasLane(group.getPriority()))
+            {
+                throw new IllegalArgumentException("unknown priority for "
+                    + group.getName() + ": " + group.getPriority());
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * @param aProps Properties file which may specify storm.enter, storm.exit and
+     *            storm.minutes
+     * @return StormMonitor, or null if storm mode is not enabled
+     */
+    private static StormMonitor parseStorm(ReadableProperties aProps)
+    {
+        int enter = aProps.getInt("storm", "enter", 0);
+        if (enter <= 0)
+        {
+            return null;
+        }
+        return new StormMonitor(enter, aProps.getInt("storm", "exit", enter / 2),
+                                aProps.getInt("storm", "minutes", DEFAULT_STORM_MINUTES));
+    }
+
+    /**
+     * @param aProps Properties file which may specify correlate.keys, correlate.seconds
+     *            and correlate.size
+     * @return Correlator, or null if correlation is not enabled
+     */
+    private static Correlator parseCorrelator(ReadableProperties aProps)
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : aProps.getStringList("correlate", "keys"))
+        {
+            keys.add(key.trim());
+        }
+        if (keys.isEmpty())
+        {
+            return null;
+        }
+        return new Correlator(keys, aProps.getInt("correlate", "seconds",
+                                                  DEFAULT_CORRELATE_SECONDS),
+                              aProps.getInt("correlate", "size", DEFAULT_CORRELATE_SIZE));
+    }
+
+    /**
+     * @param aProps Properties file which may specify flap.N.problem and flap.N.clear
+     *            group pairs, with optional key, transitions, minutes, report and size
+     * @param aAccept accepted TrapGroups, which the pairs must name
+     * @param aClock Clock of the classifier
+     * @return FlapDetectors, possibly empty
+     */
+    private static List<FlapDetector> parseFlaps(ReadableProperties aProps,
+                                                 List<TrapGroup> aAccept, Clock aClock)
+    {
+        List<FlapDetector> list = new ArrayList<FlapDetector>();
+        for (int i = 0; i < MAX_FLAPS; ++i)
+        {
+            String name = "flap." + i;
+            String problem = aProps.getString(name, "problem", null);
+            if (problem == null)
+            {
+                continue;
+            }
+            list.add(new FlapDetector(findGroup(aAccept, problem.trim()),
+                findGroup(aAccept, aProps.getString(name, "clear", "").trim()),
+                aProps.getString(name, "key", "sender").trim(),
+                aProps.getInt(name, "transitions", DEFAULT_FLAP_TRANSITIONS),
+                aProps.getInt(name, "minutes", DEFAULT_FLAP_MINUTES),
+                aProps.getInt(name, "report", DEFAULT_FLAP_REPORT),
+                aProps.getInt(name, "size", DEFAULT_FLAP_SIZE), aClock));
+        }
+        return list;
+    }
+
+    /**
+     * @param aGroups TrapGroups to search
+     * @param aName group name
+     * @return the named group
+     */
+    private static TrapGroup findGroup(List<TrapGroup> aGroups, String aName)
+    {
+        for (TrapGroup group : aGroups)
+        {
+            if (group.getName().equals(aName))
+            {
+                return group;
+            }
+        }
+        throw new IllegalArgumentException("unknown accept group: " + aName);
+    }
+
+    /**
+     * @param aProps Properties file which may specify maintenance.file
+     * @return MaintenanceCalendar, or null if maintenance windows are not enabled
+     */
+    private static MaintenanceCalendar parseCalendar(ReadableProperties aProps)
+    {
+        String path = aProps.getString("maintenance", "file", null);
+        if (path == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new MaintenanceCalendar(new File(path.trim()));
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException("bad maintenance file: " + path, ex);
+        }
     }
 
     /**
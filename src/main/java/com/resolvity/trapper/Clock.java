@@ -0,0 +1,21 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+/**
+ * <code>Clock</code> is the source of time for classification, consolidation and
+ * schedules. Times are primitive longs, so reading the clock never allocates, and tests
+ * or replays may substitute a VirtualClock for the SystemClock.
+ * @author justin.good
+ */
+public interface Clock
+{
+    /**
+     * @return milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return nanoseconds from an arbitrary origin, for measuring intervals
+     */
+    long nanoTime();
+}
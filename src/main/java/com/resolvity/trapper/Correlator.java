@@ -0,0 +1,312 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+
+/**
+ * <code>Correlator</code> holds accepted traps for a short window, keyed on renamed
+ * variables such as stack and sid, so that related traps in different groups become one
+ * incident instead of one email each. The first trap with a key opens an incident in the
+ * current time bucket; later traps with the same key join it. Each tick the oldest bucket
+ * is expired as a whole, so keys are removed in constant time each, and its incidents are
+ * handed to the Sink.
+ * @author justin.good
+ */
+public class Correlator implements TrapperAlive.Page
+{
+    private static final int BUCKETS = 4;
+    private static final int MAX_TRAPS = 50; // held per incident, later ones only counted
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final List<String> keys;
+    private final long span; // milliseconds covered by each bucket
+    private final int maxIncidents;
+    private final Map<String,Incident> index = new HashMap<String,Incident>();
+    private final List<List<Incident>> buckets = new ArrayList<List<Incident>>();
+    private int current;
+    private long held;
+    private long merged;
+    private long overflow;
+
+    /**
+     * @param aKeys renamed variables whose values identify an incident
+     * @param aSeconds how long the first trap of an incident is held
+     * @param aMaxIncidents incidents held at once; traps beyond this are not held
+     */
+    public Correlator(List<String> aKeys, int aSeconds, int aMaxIncidents)
+    {
+        keys = Collections.unmodifiableList(new ArrayList<String>(aKeys));
+        span = Math.max(1, aSeconds * 1000L / BUCKETS);
+        maxIncidents = aMaxIncidents;
+        // one extra bucket, so an incident is held at least the whole window
+        for (int i = 0; i <= BUCKETS; ++i)
+        {
+            buckets.add(new ArrayList<Incident>());
+        }
+    }
+
+    /**
+     * @return renamed variables whose values identify an incident
+     */
+    public List<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return milliseconds between ticks
+     */
+    public long getSpan()
+    {
+        return span;
+    }
+
+    /**
+     * @param aKey incident key, from TrapGroup.getCorrelationKey
+     * @param aGroup TrapGroup which accepted the trap
+     * @param aPdu PDU
+     * @param aSender InetAddress of the sender
+     * @return true if the trap is held, false if the caller should handle it now
+     */
+    public synchronized boolean hold(String aKey, TrapGroup aGroup, PDU aPdu,
+                                     InetAddress aSender)
+    {
+        Incident incident = index.get(aKey);
+        if (incident == null)
+        {
+            if (index.size() >= maxIncidents)
+            {
+                ++overflow;
+                return false;
+            }
+            incident = new Incident(aKey);
+            index.put(aKey, incident);
+            buckets.get(current).add(incident);
+        }
+        else
+        {
+            ++merged;
+        }
+
+        ++held;
+        incident.add(aGroup, aPdu, aSender);
+        return true;
+    }
+
+    /**
+     * Start the thread which expires held incidents into aSink
+     * @param aSink receives each incident once its window is over
+     */
+    public void start(final Sink aSink)
+    {
+        Thread thread = new Thread("Correlator")
+        {
+            /** {@inheritDoc} */
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        sleep(span);
+                        for (Incident incident : tick())
+                        {
+                            try
+                            {
+                                aSink.release(incident);
+                            }
+                            catch (RuntimeException ex)
+                            {
+                                log.error("failed to release " + incident.getKey(), ex);
+                            }
+                        }
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    log.warn("Correlator interrupted...");
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Advance one bucket, expiring the oldest; called every span by our own thread, or by
+     * whoever drives a virtual clock
+     * @return incidents whose window is over
+     */
+    synchronized List<Incident> tick()
+    {
+        current = (current + 1) % buckets.size();
+        List<Incident> bucket = buckets.get(current);
+        List<Incident> expired = new ArrayList<Incident>(bucket);
+        for (Incident incident : bucket)
+        {
+            index.remove(incident.getKey());
+        }
+        bucket.clear();
+        return expired;
+    }
+
+    /**
+     * Expire every held incident at once, for shutdown
+     * @return incidents still held
+     */
+    synchronized List<Incident> drain()
+    {
+        List<Incident> held = new ArrayList<Incident>();
+        for (int i = 0; i < buckets.size(); ++i)
+        {
+            held.addAll(tick());
+        }
+        return held;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        return "keys " + keys + ", holding " + index.size() + " incidents\nheld " + held
+            + ", merged " + merged + ", not held (full) " + overflow + "\n";
+    }
+
+    /**
+     * <code>Sink</code> receives incidents whose window is over.
+     */
+    public interface Sink
+    {
+        void release(Incident aIncident);
+    }
+
+    /**
+     * <code>Trap</code> is one held trap.
+     */
+    public static class Trap
+    {
+        private final TrapGroup group;
+        private final PDU pdu;
+        private final InetAddress sender;
+
+        public Trap(TrapGroup aGroup, PDU aPdu, InetAddress aSender)
+        {
+            group = aGroup;
+            pdu = aPdu;
+            sender = aSender;
+        }
+
+        public TrapGroup getGroup()
+        {
+            return group;
+        }
+
+        public PDU getPdu()
+        {
+            return pdu;
+        }
+
+        public InetAddress getSender()
+        {
+            return sender;
+        }
+    }
+
+    /**
+     * <code>Incident</code> is the traps sharing one key within the window.
+     */
+    public static class Incident
+    {
+        private final String key;
+        private final List<Trap> traps = new ArrayList<Trap>();
+        private final Set<TrapGroup> groups = new LinkedHashSet<TrapGroup>();
+        private int count;
+
+        public Incident(String aKey)
+        {
+            key = aKey;
+        }
+
+        void add(TrapGroup aGroup, PDU aPdu, InetAddress aSender)
+        {
+            ++count;
+            groups.add(aGroup);
+            if (traps.size() < MAX_TRAPS)
+            {
+                traps.add(new Trap(aGroup, aPdu, aSender));
+            }
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return held traps, in arrival order
+         */
+        public List<Trap> getTraps()
+        {
+            return traps;
+        }
+
+        /**
+         * @return groups with traps in this incident, in order of their first trap
+         */
+        public Set<TrapGroup> getGroups()
+        {
+            return groups;
+        }
+
+        /**
+         * @return number of traps, including any beyond those held
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return subject line naming the key and groups
+         */
+        public String getSubject()
+        {
+            StringBuilder str = new StringBuilder("incident ").append(key).append(":");
+            for (TrapGroup group : groups)
+            {
+                str.append(" ").append(group.getName());
+            }
+            return str.toString();
+        }
+
+        /**
+         * @return plain text description of every held trap
+         */
+        public String describe()
+        {
+            StringBuilder str = new StringBuilder(getSubject());
+            str.append("\n").append(count).append(" traps\n\n");
+            for (Trap trap : traps)
+            {
+                str.append(trap.getGroup().getName()).append(" from ");
+                str.append(trap.getSender().getHostName()).append("\n");
+                str.append(TrapGroup.getBody(trap.getPdu())).append("\n");
+            }
+            if (count > traps.size())
+            {
+                str.append("(and ").append(count - traps.size()).append(" more)\n");
+            }
+            return str.toString();
+        }
+    }
+}
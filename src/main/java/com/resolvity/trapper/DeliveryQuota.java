@@ -0,0 +1,223 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>DeliveryQuota</code> is a token bucket for one recipient address, such as an
+ * email to SMS gateway which drops messages beyond a few a minute. Buckets are shared
+ * by address across every forwarder of a configuration (see <code>Quotas</code>), so
+ * several groups paging the same phone draw on one quota; the first forwarder to name
+ * an address sets its rate and burst.
+ * <p>
+ * Messages over quota are not sent to that address but counted, and once its bucket has
+ * a token again a single "N more alerts suppressed" notice is sent in their place. The
+ * classifier checks for refilled buckets each time it consolidates.
+ * @author justin.good
+ */
+public class DeliveryQuota
+{
+    private static final double MILLIS_PER_MINUTE = 60000.0;
+
+    private final String address;
+    private final int perMinute;
+    private final int burst;
+    private double tokens; // guarded by this
+    private long last;
+    private int suppressed;
+    private long suppressedSince;
+    private long totalSent;
+    private long totalSuppressed;
+    private TrapForwarder lastForwarder;
+
+    /**
+     * @param aAddress recipient address
+     * @param aPerMinute messages allowed per minute
+     * @param aBurst messages allowed at once
+     * @param aNow current time in milliseconds
+     */
+    DeliveryQuota(String aAddress, int aPerMinute, int aBurst, long aNow)
+    {
+        address = aAddress;
+        perMinute = Math.max(1, aPerMinute);
+        burst = Math.max(1, aBurst);
+        tokens = burst;
+        last = aNow;
+    }
+
+    /**
+     * Take a token for a message, or count it as suppressed
+     * @param aForwarder forwarder of the message, which sends the later notice
+     * @param aNow current time in milliseconds
+     * @return true if the message may go to our address
+     */
+    public synchronized boolean admit(TrapForwarder aForwarder, long aNow)
+    {
+        if (tryAcquire(aNow))
+        {
+            ++totalSent;
+            return true;
+        }
+        if (suppressed == 0)
+        {
+            suppressedSince = aNow;
+        }
+        ++suppressed;
+        ++totalSuppressed;
+        lastForwarder = aForwarder;
+        return false;
+    }
+
+    /**
+     * @param aNow current time in milliseconds
+     * @return true if a token was taken
+     */
+    private boolean tryAcquire(long aNow)
+    {
+        if (aNow > last)
+        {
+            tokens = Math.min(burst, tokens + (aNow - last) * perMinute / MILLIS_PER_MINUTE);
+            last = aNow;
+        }
+        if (tokens >= 1)
+        {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send the notice for suppressed messages, if there are some, a forwarder to send it
+     * and a free token
+     * @param aNow current time in milliseconds
+     */
+    void notifySuppressed(long aNow)
+    {
+        TrapForwarder fwd;
+        int count;
+        long since;
+        synchronized (this)
+        {
+            if (suppressed == 0 || lastForwarder == null || !tryAcquire(aNow))
+            {
+                return;
+            }
+            fwd = lastForwarder;
+            count = suppressed;
+            since = suppressedSince;
+            suppressed = 0;
+            lastForwarder = null;
+        }
+        fwd.sendSuppressed(address, count, new Date(since));
+    }
+
+    /**
+     * @param aStr where to describe our quota and counts, as one line
+     * @param aFormat format for the time suppression started
+     */
+    private synchronized void describe(StringBuilder aStr, SimpleDateFormat aFormat)
+    {
+        aStr.append(address).append(" ").append(perMinute);
+        aStr.append("/min burst ").append(burst).append(": ");
+        aStr.append(totalSent).append(" sent, ");
+        aStr.append(totalSuppressed).append(" suppressed");
+        if (suppressed > 0)
+        {
+            aStr.append(", ").append(suppressed).append(" waiting since ");
+            aStr.append(aFormat.format(new Date(suppressedSince)));
+        }
+        aStr.append("\n");
+    }
+
+    /**
+     * <code>Quotas</code> holds the quota of each address for one configuration, on its
+     * clock.
+     */
+    public static class Quotas implements TrapperAlive.Page
+    {
+        private final Logger log = Logger.getLogger(getClass().getSimpleName());
+        private final ConcurrentMap<String,DeliveryQuota> quotas =
+            new ConcurrentHashMap<String,DeliveryQuota>();
+        private final Clock clock;
+
+        /**
+         * @param aClock Clock the buckets refill on
+         */
+        public Quotas(Clock aClock)
+        {
+            clock = aClock;
+        }
+
+        /**
+         * @param aAddress recipient address
+         * @param aPerMinute messages allowed per minute, if the address has no quota yet
+         * @param aBurst messages allowed at once, if the address has no quota yet
+         * @return the quota shared by every forwarder sending to aAddress
+         */
+        public DeliveryQuota get(String aAddress, int aPerMinute, int aBurst)
+        {
+            String key = aAddress.trim().toLowerCase();
+            DeliveryQuota quota = quotas.get(key);
+            if (quota == null)
+            {
+                quotas.putIfAbsent(key, new DeliveryQuota(aAddress.trim(), aPerMinute,
+                                                          aBurst, clock.currentTimeMillis()));
+                quota = quotas.get(key);
+            }
+            return quota;
+        }
+
+        /**
+         * @return Clock the buckets refill on
+         */
+        public Clock getClock()
+        {
+            return clock;
+        }
+
+        /**
+         * @return true if any address has a quota
+         */
+        public boolean isInUse()
+        {
+            return !quotas.isEmpty();
+        }
+
+        /**
+         * Send the notices of every address whose bucket has refilled
+         */
+        public void notifySuppressed()
+        {
+            long now = clock.currentTimeMillis();
+            for (DeliveryQuota quota : quotas.values())
+            {
+                try
+                {
+                    quota.notifySuppressed(now);
+                }
+                catch (RuntimeException ex)
+                {
+                    log.error("failed to notify " + quota.address, ex);
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        public String render()
+        {
+            SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss");
+            StringBuilder str = new StringBuilder();
+            for (DeliveryQuota quota : quotas.values())
+            {
+                quota.describe(str, sdf);
+            }
+            return str.toString();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <code>DigestBuffer</code> keeps a bounded sample of the traps in a digest window: the
+ * first few verbatim, plus a uniform reservoir sample of everything after them. Traps are
+ * stored as single, truncated lines rather than PDUs, so the memory held per group is
+ * capped at (first + sample) * chars no matter how many traps arrive.
+ * <p>
+ * A trap is counted with <code>reserve</code>, which says whether it is kept, and only a
+ * kept trap need be flattened and passed to <code>fill</code>; past the first few, most
+ * traps in a busy window are not.
+ * @author justin.good
+ */
+public class DigestBuffer
+{
+    private final int firstSize;
+    private final int maxChars;
+    private final String[] first;
+    private final String[] reservoir;
+    private final Random random = new Random();
+    private int firstCount;
+    private long seen; // traps offered after the first ones
+
+    /**
+     * @param aFirst number of leading traps kept
+     * @param aSample size of the reservoir sample of the remaining traps
+     * @param aMaxChars each trap is truncated to this many characters
+     */
+    public DigestBuffer(int aFirst, int aSample, int aMaxChars)
+    {
+        firstSize = Math.max(0, aFirst);
+        maxChars = Math.max(1, aMaxChars);
+        first = new String[firstSize];
+        reservoir = new String[Math.max(0, aSample)];
+    }
+
+    /**
+     * @param aSender sender's address
+     * @param aBody trap body, one variable per line
+     */
+    public synchronized void add(String aSender, String aBody)
+    {
+        int slot = reserve();
+        if (slot >= 0)
+        {
+            fill(slot, aSender, aBody);
+        }
+    }
+
+    /**
+     * Count a trap and decide whether it is kept; the caller fills a kept trap's slot
+     * before reserving another
+     * @return slot to fill, or -1 if the trap is not kept
+     */
+    public synchronized int reserve()
+    {
+        if (firstCount < firstSize)
+        {
+            return firstCount++;
+        }
+
+        // Algorithm R: the n-th later trap replaces a random slot with probability k/n
+        long n = ++seen;
+        if (n <= reservoir.length)
+        {
+            return firstSize + (int) n - 1;
+        }
+        long slot = (long) (random.nextDouble() * n);
+        return (slot < reservoir.length) ? firstSize + (int) slot : -1;
+    }
+
+    /**
+     * @param aSlot slot from reserve
+     * @param aSender sender's address
+     * @param aBody trap body, one variable per line
+     */
+    public synchronized void fill(int aSlot, String aSender, String aBody)
+    {
+        if (aSlot < firstSize)
+        {
+            first[aSlot] = flatten(aSender, aBody);
+        }
+        else
+        {
+            reservoir[aSlot - firstSize] = flatten(aSender, aBody);
+        }
+    }
+
+    /**
+     * @return kept traps, first ones in arrival order then the sample
+     */
+    public synchronized List<String> getSamples()
+    {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < firstCount; ++i)
+        {
+            list.add(first[i]);
+        }
+        int kept = (int) Math.min(seen, reservoir.length);
+        for (int i = 0; i < kept; ++i)
+        {
+            list.add(reservoir[i]);
+        }
+        return list;
+    }
+
+    /**
+     * @return number of traps offered since the last clear
+     */
+    public synchronized long getTotal()
+    {
+        return firstCount + seen;
+    }
+
+    /**
+     * Start a new window
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < first.length; ++i)
+        {
+            first[i] = null;
+        }
+        for (int i = 0; i < reservoir.length; ++i)
+        {
+            reservoir[i] = null;
+        }
+        firstCount = 0;
+        seen = 0;
+    }
+
+    /**
+     * @return sender and body on one line, truncated to maxChars
+     */
+    private String flatten(String aSender, String aBody)
+    {
+        StringBuilder str = new StringBuilder(Math.min(maxChars, 64));
+        str.append(aSender).append(": ");
+        String body = aBody.trim();
+        for (int i = 0; i < body.length() && str.length() < maxChars; ++i)
+        {
+            char c = body.charAt(i);
+            if (c == '\n')
+            {
+                str.append(" | ");
+            }
+            else if (c != '\r')
+            {
+                str.append(c);
+            }
+        }
+        if (str.length() > maxChars)
+        {
+            str.setLength(maxChars);
+        }
+        return str.toString();
+    }
+}
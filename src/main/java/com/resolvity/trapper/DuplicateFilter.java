@@ -0,0 +1,207 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * <code>DuplicateFilter</code> is a fixed memory, time bucketed hash set used to collapse
+ * repeated traps. The window is split into a few buckets, each an open addressing table
+ * of 64 bit trap hashes; a hash is a duplicate if any live bucket holds it. When the
+ * oldest bucket expires it is cleared and reused, and every entry in it which absorbed
+ * repeats is written to a pending report, so the repeats are announced once per window
+ * instead of once per trap.
+ * <p>
+ * A bucket that fills up simply stops remembering (new traps are let through), so memory
+ * never grows.
+ * @author justin.good
+ */
+public class DuplicateFilter
+{
+    private static final int BUCKETS = 4;
+    private static final int MAX_LABEL = 120;
+    private static final int MAX_REPORT_LINES = 50;
+    private static final long EMPTY = 0;
+
+    private final long span; // milliseconds covered by each bucket
+    private final int capacity;
+    private final long[][] hashes = new long[BUCKETS][];
+    private final long[][] firstSeen = new long[BUCKETS][];
+    private final int[][] repeats = new int[BUCKETS][];
+    private final String[][] labels = new String[BUCKETS][];
+    private final int[] sizes = new int[BUCKETS];
+    private final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss");
+    private final StringBuilder report = new StringBuilder();
+    private int current;
+    private long currentStart;
+    private int reportCount;
+    private int reportOmitted;
+    private long suppressed;
+    private long overflow;
+
+    /**
+     * @param aWindowMillis how long a trap is remembered, roughly
+     * @param aCapacity traps remembered per bucket, rounded up to a power of two
+     */
+    public DuplicateFilter(long aWindowMillis, int aCapacity)
+    {
+        span = Math.max(1, aWindowMillis / BUCKETS);
+        int size = Integer.highestOneBit(Math.max(16, aCapacity - 1)) << 1;
+        capacity = size;
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            hashes[i] = new long[size];
+            firstSeen[i] = new long[size];
+            repeats[i] = new int[size];
+            labels[i] = new String[size];
+        }
+    }
+
+    /**
+     * @param aHash hash of the trap's identifying fields
+     * @param aLabel short description used in the repeat report, only kept if new
+     * @param aNow current time in milliseconds
+     * @return true if the same hash was seen within the window
+     */
+    public synchronized boolean isDuplicate(long aHash, String aLabel, long aNow)
+    {
+        rotate(aNow);
+        long hash = (aHash == EMPTY) ? 1 : aHash;
+
+        for (int b = 0; b < BUCKETS; ++b)
+        {
+            int slot = find(hashes[b], hash);
+            if (slot >= 0 && hashes[b][slot] == hash)
+            {
+                ++repeats[b][slot];
+                ++suppressed;
+                return true;
+            }
+        }
+
+        // keep probe sequences short by never filling more than three quarters
+        if (sizes[current] >= capacity - capacity / 4)
+        {
+            ++overflow; // bucket is full, let it through
+            return false;
+        }
+        int slot = find(hashes[current], hash);
+        ++sizes[current];
+        hashes[current][slot] = hash;
+        firstSeen[current][slot] = aNow;
+        repeats[current][slot] = 0;
+        labels[current][slot] = (aLabel.length() > MAX_LABEL)
+            ? aLabel.substring(0, MAX_LABEL) : aLabel;
+        return false;
+    }
+
+    /**
+     * Expire any buckets that are older than the window
+     * @param aNow current time in milliseconds
+     */
+    public synchronized void rotate(long aNow)
+    {
+        if (currentStart == 0)
+        {
+            currentStart = aNow;
+            return;
+        }
+
+        int steps = 0;
+        while (aNow - currentStart >= span && steps < BUCKETS)
+        {
+            current = (current + 1) % BUCKETS;
+            currentStart += span;
+            expire(current);
+            ++steps;
+        }
+        if (aNow - currentStart >= span)
+        {
+            currentStart = aNow; // idle for more than a whole window
+        }
+    }
+
+    /**
+     * @return pending report of collapsed repeats, or null if there is none; the pending
+     *         report is cleared
+     */
+    public synchronized String drainReport()
+    {
+        if (reportCount == 0)
+        {
+            return null;
+        }
+        if (reportOmitted > 0)
+        {
+            report.append("(and ").append(reportOmitted).append(" other repeated traps)\n");
+        }
+        String str = report.toString();
+        report.setLength(0);
+        reportCount = 0;
+        reportOmitted = 0;
+        return str;
+    }
+
+    /**
+     * @return total number of traps suppressed as duplicates
+     */
+    public synchronized long getSuppressed()
+    {
+        return suppressed;
+    }
+
+    /**
+     * @return number of traps let through because a bucket was full
+     */
+    public synchronized long getOverflow()
+    {
+        return overflow;
+    }
+
+    /**
+     * @param aBucket bucket to clear, after reporting its repeats
+     */
+    private void expire(int aBucket)
+    {
+        long[] h = hashes[aBucket];
+        for (int i = 0; i < capacity; ++i)
+        {
+            if (h[i] != EMPTY && repeats[aBucket][i] > 0)
+            {
+                if (reportCount >= MAX_REPORT_LINES)
+                {
+                    ++reportOmitted;
+                    continue;
+                }
+                report.append(repeats[aBucket][i]).append(" more since ");
+                report.append(format.format(new Date(firstSeen[aBucket][i])));
+                report.append(": ").append(labels[aBucket][i]).append("\n");
+                ++reportCount;
+            }
+        }
+        Arrays.fill(h, EMPTY);
+        Arrays.fill(labels[aBucket], null);
+        sizes[aBucket] = 0;
+    }
+
+    /**
+     * Linear probing
+     * @return slot holding aHash, or the empty slot where it belongs, or -1 if neither
+     */
+    private int find(long[] aTable, long aHash)
+    {
+        int mask = capacity - 1;
+        int slot = (int) aHash & mask;
+        for (int i = 0; i < capacity; ++i)
+        {
+            long h = aTable[slot];
+            if (h == aHash || h == EMPTY)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>EscalationPolicy</code> counts the consecutive consolidation windows in which a
+ * group stayed at or above its limit, and every N such windows also sends the
+ * consolidation to an extra set of forwarders (such as a pager). It has no thread of its
+ * own: the Consolidator already visits every consolidating group each window. window()
+ * only builds the escalation; the classifier sends it once it has released its lock.
+ * <p>
+ * Streaks are kept by group name in a <code>Streaks</code> registry, not in the
+ * TrapGroup. The registry comes with the TrapContext, so a configuration built again
+ * carries on its groups' streaks only when it is handed the old one.
+ * @author justin.good
+ */
+public class EscalationPolicy
+{
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final String group;
+    private final int windows;
+    private final List<TrapForwarder> forwarders;
+    private final AtomicInteger streak;
+
+    /**
+     * @param aGroup name of the group
+     * @param aWindows consecutive consolidating windows before escalating
+     * @param aForwarders forwarders escalated to
+     * @param aStreaks Streaks holding the group's streak
+     */
+    public EscalationPolicy(String aGroup,
+                            int aWindows,
+                            List<TrapForwarder> aForwarders,
+                            Streaks aStreaks)
+    {
+        group = aGroup;
+        windows = Math.max(1, aWindows);
+        forwarders = aForwarders;
+        streak = aStreaks.get(aGroup);
+    }
+
+    /**
+     * Called as each consolidation window is sent
+     * @param aContinuing true if the window was at or above the limit, so consolidation
+     *            goes on
+     * @param aStart start of the window
+     * @param aCount count during the window
+     * @param aDetail extra lines for the body, such as the top senders
+     * @return escalation now due, to be sent by the caller, or null
+     */
+    public Notice window(boolean aContinuing, Date aStart, int aCount, String aDetail)
+    {
+        if (!aContinuing)
+        {
+            streak.set(0);
+            return null;
+        }
+
+        int n = streak.incrementAndGet();
+        if (n % windows != 0)
+        {
+            return null;
+        }
+
+        String subject = group + " " + aCount + " escalated";
+        StringBuilder body = new StringBuilder();
+        body.append(group).append(" ").append(aCount).append(" since ").append(aStart);
+        body.append("\nconsolidating for ").append(n).append(" windows\n");
+        if (aDetail.length() > 0)
+        {
+            body.append("\n").append(aDetail);
+        }
+        if (log.isInfoEnabled())
+        {
+            log.info(group + " escalating after " + n + " windows to " + forwarders);
+        }
+        return new Notice(subject, body.toString(), forwarders);
+    }
+
+    /**
+     * Consolidation stopped, start counting again
+     */
+    public void reset()
+    {
+        streak.set(0);
+    }
+
+    /**
+     * @return consecutive consolidating windows so far
+     */
+    public int getStreak()
+    {
+        return streak.get();
+    }
+
+    /**
+     * <code>Streaks</code> holds the streak of each escalating group by name, for as long
+     * as it is passed from one configuration to the next.
+     */
+    public static class Streaks
+    {
+        private final ConcurrentMap<String,AtomicInteger> streaks =
+            new ConcurrentHashMap<String,AtomicInteger>();
+
+        /**
+         * @param aGroup name of the group
+         * @return the group's streak, zero if new
+         */
+        AtomicInteger get(String aGroup)
+        {
+            AtomicInteger streak = streaks.get(aGroup);
+            if (streak == null)
+            {
+                AtomicInteger existing =
+                    streaks.putIfAbsent(aGroup, streak = new AtomicInteger());
+                if (existing != null)
+                {
+                    streak = existing;
+                }
+            }
+            return streak;
+        }
+
+        /**
+         * @param aGroup name of the group
+         * @return consecutive consolidating windows so far, zero if not escalating
+         */
+        public int getStreak(String aGroup)
+        {
+            AtomicInteger streak = streaks.get(aGroup);
+            return (streak != null) ? streak.get() : 0;
+        }
+    }
+}
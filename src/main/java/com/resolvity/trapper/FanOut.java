@@ -0,0 +1,129 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>FanOut</code> sends one email to several forwarders at once, so a slow
+ * destination (or one failing over between SMTP servers) no longer delays the others.
+ * Each forwarder is waited for up to its own timeout; one still running after that is
+ * reported as failed but left to finish, since its message may yet be delivered or
+ * spooled (its SMTP connect, reads and writes time out after the same timeout, so it
+ * does finish). A single forwarder is sent to on the calling thread, as before, and so
+ * is any send arriving when all MAX_THREADS pool threads are busy.
+ * @author justin.good
+ */
+public class FanOut
+{
+    private static final Logger log = Logger.getLogger("FanOut");
+    private static final int MAX_THREADS = 32;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final ExecutorService POOL = new ThreadPoolExecutor(0, MAX_THREADS,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable aTask)
+            {
+                Thread thread = new Thread(aTask, "FanOut-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * <code>Send</code> is the email to send to each forwarder.
+     */
+    public interface Send
+    {
+        /**
+         * @param aForwarder one of the forwarders
+         * @return true if the message was sent
+         */
+        boolean send(TrapForwarder aForwarder);
+    }
+
+    private FanOut()
+    {
+    }
+
+    /**
+     * @param aForwarders forwarders to send to
+     * @param aSend email to send to each of them
+     * @return per forwarder, true if it sent the message within its timeout
+     */
+    public static boolean[] send(List<TrapForwarder> aForwarders, final Send aSend)
+    {
+        boolean[] sent = new boolean[aForwarders.size()];
+        if (sent.length == 1)
+        {
+            sent[0] = aSend.send(aForwarders.get(0));
+            return sent;
+        }
+
+        long start = System.currentTimeMillis();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(sent.length);
+        for (final TrapForwarder fwd : aForwarders)
+        {
+            try
+            {
+                futures.add(POOL.submit(new Callable<Boolean>()
+                {
+                    public Boolean call()
+                    {
+                        return aSend.send(fwd);
+                    }
+                }));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                log.warn("unable to dispatch to " + fwd, ex);
+                futures.add(null);
+            }
+        }
+
+        for (int i = 0; i < sent.length; ++i)
+        {
+            Future<Boolean> future = futures.get(i);
+            if (future == null)
+            {
+                continue;
+            }
+            TrapForwarder fwd = aForwarders.get(i);
+            long wait = start + fwd.getTimeout() - System.currentTimeMillis();
+            try
+            {
+                sent[i] = future.get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException ex)
+            {
+                log.warn("still sending to " + fwd + " after " + fwd.getTimeout() + "ms");
+            }
+            catch (ExecutionException ex)
+            {
+                log.error("failed to send to " + fwd, ex.getCause());
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return sent;
+    }
+}
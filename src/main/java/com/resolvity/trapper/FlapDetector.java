@@ -0,0 +1,285 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+
+/**
+ * <code>FlapDetector</code> watches a pair of groups whose traps mean "problem" and
+ * "cleared" for the same component, identified by a key field (the sender or a renamed
+ * variable). Each key has a small state machine remembering its last state and the times
+ * of its last few transitions. Once a key changes state transitions times within the
+ * window it is flapping: its traps in either group are no longer forwarded, and a summary
+ * of all flapping keys is sent every report period instead. A key stops flapping once it
+ * has stayed in one state for a whole window: the first trap after that is forwarded
+ * again, and the next summary lists the key as stable. A report also ends flapping when
+ * the transitions within the window drop below the threshold.
+ * <p>
+ * report() only builds a due summary; the classifier sends it once it has released its
+ * lock.
+ * <p>
+ * Keys are kept in an LRU map of bounded size, and keys idle for longer than the window
+ * are dropped on every report.
+ * @author justin.good
+ */
+public class FlapDetector implements TrapperAlive.Page
+{
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final TrapGroup problem;
+    private final TrapGroup clear;
+    private final String field;
+    private final int transitions;
+    private final long windowMillis;
+    private final long reportMillis;
+    private final Map<String,Flap> flaps;
+    private final Clock clock;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm");
+    private long lastReport;
+
+    /**
+     * @param aProblem group whose traps report a problem
+     * @param aClear group whose traps report the problem cleared
+     * @param aField key field, "sender" or a variable renamed by both groups
+     * @param aTransitions state changes within the window which make a key flapping
+     * @param aMinutes window length
+     * @param aReportMinutes minutes between flap summaries
+     * @param aMaxKeys keys remembered, least recently seen are dropped
+     * @param aClock Clock of the classifier, for the status page
+     */
+    public FlapDetector(TrapGroup aProblem, TrapGroup aClear, String aField,
+                        int aTransitions, int aMinutes, int aReportMinutes,
+                        final int aMaxKeys, Clock aClock)
+    {
+        clock = aClock;
+        problem = aProblem;
+        clear = aClear;
+        field = aField;
+        transitions = Math.max(2, aTransitions);
+        windowMillis = aMinutes * 60000L;
+        reportMillis = Math.max(1, aReportMinutes) * 60000L;
+        flaps = new LinkedHashMap<String,Flap>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            /** {@inheritDoc} */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Flap> aEldest)
+            {
+                return size() > aMaxKeys;
+            }
+        };
+    }
+
+    /**
+     * Track a trap accepted by one of our groups
+     * @param aGroup TrapGroup which accepted the trap
+     * @param aPdu PDU
+     * @param aSender InetAddress of the sender
+     * @param aNow current time in milliseconds
+     * @return true if the key is flapping and the trap should not be forwarded
+     */
+    public boolean isSuppressed(TrapGroup aGroup, PDU aPdu, InetAddress aSender, long aNow)
+    {
+        boolean isProblem = (aGroup == problem);
+        if (!isProblem && aGroup != clear)
+        {
+            return false;
+        }
+        String key = aGroup.getField(field, aPdu, aSender);
+        if (key == null)
+        {
+            return false;
+        }
+
+        synchronized (this)
+        {
+            Flap flap = flaps.get(key);
+            if (flap == null)
+            {
+                flap = new Flap(transitions);
+                flaps.put(key, flap);
+            }
+            flap.lastSeen = aNow;
+
+            // no change of state for a window, so this trap goes out as it would have
+            if (flap.flapping && aNow - flap.lastTransition() > windowMillis)
+            {
+                log.warn(problem.getName() + "/" + clear.getName() + " " + key
+                    + " is stable again");
+                flap.flapping = false;
+                flap.settled = true;
+            }
+
+            if (flap.seen && flap.problem != isProblem)
+            {
+                flap.transition(aNow);
+                if (!flap.flapping && flap.isFlapping(aNow, windowMillis))
+                {
+                    log.warn(problem.getName() + "/" + clear.getName() + " " + key
+                        + " is flapping");
+                    flap.flapping = true;
+                    flap.since = aNow;
+                }
+            }
+            flap.seen = true;
+            flap.problem = isProblem;
+
+            if (flap.flapping)
+            {
+                ++flap.suppressed;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Called periodically to build the flap summary and forget idle keys
+     * @param aNow current time in milliseconds
+     * @return summary now due, to be sent by the caller, or null
+     */
+    public Notice report(long aNow)
+    {
+        StringBuilder body = new StringBuilder();
+        int count = 0;
+        synchronized (this)
+        {
+            if (lastReport == 0)
+            {
+                lastReport = aNow;
+            }
+            if (aNow - lastReport < reportMillis)
+            {
+                return null;
+            }
+            lastReport = aNow;
+
+            for (Iterator<Map.Entry<String,Flap>> it = flaps.entrySet().iterator(); it
+                .hasNext();)
+            {
+                Map.Entry<String,Flap> entry = it.next();
+                Flap flap = entry.getValue();
+                if (flap.flapping || flap.settled)
+                {
+                    boolean stable = flap.settled || !flap.isFlapping(aNow, windowMillis);
+                    describe(body, entry.getKey(), flap, aNow);
+                    body.append(stable ? ", stable again\n" : "\n");
+                    flap.suppressed = 0;
+                    flap.flapping = !stable;
+                    flap.settled = false;
+                    ++count;
+                }
+                else if (aNow - flap.lastSeen > windowMillis)
+                {
+                    it.remove();
+                }
+            }
+        }
+        if (count == 0)
+        {
+            return null;
+        }
+
+        List<TrapGroup> groups = new ArrayList<TrapGroup>();
+        groups.add(problem);
+        groups.add(clear);
+        String subject = problem.getName() + "/" + clear.getName() + " flapping: " + count;
+        return new Notice(subject, subject + "\n\n" + body, TrapForwarder.distinct(groups));
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append(problem.getName()).append("/").append(clear.getName()).append(" by ");
+        str.append(field).append(", ").append(flaps.size()).append(" keys\n");
+        long now = clock.currentTimeMillis();
+        for (Map.Entry<String,Flap> entry : flaps.entrySet())
+        {
+            if (entry.getValue().flapping)
+            {
+                describe(str, entry.getKey(), entry.getValue(), now);
+                str.append("\n");
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Append one line, without the newline, describing a flapping key
+     */
+    private void describe(StringBuilder aStr, String aKey, Flap aFlap, long aNow)
+    {
+        aStr.append(aKey).append(" flapping since ").append(sdf.format(new Date(aFlap.since)));
+        aStr.append(", ").append(aFlap.countWithin(aNow, windowMillis));
+        aStr.append(" transitions in window, ").append(aFlap.suppressed);
+        aStr.append(" suppressed, now ").append(aFlap.problem ? "problem" : "cleared");
+    }
+
+    /**
+     * <code>Flap</code> is the state of one key, with a ring of its latest transitions.
+     */
+    private static class Flap
+    {
+        private final long[] times;
+        private int next;
+        private int total;
+        private boolean seen;
+        private boolean problem;
+        private boolean flapping;
+        private boolean settled; // stopped flapping since the last report
+        private long since;
+        private long lastSeen;
+        private int suppressed;
+
+        Flap(int aTransitions)
+        {
+            times = new long[aTransitions];
+        }
+
+        void transition(long aNow)
+        {
+            times[next] = aNow;
+            next = (next + 1) % times.length;
+            ++total;
+        }
+
+        /**
+         * @return time of the latest transition
+         */
+        long lastTransition()
+        {
+            return times[(next + times.length - 1) % times.length];
+        }
+
+        /**
+         * @return true if the ring is full and its oldest transition is within the window
+         */
+        boolean isFlapping(long aNow, long aWindow)
+        {
+            return total >= times.length && aNow - times[next] <= aWindow;
+        }
+
+        int countWithin(long aNow, long aWindow)
+        {
+            int count = 0;
+            for (int i = 0; i < Math.min(total, times.length); ++i)
+            {
+                if (aNow - times[i] <= aWindow)
+                {
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+}
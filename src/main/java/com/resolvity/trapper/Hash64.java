@@ -0,0 +1,63 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+/**
+ * <code>Hash64</code> is a small, allocation free 64 bit string hash (FNV-1a over the
+ * UTF-16 chars, finished with the MurmurHash3 mixer so that every output bit depends on
+ * every input bit). It is used for the fixed memory sets and sketches kept per group.
+ * @author justin.good
+ */
+public final class Hash64
+{
+    public static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Hash64()
+    {
+    }
+
+    /**
+     * @param aHash running hash, start with SEED
+     * @param aStr string to add, null is treated as empty
+     * @return updated running hash
+     */
+    public static long add(long aHash, CharSequence aStr)
+    {
+        long h = aHash;
+        if (aStr != null)
+        {
+            for (int i = 0; i < aStr.length(); ++i)
+            {
+                char c = aStr.charAt(i);
+                h = (h ^ (c & 0xff)) * PRIME;
+                h = (h ^ (c >>> 8)) * PRIME;
+            }
+        }
+        // separator, so ("ab", "c") and ("a", "bc") differ
+        return (h ^ 0xff) * PRIME;
+    }
+
+    /**
+     * @param aHash running hash
+     * @return well mixed final hash
+     */
+    public static long finish(long aHash)
+    {
+        long h = aHash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @param aStr string to hash
+     * @return finished hash of a single string
+     */
+    public static long hash(CharSequence aStr)
+    {
+        return finish(add(SEED, aStr));
+    }
+}
@@ -0,0 +1,139 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.Arrays;
+
+/**
+ * <code>HyperLogLog</code> estimates the number of distinct values it has seen using a
+ * fixed array of one byte registers. With the default precision of 10 that is 1KB and a
+ * typical error around 3%. Two sketches of the same precision merge by taking the larger
+ * register, which is how window sketches are folded into running totals.
+ * @author justin.good
+ */
+public class HyperLogLog
+{
+    public static final int DEFAULT_PRECISION = 10;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param aPrecision log2 of the number of registers, 4 to 16
+     */
+    public HyperLogLog(int aPrecision)
+    {
+        if (aPrecision < 4 || aPrecision > 16)
+        {
+            throw new IllegalArgumentException("precision must be 4 to 16: " + aPrecision);
+        }
+        precision = aPrecision;
+        registers = new byte[1 << aPrecision];
+    }
+
+    /**
+     * @param aValue value to count, null is ignored
+     */
+    public void offer(String aValue)
+    {
+        if (aValue != null)
+        {
+            offerHash(Hash64.hash(aValue));
+        }
+    }
+
+    /**
+     * @param aHash well mixed 64 bit hash of a value
+     */
+    public synchronized void offerHash(long aHash)
+    {
+        int index = (int) (aHash >>> (64 - precision));
+        // the guard bit bounds the rank when the remaining bits are all zero
+        long rest = (aHash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index])
+        {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values offered
+     */
+    public synchronized long estimate()
+    {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers)
+        {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+            {
+                ++zeros;
+            }
+        }
+
+        double alpha = alpha(m);
+        double raw = alpha * m * m / sum;
+        if (raw <= 2.5 * m && zeros > 0)
+        {
+            // linear counting is far better for small cardinalities
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(raw);
+    }
+
+    /**
+     * @param aRegisters number of registers, a power of two from 16
+     * @return bias correction of the raw estimate, as given by Flajolet et al.
+     */
+    private static double alpha(int aRegisters)
+    {
+        switch (aRegisters)
+        {
+        case 16:
+            return 0.673;
+        case 32:
+            return 0.697;
+        case 64:
+            return 0.709;
+        default:
+            return 0.7213 / (1 + 1.079 / aRegisters);
+        }
+    }
+
+    /**
+     * @param aOther sketch of the same precision whose values are added to ours
+     */
+    public void merge(HyperLogLog aOther)
+    {
+        if (aOther.precision != precision)
+        {
+            throw new IllegalArgumentException("precision mismatch");
+        }
+
+        byte[] other;
+        synchronized (aOther)
+        {
+            other = aOther.registers.clone();
+        }
+        synchronized (this)
+        {
+            for (int i = 0; i < registers.length; ++i)
+            {
+                if (other[i] > registers[i])
+                {
+                    registers[i] = other[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget everything
+     */
+    public synchronized void clear()
+    {
+        Arrays.fill(registers, (byte) 0);
+    }
+}
@@ -0,0 +1,20 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * <code>Mailer</code> delivers a finished email on behalf of a TrapForwarder. Normally
+ * that is the SmtpMailer; a replay or load test substitutes one which only records what
+ * would have been sent.
+ * @author justin.good
+ */
+public interface Mailer
+{
+    /**
+     * @param aMessage complete message, addressed and with its SMTP host in the session
+     * @throws MessagingException if the message could not be delivered
+     */
+    void send(Message aMessage) throws MessagingException;
+}
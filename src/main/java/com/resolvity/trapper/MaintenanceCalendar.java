@@ -0,0 +1,508 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+
+/**
+ * <code>MaintenanceCalendar</code> suppresses accepted traps during planned maintenance,
+ * instead of commenting groups out and restarting. A window names a group (or * for all),
+ * optionally a sender address or CIDR block, a start and end, and an optional daily or
+ * weekly repeat, written as a query string:
+ * <pre>
+ * group=timeout&amp;sender=10.0.112.0/24&amp;from=2026-10-20T01:00&amp;to=2026-10-20T03:00&amp;repeat=weekly
+ * </pre>
+ * Windows are kept one per line in a file, and may be added or removed at runtime through
+ * the liveness port ("/maintenance?group=...", "/maintenance?remove=id"), which needs
+ * the liveness token (see TrapperAlive).
+ * <p>
+ * Windows are compiled into an index: for each group, a list of scopes (sender ranges),
+ * each with the sorted, merged intervals of its windows over the next week, so a trap is
+ * checked with a binary search against whatever index is current, never waiting for one
+ * to be built. The index is rebuilt on every edit and daily by refresh(), which the
+ * classifier calls as it consolidates; as it covers a week, one a little past its day is
+ * still correct. Suppressed traps are counted per scope and archived to the
+ * "Maintenance" log category.
+ * @author justin.good
+ */
+public class MaintenanceCalendar implements TrapperAlive.Form
+{
+    public static final String ALL = "*";
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long HORIZON = 7 * DAY;
+    private static final String FORMAT = "yyyy-MM-dd'T'HH:mm";
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final Logger archive = Logger.getLogger("Maintenance");
+    private final File file;
+    private final Map<Integer,Window> windows = new LinkedHashMap<Integer,Window>();
+    private final ConcurrentMap<String,AtomicLong> counts =
+        new ConcurrentHashMap<String,AtomicLong>();
+    private final SimpleDateFormat sdf = new SimpleDateFormat(FORMAT);
+    private volatile Index index = new Index(Collections.<String,List<Scope>> emptyMap(), 0);
+    private int nextId = 1;
+
+    /**
+     * @param aFile file of windows, one per line, which is read now (if it exists) and
+     *            written after every edit
+     * @throws IOException if the file cannot be read
+     */
+    public MaintenanceCalendar(File aFile) throws IOException
+    {
+        file = aFile;
+        sdf.setLenient(false);
+        if (aFile.exists())
+        {
+            BufferedReader in = new BufferedReader(new FileReader(aFile));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#"))
+                    {
+                        Window window = parse(TrapperAlive.parseQuery(line));
+                        windows.put(nextId++, window);
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        compile(System.currentTimeMillis());
+        log.info("loaded " + windows.size() + " maintenance windows from " + aFile);
+    }
+
+    /**
+     * @param aGroup name of the accepting group
+     * @param aSender sender of the trap
+     * @param aNow current time in milliseconds
+     * @return true if the trap falls in a maintenance window
+     */
+    public boolean isSuppressed(String aGroup, InetAddress aSender, long aNow)
+    {
+        Index idx = index;
+        Scope scope = idx.find(aGroup, aSender, aNow);
+        if (scope == null)
+        {
+            scope = idx.find(ALL, aSender, aNow);
+        }
+        if (scope == null)
+        {
+            return false;
+        }
+        counter(scope.key).incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Rebuild the index if it is a day old; called off the trap threads
+     * @param aNow current time in milliseconds
+     */
+    public void refresh(long aNow)
+    {
+        if (aNow >= index.expires)
+        {
+            compile(aNow);
+        }
+    }
+
+    /**
+     * Record a suppressed trap in the maintenance archive
+     * @param aGroup name of the accepting group
+     * @param aPdu PDU
+     * @param aSender sender of the trap
+     */
+    public void archive(String aGroup, PDU aPdu, InetAddress aSender)
+    {
+        if (archive.isInfoEnabled())
+        {
+            archive.info(aGroup + " " + aSender.getHostAddress() + " " + aPdu);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<Integer,Window> entry : windows.entrySet())
+        {
+            str.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        str.append("\nsuppressed:\n");
+        for (Map.Entry<String,AtomicLong> entry : counts.entrySet())
+        {
+            str.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Add a window from group, sender, from, to and repeat parameters, or remove the one
+     * given by a remove parameter
+     * {@inheritDoc}
+     */
+    public synchronized String submit(Map<String,String> aQuery)
+    {
+        try
+        {
+            if (aQuery.containsKey("remove"))
+            {
+                Window removed = windows.remove(Integer.valueOf(aQuery.get("remove").trim()));
+                if (removed == null)
+                {
+                    return "no such window: " + aQuery.get("remove") + "\n";
+                }
+                compile(System.currentTimeMillis());
+                log.info("removed maintenance window " + removed);
+                save();
+                return "removed " + removed + "\n";
+            }
+
+            Window window = parse(aQuery);
+            int id = nextId++;
+            windows.put(id, window);
+            compile(System.currentTimeMillis());
+            log.info("added maintenance window " + window);
+            save();
+            return "added " + id + " " + window + "\n";
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return "error: " + ex.getMessage() + "\n";
+        }
+        catch (IOException ex)
+        {
+            log.error("unable to save " + file, ex);
+            return "error: unable to save " + file + "\n";
+        }
+    }
+
+    /**
+     * @param aKey scope key
+     * @return counter of traps suppressed by that scope
+     */
+    private AtomicLong counter(String aKey)
+    {
+        AtomicLong count = counts.get(aKey);
+        if (count == null)
+        {
+            AtomicLong existing = counts.putIfAbsent(aKey, count = new AtomicLong());
+            if (existing != null)
+            {
+                count = existing;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param aQuery window parameters
+     * @return Window
+     * @throws IllegalArgumentException if a parameter is missing or bad
+     */
+    private synchronized Window parse(Map<String,String> aQuery)
+    {
+        String group = get(aQuery, "group", ALL);
+        String sender = get(aQuery, "sender", null);
+        AddressRange range = null;
+        if (sender != null)
+        {
+            if (!AddressRange.isRange(sender))
+            {
+                sender = sender + ((sender.indexOf(':') >= 0) ? "/128" : "/32");
+            }
+            range = AddressRange.parse(sender);
+        }
+
+        long from;
+        long to;
+        try
+        {
+            from = sdf.parse(get(aQuery, "from", "")).getTime();
+            to = sdf.parse(get(aQuery, "to", "")).getTime();
+        }
+        catch (ParseException ex)
+        {
+            throw new IllegalArgumentException("from and to must be " + FORMAT);
+        }
+        if (to <= from)
+        {
+            throw new IllegalArgumentException("to must be after from");
+        }
+
+        String repeat = get(aQuery, "repeat", "none");
+        int days;
+        if (repeat.equals("none"))
+        {
+            days = 0;
+        }
+        else if (repeat.equals("daily"))
+        {
+            days = 1;
+        }
+        else if (repeat.equals("weekly"))
+        {
+            days = 7;
+        }
+        else
+        {
+            throw new IllegalArgumentException("repeat must be none, daily or weekly");
+        }
+        if (days > 0 && to - from >= days * DAY)
+        {
+            throw new IllegalArgumentException("window is longer than its repeat");
+        }
+
+        return new Window(group, range, from, to, days, sdf.format(from), sdf.format(to),
+            repeat);
+    }
+
+    private static String get(Map<String,String> aQuery, String aKey, String aDefault)
+    {
+        String value = aQuery.get(aKey);
+        return (value == null || value.trim().length() == 0) ? aDefault : value.trim();
+    }
+
+    /**
+     * Write every window to our file, replacing it
+     */
+    private void save() throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new FileWriter(tmp));
+        try
+        {
+            for (Window window : windows.values())
+            {
+                out.println(window);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+        {
+            throw new IOException("unable to replace " + file);
+        }
+    }
+
+    /**
+     * Build the index for the next HORIZON from our windows
+     * @param aNow current time in milliseconds
+     * @return the new index, which is also now in use
+     */
+    private synchronized Index compile(long aNow)
+    {
+        // intervals of each scope, before merging
+        Map<String,List<long[]>> intervals = new LinkedHashMap<String,List<long[]>>();
+        Map<String,Window> scopes = new HashMap<String,Window>();
+        Calendar cal = new GregorianCalendar();
+        long horizon = aNow + HORIZON;
+
+        for (Window window : windows.values())
+        {
+            String key = window.getScopeKey();
+            List<long[]> list = intervals.get(key);
+            if (list == null)
+            {
+                list = new ArrayList<long[]>();
+                intervals.put(key, list);
+                scopes.put(key, window);
+            }
+
+            long length = window.to - window.from;
+            cal.setTimeInMillis(window.from);
+            while (cal.getTimeInMillis() < horizon)
+            {
+                long start = cal.getTimeInMillis();
+                if (start + length > aNow)
+                {
+                    list.add(new long[] { start, start + length });
+                }
+                if (window.days == 0)
+                {
+                    break;
+                }
+                // calendar days, so a window keeps its local time across DST changes
+                cal.add(Calendar.DAY_OF_YEAR, window.days);
+            }
+        }
+
+        Map<String,List<Scope>> groups = new HashMap<String,List<Scope>>();
+        for (Map.Entry<String,List<long[]>> entry : intervals.entrySet())
+        {
+            Window window = scopes.get(entry.getKey());
+            List<Scope> list = groups.get(window.group);
+            if (list == null)
+            {
+                list = new ArrayList<Scope>();
+                groups.put(window.group, list);
+            }
+            list.add(new Scope(entry.getKey(), window.range, entry.getValue()));
+        }
+
+        index = new Index(groups, aNow + DAY);
+        return index;
+    }
+
+    /**
+     * <code>Window</code> is one configured maintenance window.
+     */
+    private static class Window
+    {
+        private final String group;
+        private final AddressRange range; // null means any sender
+        private final long from;
+        private final long to;
+        private final int days; // repeat period, 0 if none
+        private final String text;
+
+        Window(String aGroup, AddressRange aRange, long aFrom, long aTo, int aDays,
+               String aFromText, String aToText, String aRepeat)
+        {
+            group = aGroup;
+            range = aRange;
+            from = aFrom;
+            to = aTo;
+            days = aDays;
+            text = "group=" + aGroup + ((aRange != null) ? "&sender=" + aRange : "")
+                + "&from=" + aFromText + "&to=" + aToText
+                + ((aDays > 0) ? "&repeat=" + aRepeat : "");
+        }
+
+        String getScopeKey()
+        {
+            return group + " " + ((range != null) ? range.toString() : ALL);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            return text;
+        }
+    }
+
+    /**
+     * <code>Scope</code> is the merged intervals of every window for one group and sender
+     * range.
+     */
+    private static class Scope
+    {
+        private final String key;
+        private final AddressRange range;
+        private final long[] starts;
+        private final long[] ends;
+
+        Scope(String aKey, AddressRange aRange, List<long[]> aIntervals)
+        {
+            key = aKey;
+            range = aRange;
+            Collections.sort(aIntervals, new Comparator<long[]>()
+            {
+                public int compare(long[] aLeft, long[] aRight)
+                {
+                    return (aLeft[0] < aRight[0]) ? -1 : (aLeft[0] > aRight[0]) ? 1 : 0;
+                }
+            });
+
+            long[] s = new long[aIntervals.size()];
+            long[] e = new long[aIntervals.size()];
+            int n = 0;
+            for (long[] interval : aIntervals)
+            {
+                if (n > 0 && interval[0] <= e[n - 1])
+                {
+                    e[n - 1] = Math.max(e[n - 1], interval[1]);
+                }
+                else
+                {
+                    s[n] = interval[0];
+                    e[n] = interval[1];
+                    ++n;
+                }
+            }
+            starts = new long[n];
+            ends = new long[n];
+            System.arraycopy(s, 0, starts, 0, n);
+            System.arraycopy(e, 0, ends, 0, n);
+        }
+
+        /**
+         * @return true if aNow falls in one of our intervals
+         */
+        boolean covers(long aNow)
+        {
+            int i = Arrays.binarySearch(starts, aNow);
+            if (i < 0)
+            {
+                i = -i - 2; // last interval starting before aNow
+            }
+            return i >= 0 && aNow < ends[i];
+        }
+    }
+
+    /**
+     * <code>Index</code> is an immutable, compiled calendar.
+     */
+    private static class Index
+    {
+        private final Map<String,List<Scope>> groups;
+        private final long expires;
+
+        Index(Map<String,List<Scope>> aGroups, long aExpires)
+        {
+            groups = aGroups;
+            expires = aExpires;
+        }
+
+        /**
+         * @return scope covering the trap, or null
+         */
+        Scope find(String aGroup, InetAddress aSender, long aNow)
+        {
+            List<Scope> list = groups.get(aGroup);
+            if (list == null)
+            {
+                return null;
+            }
+            for (Scope scope : list)
+            {
+                if ((scope.range == null || scope.range.contains(aSender))
+                    && scope.covers(aNow))
+                {
+                    return scope;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * <code>NioUdpTransportMapping</code> is a UDP transport built on NIO
+ * <code>DatagramChannel</code>s with several reader threads. Where the JVM and operating
+ * system offer SO_REUSEPORT (Java 9 and later, on Linux and the BSDs), each reader binds
+ * a channel of its own to the port and the kernel spreads datagrams across them by
+ * sender, so readers never contend on one socket; otherwise every reader receives on
+ * one shared channel. Each reader owns a direct receive buffer which it reuses for every
+ * datagram, and only copies the bytes it actually received before handing them to the
+ * message dispatcher. While one reader is dispatching (which may block on a busy
+ * dispatcher pool), the others keep draining their sockets.
+ * <p>
+ * An optional <code>TrapPrefilter</code> may drop datagrams from ignored senders before
+ * they are copied or decoded, and an optional <code>TrapRecorder</code> captures every
+ * datagram which passes it.
+ * <p>
+ * The socket receive buffer (SO_RCVBUF) may be raised so that bursts are absorbed by the
+ * kernel rather than dropped; a size of 0 leaves the operating system default in place.
+ * It applies to each channel, so with one per reader the kernel buffers that many.
+ * @author justin.good
+ */
+public class NioUdpTransportMapping extends UdpTransportMapping
+{
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final int numReaders;
+    private final int receiveBufferSize;
+    private final List<Thread> readers = new ArrayList<Thread>();
+    // one per reader with SO_REUSEPORT, else one shared by all; guarded by this
+    private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+    private volatile TrapPrefilter prefilter;
+    private volatile TrapRecorder recorder;
+
+    /**
+     * @param aAddress UdpAddress to bind to
+     * @param aReaders number of reader threads, at least one
+     * @param aReceiveBufferSize SO_RCVBUF size in bytes, or 0 for the OS default
+     */
+    public NioUdpTransportMapping(UdpAddress aAddress, int aReaders, int aReceiveBufferSize)
+    {
+        super(aAddress);
+        numReaders = Math.max(1, aReaders);
+        receiveBufferSize = aReceiveBufferSize;
+    }
+
+    /**
+     * @param aPrefilter TrapPrefilter applied to each datagram, or null for none
+     */
+    public void setPrefilter(TrapPrefilter aPrefilter)
+    {
+        prefilter = aPrefilter;
+    }
+
+    /**
+     * @param aRecorder TrapRecorder capturing each accepted datagram, or null for none
+     */
+    public void setRecorder(TrapRecorder aRecorder)
+    {
+        recorder = aRecorder;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void listen() throws IOException
+    {
+        if (!channels.isEmpty())
+        {
+            throw new IOException("already listening on " + udpAddress);
+        }
+
+        DatagramChannel first = open(numReaders > 1);
+        channels.add(first);
+        try
+        {
+            first.socket().bind(
+                new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort()));
+            if (numReaders > 1 && isReusePort(first))
+            {
+                // the others join the port the first was given, which may have been 0
+                InetSocketAddress bound =
+                    new InetSocketAddress(udpAddress.getInetAddress(),
+                                          first.socket().getLocalPort());
+                for (int i = 1; i < numReaders; ++i)
+                {
+                    DatagramChannel next = open(true);
+                    channels.add(next);
+                    next.socket().bind(bound);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            closeChannels();
+            throw ex;
+        }
+
+        int actual = first.socket().getReceiveBufferSize();
+        if (receiveBufferSize > 0 && actual < receiveBufferSize)
+        {
+            log.warn("requested receive buffer of " + receiveBufferSize + " but got "
+                + actual + ", check net.core.rmem_max");
+        }
+        log.info("listening on " + udpAddress + " with " + numReaders + " reader(s) on "
+            + channels.size() + " socket(s), receive buffer " + actual);
+
+        for (int i = 0; i < numReaders; ++i)
+        {
+            Thread reader = new Reader(channels.get(i % channels.size()), i);
+            readers.add(reader);
+            reader.start();
+        }
+    }
+
+    /**
+     * @param aReusePort true to set SO_REUSEPORT, if this JVM and OS have it
+     * @return unbound blocking channel with our receive buffer
+     * @throws IOException
+     */
+    private DatagramChannel open(boolean aReusePort) throws IOException
+    {
+        DatagramChannel ch = DatagramChannel.open();
+        try
+        {
+            ch.configureBlocking(true);
+            if (receiveBufferSize > 0)
+            {
+                ch.socket().setReceiveBufferSize(receiveBufferSize);
+            }
+            if (aReusePort)
+            {
+                setReusePort(ch);
+            }
+        }
+        catch (IOException ex)
+        {
+            ch.close();
+            throw ex;
+        }
+        return ch;
+    }
+
+    /**
+     * Set SO_REUSEPORT through reflection, since StandardSocketOptions.SO_REUSEPORT only
+     * exists from Java 9 and not every OS supports it
+     * @param aChannel unbound channel
+     * @return true if the option was set
+     */
+    static boolean setReusePort(DatagramChannel aChannel)
+    {
+        try
+        {
+            Class<?> options = Class.forName("java.net.StandardSocketOptions");
+            Object reusePort = options.getField("SO_REUSEPORT").get(null);
+            Set<?> supported = (Set<?>) DatagramChannel.class.getMethod("supportedOptions")
+                .invoke(aChannel);
+            if (!supported.contains(reusePort))
+            {
+                return false;
+            }
+            Method setOption = DatagramChannel.class.getMethod("setOption",
+                Class.forName("java.net.SocketOption"), Object.class);
+            setOption.invoke(aChannel, reusePort, Boolean.TRUE);
+            return true;
+        }
+        catch (Exception ex)
+        {
+            return false; // older JVM, or the OS refused it
+        }
+    }
+
+    /**
+     * @param aChannel channel which setReusePort() was tried on
+     * @return true if SO_REUSEPORT is set on it
+     */
+    static boolean isReusePort(DatagramChannel aChannel)
+    {
+        try
+        {
+            Class<?> options = Class.forName("java.net.StandardSocketOptions");
+            Object reusePort = options.getField("SO_REUSEPORT").get(null);
+            Method getOption = DatagramChannel.class.getMethod("getOption",
+                Class.forName("java.net.SocketOption"));
+            return Boolean.TRUE.equals(getOption.invoke(aChannel, reusePort));
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isListening()
+    {
+        return !channels.isEmpty();
+    }
+
+    /**
+     * @return number of sockets receiving on our port, one per reader with SO_REUSEPORT
+     */
+    public synchronized int getSocketCount()
+    {
+        return channels.size();
+    }
+
+    /**
+     * @return port listened on, which is the one bound if ours was 0, or -1 if closed
+     */
+    public synchronized int getLocalPort()
+    {
+        return channels.isEmpty() ? -1 : channels.get(0).socket().getLocalPort();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void close() throws IOException
+    {
+        if (channels.isEmpty())
+        {
+            return;
+        }
+
+        // closing the channels wakes every reader blocked in receive()
+        closeChannels();
+
+        for (Thread reader : readers)
+        {
+            try
+            {
+                reader.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        readers.clear();
+    }
+
+    private void closeChannels()
+    {
+        for (DatagramChannel ch : channels)
+        {
+            try
+            {
+                ch.close();
+            }
+            catch (IOException ex)
+            {
+                log.warn("unable to close a socket on " + udpAddress, ex);
+            }
+        }
+        channels.clear();
+    }
+
+    /** {@inheritDoc} */
+    public void sendMessage(Address aAddress, byte[] aMessage) throws IOException
+    {
+        DatagramChannel ch;
+        synchronized (this)
+        {
+            ch = channels.isEmpty() ? null : channels.get(0);
+        }
+        if (ch == null)
+        {
+            throw new IOException("not listening on " + udpAddress);
+        }
+
+        UdpAddress target = (UdpAddress) aAddress;
+        ch.send(ByteBuffer.wrap(aMessage),
+                new InetSocketAddress(target.getInetAddress(), target.getPort()));
+    }
+
+    /**
+     * <code>Reader</code> receives datagrams into its own direct buffer and dispatches a
+     * right-sized heap copy of each.
+     */
+    private class Reader extends Thread
+    {
+        private final DatagramChannel source;
+        private final ByteBuffer buffer;
+
+        public Reader(DatagramChannel aSource, int aIndex)
+        {
+            source = aSource;
+            buffer = ByteBuffer.allocateDirect(getMaxInboundMessageSize());
+            setDaemon(true);
+            setName("UdpReader-" + udpAddress.getPort() + "-" + aIndex);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void run()
+        {
+            while (source.isOpen())
+            {
+                try
+                {
+                    buffer.clear();
+                    SocketAddress from = source.receive(buffer);
+                    if (from == null)
+                    {
+                        continue;
+                    }
+                    buffer.flip();
+
+                    InetSocketAddress inet = (InetSocketAddress) from;
+                    TrapPrefilter filter = prefilter;
+                    if (filter != null && !filter.accept(inet.getAddress(), buffer))
+                    {
+                        continue;
+                    }
+
+                    // the dispatcher may process asynchronously, so it gets its own copy
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+
+                    TrapRecorder capture = recorder;
+                    if (capture != null)
+                    {
+                        capture.record(System.currentTimeMillis(), inet.getAddress(),
+                                       inet.getPort(), bytes);
+                    }
+
+                    fireProcessMessage(new UdpAddress(inet.getAddress(), inet.getPort()),
+                                       ByteBuffer.wrap(bytes));
+                }
+                catch (AsynchronousCloseException ex)
+                {
+                    break; // closed by close()
+                }
+                catch (IOException ex)
+                {
+                    log.error("error receiving on " + udpAddress, ex);
+                }
+                catch (RuntimeException ex)
+                {
+                    log.error("error dispatching datagram from " + udpAddress, ex);
+                }
+            }
+        }
+    }
+}
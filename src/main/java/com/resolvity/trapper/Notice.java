@@ -0,0 +1,61 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>Notice</code> is one plain text email built while the classifier's lock was held
+ * (a storm summary, a flapping report or an escalation), to be sent once it no longer
+ * is, so traps are not held up behind it. It goes to every forwarder at once through
+ * FanOut.
+ * @author justin.good
+ */
+public class Notice
+{
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final String subject;
+    private final String text;
+    private final List<TrapForwarder> forwarders;
+
+    /**
+     * @param aSubject subject line
+     * @param aText text of the email
+     * @param aForwarders forwarders to send to
+     */
+    Notice(String aSubject, String aText, Collection<TrapForwarder> aForwarders)
+    {
+        subject = aSubject;
+        text = aText;
+        forwarders = new ArrayList<TrapForwarder>(aForwarders);
+    }
+
+    /**
+     * @return subject line
+     */
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    /**
+     * Send to each forwarder, without holding any lock of the classifier
+     */
+    public void send()
+    {
+        if (log.isInfoEnabled())
+        {
+            log.info("sending " + subject + " to " + forwarders);
+        }
+        FanOut.send(forwarders, new FanOut.Send()
+        {
+            public boolean send(TrapForwarder aForwarder)
+            {
+                return aForwarder.sendText(subject, text);
+            }
+        });
+    }
+}
@@ -0,0 +1,348 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>PriorityLanes</code> runs accepted traps through separate queues ("lanes"), one
+ * per priority, so a flood in a bulk group cannot delay the groups that page someone.
+ * Workers pick the next lane by smooth weighted round robin, skipping empty lanes, so an
+ * idle high priority lane costs nothing and a busy one gets its share no matter how deep
+ * the others are.
+ * <p>
+ * Each lane holds at most a fixed number of queued traps, beyond which submit drops
+ * them, so a flood costs bounded memory and only its own lane's traps. Since a worker
+ * stuck on a slow destination holds up whatever lane it serves, some of the workers can
+ * be reserved for the top (heaviest) lane, which the others still serve too.
+ * <p>
+ * Each lane keeps its own queue wait and service time figures, see <code>render</code>.
+ * @author justin.good
+ */
+public class PriorityLanes implements TrapperAlive.Page
+{
+    public static final String DEFAULT_LANE = "normal";
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DRAIN_POLL_MS = 50;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final Map<String,Lane> lanes = new LinkedHashMap<String,Lane>();
+    private final Lane[] order;
+    private final Lane top;
+    private final int capacity;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AtomicInteger pending = new AtomicInteger(); // queued or running
+
+    /**
+     * @param aWeights lane name to relative weight, a "normal" lane is always present
+     * @param aThreads number of worker threads
+     * @param aReserved how many of the workers run only the top lane, at most
+     *            aThreads - 1 so that every lane keeps a worker
+     * @param aCapacity most traps queued on each lane
+     */
+    public PriorityLanes(Map<String,Integer> aWeights, int aThreads, int aReserved,
+                         int aCapacity)
+    {
+        for (Map.Entry<String,Integer> entry : aWeights.entrySet())
+        {
+            lanes.put(entry.getKey(), new Lane(entry.getKey(), entry.getValue()));
+        }
+        if (!lanes.containsKey(DEFAULT_LANE))
+        {
+            lanes.put(DEFAULT_LANE, new Lane(DEFAULT_LANE, 1));
+        }
+        order = lanes.values().toArray(new Lane[lanes.size()]);
+        capacity = Math.max(1, aCapacity);
+
+        Lane heaviest = order[0];
+        for (Lane lane : order)
+        {
+            if (lane.weight > heaviest.weight)
+            {
+                heaviest = lane;
+            }
+        }
+        top = heaviest;
+
+        int reserved = Math.max(0, Math.min(aReserved, aThreads - 1));
+        for (int i = 0; i < aThreads; ++i)
+        {
+            Thread worker = new Worker(i, i < reserved);
+            workers.add(worker);
+            worker.start();
+        }
+        log.info("lanes " + lanes.values() + " on " + aThreads + " worker(s), " + reserved
+            + " reserved for " + top.name + ", " + capacity + " queued per lane");
+    }
+
+    /**
+     * @param aLane lane name
+     * @return true if the lane exists; submit sends unknown names to the default lane
+     */
+    public boolean hasLane(String aLane)
+    {
+        return lanes.containsKey(aLane);
+    }
+
+    /**
+     * @return lane names, in configuration order
+     */
+    public List<String> getLaneNames()
+    {
+        return Collections.unmodifiableList(new ArrayList<String>(lanes.keySet()));
+    }
+
+    /**
+     * @return name of the top lane, which reserved workers run
+     */
+    public String getTopLane()
+    {
+        return top.name;
+    }
+
+    /**
+     * Queue some work on the given lane, unless it is full
+     * @param aLane lane name, unknown names go to the default lane
+     * @param aTask work to run
+     * @return false if the lane was full and the task was dropped
+     */
+    public synchronized boolean submit(String aLane, Runnable aTask)
+    {
+        Lane lane = lanes.get(aLane);
+        if (lane == null)
+        {
+            lane = lanes.get(DEFAULT_LANE);
+        }
+        if (lane.queue.size() >= capacity)
+        {
+            if (lane.dropped.getAndIncrement() == 0)
+            {
+                log.warn("lane " + lane.name + " is full at " + capacity
+                    + ", dropping its traps");
+            }
+            return false;
+        }
+        pending.incrementAndGet();
+        lane.queue.add(new Entry(aTask, System.nanoTime()));
+        notifyAll(); // reserved workers wait for the top lane only
+        return true;
+    }
+
+    /**
+     * Wait for the next entry a worker may run
+     * @param aReserved true for a worker reserved for the top lane
+     * @return next entry to run
+     * @throws InterruptedException when the worker is stopped
+     */
+    private synchronized Entry take(boolean aReserved) throws InterruptedException
+    {
+        while (true)
+        {
+            Entry entry = aReserved ? poll(top) : next();
+            if (entry != null)
+            {
+                return entry;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Smooth weighted round robin (as in nginx) over the lanes that have work.
+     * @return next entry to run, or null if every lane is empty
+     */
+    private Entry next()
+    {
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : order)
+        {
+            if (lane.queue.isEmpty())
+            {
+                continue;
+            }
+            lane.current += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.current > best.current)
+            {
+                best = lane;
+            }
+        }
+
+        if (best == null)
+        {
+            return null;
+        }
+        best.current -= total;
+        return poll(best);
+    }
+
+    /**
+     * @param aLane Lane
+     * @return oldest entry on the lane, or null if it is empty
+     */
+    private Entry poll(Lane aLane)
+    {
+        Entry entry = aLane.queue.poll();
+        if (entry != null)
+        {
+            entry.lane = aLane;
+        }
+        return entry;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        StringBuilder str = new StringBuilder();
+        for (Lane lane : order)
+        {
+            str.append(lane.describe()).append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Wait for every queued task to finish, then stop the workers
+     * @param aDeadline time in milliseconds to give up waiting
+     * @return true if every task finished
+     * @throws InterruptedException
+     */
+    public boolean drain(long aDeadline) throws InterruptedException
+    {
+        while (pending.get() > 0 && System.currentTimeMillis() < aDeadline)
+        {
+            Thread.sleep(DRAIN_POLL_MS);
+        }
+        stop();
+        return pending.get() == 0;
+    }
+
+    /**
+     * Stop the workers once they finish their current task
+     */
+    public void stop()
+    {
+        for (Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+    }
+
+    private static class Entry
+    {
+        private final Runnable task;
+        private final long queuedAt;
+        private Lane lane;
+
+        public Entry(Runnable aTask, long aQueuedAt)
+        {
+            task = aTask;
+            queuedAt = aQueuedAt;
+        }
+    }
+
+    private static class Lane
+    {
+        private final String name;
+        private final int weight;
+        private final Queue<Entry> queue = new LinkedList<Entry>(); // guarded by PriorityLanes
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong serviceNanos = new AtomicLong();
+        private int current; // guarded by PriorityLanes
+
+        public Lane(String aName, int aWeight)
+        {
+            name = aName;
+            weight = Math.max(1, aWeight);
+        }
+
+        public void record(long aWait, long aService)
+        {
+            count.incrementAndGet();
+            waitNanos.addAndGet(aWait);
+            serviceNanos.addAndGet(aService);
+
+            long max = maxWaitNanos.get();
+            while (aWait > max && !maxWaitNanos.compareAndSet(max, aWait))
+            {
+                max = maxWaitNanos.get();
+            }
+        }
+
+        public String describe()
+        {
+            long n = count.get();
+            long avgWait = (n == 0) ? 0 : waitNanos.get() / n / NANOS_PER_MILLI;
+            long avgService = (n == 0) ? 0 : serviceNanos.get() / n / NANOS_PER_MILLI;
+            return name + " weight=" + weight + " depth=" + queue.size() + " dropped="
+                + dropped.get() + " count=" + n + " avgWaitMs=" + avgWait + " maxWaitMs="
+                + (maxWaitNanos.get() / NANOS_PER_MILLI) + " avgServiceMs=" + avgService;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            return name + "/" + weight;
+        }
+    }
+
+    private class Worker extends Thread
+    {
+        private final boolean reserved;
+
+        public Worker(int aIndex, boolean aReserved)
+        {
+            reserved = aReserved;
+            setDaemon(true);
+            setName(aReserved ? "Lane-" + aIndex + "-" + top.name : "Lane-" + aIndex);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void run()
+        {
+            while (!isInterrupted())
+            {
+                Entry entry;
+                try
+                {
+                    entry = take(reserved);
+                }
+                catch (InterruptedException ex)
+                {
+                    break;
+                }
+
+                long start = System.nanoTime();
+                try
+                {
+                    entry.task.run();
+                }
+                catch (RuntimeException ex)
+                {
+                    log.error("error in lane " + entry.lane.name, ex);
+                }
+                finally
+                {
+                    // an Error still ends the task, or pending would never drain
+                    entry.lane.record(start - entry.queuedAt, System.nanoTime() - start);
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,533 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>RetrySpool</code> keeps emails which no SMTP server in a forwarder's list would
+ * take, and retries them until they are delivered or too old. Messages are queued per
+ * destination (the forwarder's addresses) and each destination backs off on its own,
+ * doubling from the minimum to the maximum delay; a destination with a backlog queues
+ * new messages behind it, so its order is preserved.
+ * <p>
+ * The spool is an append-only journal of added and finished messages, synced on every
+ * add, so the backlog survives a restart and is drained, in order, on startup. The
+ * journal is compacted on startup and truncated whenever the spool empties. A message
+ * is stored as sent, Message-ID included, and keeps that ID on every retry, so a
+ * relay which accepted a message whose reply we never saw can recognise the repeat.
+ * @author justin.good
+ */
+public class RetrySpool implements TrapperAlive.Page
+{
+    private static final int ADD = 1;
+    private static final int DONE = 2;
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long IDLE_WAIT = 1000L;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final File journal;
+    private final Mailer mailer;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final long maxAge;
+    private final Map<String,Destination> destinations =
+        new LinkedHashMap<String,Destination>(); // guarded by this
+    private final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss");
+    private DataOutputStream out; // guarded by this
+    private FileOutputStream file;
+    private long nextId = 1;
+    private int depth;
+    private long spooled;
+    private long delivered;
+    private long expired;
+    private volatile boolean running;
+
+    /**
+     * @param aDir directory holding the journal, created if need be
+     * @param aMailer Mailer used for retries
+     * @param aMinSeconds delay before the first retry of a destination
+     * @param aMaxSeconds longest delay between retries of a destination
+     * @param aMaxHours messages older than this are given up on
+     * @throws IOException if the journal cannot be read or written
+     */
+    public RetrySpool(File aDir, Mailer aMailer, int aMinSeconds, int aMaxSeconds,
+                      int aMaxHours) throws IOException
+    {
+        if (!aDir.isDirectory() && !aDir.mkdirs())
+        {
+            throw new IOException("unable to create " + aDir);
+        }
+        journal = new File(aDir, "spool.log");
+        mailer = aMailer;
+        minBackoff = Math.max(1, aMinSeconds) * 1000L;
+        maxBackoff = Math.max(minBackoff, aMaxSeconds * 1000L);
+        maxAge = Math.max(1, aMaxHours) * HOUR;
+
+        load();
+        rewrite();
+        if (depth > 0)
+        {
+            log.warn("draining " + depth + " spooled emails from " + journal);
+        }
+    }
+
+    /**
+     * Start the thread which retries due destinations
+     */
+    public void start()
+    {
+        running = true;
+        Thread thread = new Thread("RetrySpool")
+        {
+            /** {@inheritDoc} */
+            @Override
+            public void run()
+            {
+                while (running)
+                {
+                    try
+                    {
+                        if (!retryNext(System.currentTimeMillis()))
+                        {
+                            synchronized (RetrySpool.this)
+                            {
+                                RetrySpool.this.wait(IDLE_WAIT);
+                            }
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        break;
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        log.error("retry failed", ex);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param aKey destination, the forwarder's addresses
+     * @return true if messages to the destination are waiting, so new ones must queue
+     */
+    public synchronized boolean hasBacklog(String aKey)
+    {
+        Destination dest = destinations.get(aKey);
+        return dest != null && !dest.queue.isEmpty();
+    }
+
+    /**
+     * @param aKey destination, the forwarder's addresses
+     * @param aHosts SMTP servers to retry through, in order
+     * @param aMessage message as last attempted
+     * @return true if the message is spooled
+     */
+    public boolean add(String aKey, List<String> aHosts, Message aMessage)
+    {
+        byte[] bytes;
+        try
+        {
+            // as sent, so the Message-ID is kept; one never sent gets its ID now
+            if (aMessage.getHeader("Message-ID") == null)
+            {
+                aMessage.saveChanges();
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            aMessage.writeTo(buf);
+            bytes = buf.toByteArray();
+        }
+        catch (Exception ex)
+        {
+            log.error("unable to spool email to " + aKey, ex);
+            return false;
+        }
+
+        synchronized (this)
+        {
+            Entry entry = new Entry(nextId++, System.currentTimeMillis(), aKey,
+                                    new ArrayList<String>(aHosts), bytes);
+            try
+            {
+                writeAdd(entry);
+                out.flush();
+                file.getFD().sync();
+            }
+            catch (IOException ex)
+            {
+                log.error("unable to journal email to " + aKey + ", kept in memory", ex);
+            }
+            enqueue(entry);
+            ++spooled;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Stop retrying and close the journal; whatever is left is retried on restart
+     */
+    public synchronized void close()
+    {
+        running = false;
+        notifyAll();
+        try
+        {
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            log.error("unable to close " + journal, ex);
+        }
+    }
+
+    /**
+     * @return messages waiting
+     */
+    public synchronized int getDepth()
+    {
+        return depth;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        long now = System.currentTimeMillis();
+        StringBuilder str = new StringBuilder();
+        str.append(depth).append(" waiting, ").append(spooled).append(" spooled, ");
+        str.append(delivered).append(" delivered, ").append(expired).append(" expired\n");
+        for (Destination dest : destinations.values())
+        {
+            if (dest.queue.isEmpty())
+            {
+                continue;
+            }
+            Entry head = dest.queue.getFirst();
+            str.append(dest.key).append(": ").append(dest.queue.size());
+            str.append(" waiting, oldest ").append((now - head.time) / 1000).append("s");
+            str.append(", next try ").append(sdf.format(new Date(dest.nextAttempt)));
+            str.append(" (backoff ").append(dest.backoff / 1000).append("s)\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Try the oldest message of the first destination which is due
+     * @param aNow current time in milliseconds
+     * @return true if a message was tried
+     */
+    boolean retryNext(long aNow)
+    {
+        Destination dest = null;
+        Entry entry = null;
+        synchronized (this)
+        {
+            for (Destination d : destinations.values())
+            {
+                if (!d.queue.isEmpty() && d.nextAttempt <= aNow)
+                {
+                    dest = d;
+                    entry = d.queue.getFirst();
+                    break;
+                }
+            }
+        }
+        if (entry == null)
+        {
+            return false;
+        }
+
+        // sent outside the lock, so forwarders may spool meanwhile
+        boolean sent = attempt(entry);
+
+        synchronized (this)
+        {
+            if (sent)
+            {
+                ++delivered;
+                dest.backoff = 0;
+                finish(dest);
+            }
+            else if (aNow - entry.time > maxAge)
+            {
+                ++expired;
+                log.error("giving up on email to " + dest.key + " spooled "
+                    + new Date(entry.time));
+                finish(dest);
+            }
+            else
+            {
+                dest.backoff = (dest.backoff == 0) ? minBackoff
+                    : Math.min(maxBackoff, dest.backoff * 2);
+                dest.nextAttempt = aNow + dest.backoff;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param aEntry spooled message
+     * @return true if some host took it
+     */
+    private boolean attempt(Entry aEntry)
+    {
+        for (String smtp : aEntry.hosts)
+        {
+            try
+            {
+                Session session = TrapForwarder.createSession(smtp);
+                mailer.send(new SpooledMessage(session,
+                                               new ByteArrayInputStream(aEntry.bytes)));
+                if (log.isInfoEnabled())
+                {
+                    log.info("delivered spooled email to " + aEntry.key + " via " + smtp);
+                }
+                return true;
+            }
+            catch (MessagingException ex)
+            {
+                log.warn("retry to " + aEntry.key + " via " + smtp + " failed: " + ex);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the head of the destination's queue, journaling it as done
+     * @param aDest Destination whose oldest message is finished
+     */
+    private void finish(Destination aDest)
+    {
+        Entry entry = aDest.queue.removeFirst();
+        --depth;
+        try
+        {
+            if (depth == 0)
+            {
+                // nothing left to recover, start an empty journal
+                out.close();
+                open(false);
+            }
+            else
+            {
+                out.writeByte(DONE);
+                out.writeLong(entry.id);
+                out.flush();
+            }
+        }
+        catch (IOException ex)
+        {
+            log.error("unable to journal delivery to " + aDest.key, ex);
+        }
+    }
+
+    private void enqueue(Entry aEntry)
+    {
+        Destination dest = destinations.get(aEntry.key);
+        if (dest == null)
+        {
+            dest = new Destination(aEntry.key);
+            destinations.put(aEntry.key, dest);
+        }
+        dest.queue.add(aEntry);
+        ++depth;
+    }
+
+    /**
+     * Read the journal, keeping messages added and not done, in order
+     * @throws IOException
+     */
+    private void load() throws IOException
+    {
+        if (!journal.exists())
+        {
+            return;
+        }
+        Map<Long,Entry> live = new LinkedHashMap<Long,Entry>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(journal)));
+        try
+        {
+            while (true)
+            {
+                int type = in.read();
+                if (type == ADD)
+                {
+                    Entry entry = readAdd(in);
+                    live.put(entry.id, entry);
+                    nextId = Math.max(nextId, entry.id + 1);
+                }
+                else if (type == DONE)
+                {
+                    live.remove(in.readLong());
+                }
+                else
+                {
+                    break; // end, or a record cut short
+                }
+            }
+        }
+        catch (EOFException ex)
+        {
+            log.warn("ignoring incomplete record at the end of " + journal);
+        }
+        finally
+        {
+            in.close();
+        }
+        for (Entry entry : live.values())
+        {
+            enqueue(entry);
+        }
+    }
+
+    /**
+     * Replace the journal with just the messages waiting, then append to it
+     * @throws IOException
+     */
+    private void rewrite() throws IOException
+    {
+        File tmp = new File(journal.getPath() + ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            for (Destination dest : destinations.values())
+            {
+                for (Entry entry : dest.queue)
+                {
+                    writeAdd(entry);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(journal) && !(journal.delete() && tmp.renameTo(journal)))
+        {
+            throw new IOException("unable to replace " + journal);
+        }
+        open(true);
+    }
+
+    private void open(boolean aAppend) throws IOException
+    {
+        file = new FileOutputStream(journal, aAppend);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    private void writeAdd(Entry aEntry) throws IOException
+    {
+        out.writeByte(ADD);
+        out.writeLong(aEntry.id);
+        out.writeLong(aEntry.time);
+        out.writeUTF(aEntry.key);
+        out.writeShort(aEntry.hosts.size());
+        for (String host : aEntry.hosts)
+        {
+            out.writeUTF(host);
+        }
+        out.writeInt(aEntry.bytes.length);
+        out.write(aEntry.bytes);
+    }
+
+    private static Entry readAdd(DataInputStream aIn) throws IOException
+    {
+        long id = aIn.readLong();
+        long time = aIn.readLong();
+        String key = aIn.readUTF();
+        String[] hosts = new String[aIn.readUnsignedShort()];
+        for (int i = 0; i < hosts.length; ++i)
+        {
+            hosts[i] = aIn.readUTF();
+        }
+        byte[] bytes = new byte[aIn.readInt()];
+        aIn.readFully(bytes);
+        return new Entry(id, time, key, Arrays.asList(hosts), bytes);
+    }
+
+    /**
+     * <code>Entry</code> is one spooled message.
+     */
+    private static class Entry
+    {
+        final long id;
+        final long time;
+        final String key;
+        final List<String> hosts;
+        final byte[] bytes;
+
+        Entry(long aId, long aTime, String aKey, List<String> aHosts, byte[] aBytes)
+        {
+            id = aId;
+            time = aTime;
+            key = aKey;
+            hosts = aHosts;
+            bytes = aBytes;
+        }
+    }
+
+    /**
+     * <code>Destination</code> is the queue and backoff of one forwarder's addresses.
+     */
+    private static class Destination
+    {
+        final String key;
+        final LinkedList<Entry> queue = new LinkedList<Entry>();
+        long backoff; // 0 until a retry fails
+        long nextAttempt;
+
+        Destination(String aKey)
+        {
+            key = aKey;
+        }
+    }
+
+    /**
+     * <code>SpooledMessage</code> keeps the Message-ID it was spooled with, where a
+     * MimeMessage would make a new one each time it is sent.
+     */
+    private static class SpooledMessage extends MimeMessage
+    {
+        SpooledMessage(Session aSession, InputStream aIn) throws MessagingException
+        {
+            super(aSession, aIn);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void updateMessageID()
+        {
+            // keep the original
+        }
+    }
+}
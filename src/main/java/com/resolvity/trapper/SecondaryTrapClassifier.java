@@ -4,9 +4,6 @@ package com.resolvity.trapper;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
 
 import org.snmp4j.CommandResponderEvent;
@@ -20,7 +17,7 @@ public class SecondaryTrapClassifier extends TrapClassifier
 {
     private final URL primary;
     private boolean usePrimary;
-    private Date lastCheck;
+    private long lastCheck; // 0 if never checked
     private int checkSeconds;
 
     /**
@@ -59,13 +56,11 @@ public class SecondaryTrapClassifier extends TrapClassifier
      */
     private boolean usePrimary()
     {
-        Calendar cal = new GregorianCalendar();
-        cal.add(Calendar.SECOND, -checkSeconds); // now - checkSeconds
-
-        if (lastCheck == null || lastCheck.before(cal.getTime()))
+        final long now = getClock().currentTimeMillis();
+        if (lastCheck == 0 || lastCheck < now - checkSeconds * 1000L)
         {
             usePrimary = primaryIsAlive();
-            lastCheck = new Date(); // now
+            lastCheck = now;
         }
 
         return usePrimary;
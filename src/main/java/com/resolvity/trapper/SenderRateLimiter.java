@@ -0,0 +1,219 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.smi.IpAddress;
+
+/**
+ * <code>SenderRateLimiter</code> is a token bucket per sending address, placed ahead of
+ * logging and classification. Each sender may send "burst" traps at once and "rate" traps
+ * per minute after that; anything more is marked processed (so later responders never
+ * see it) and only counted. The counts are logged as one summary per sender every
+ * "report" minutes instead of one line per trap.
+ * <p>
+ * The table of senders is bounded: when it is full the least recently seen sender is
+ * evicted, which at worst gives that sender a fresh bucket.
+ * <p>
+ * Buckets refill on a Clock; a simulation (any clock but the system one, as in
+ * TrapReplay) logs no summaries, its counts are only rendered.
+ * @author justin.good
+ */
+public class SenderRateLimiter implements CommandResponder, TrapperAlive.Page
+{
+    private static final long NANOS_PER_MINUTE = 60L * 1000 * 1000 * 1000;
+    private static final long MILLIS_PER_MINUTE = 60L * 1000;
+    // tokens are kept in thousandths so refill needs no floating point
+    private static final long SCALE = 1000;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final long nanosPerToken;
+    private final long capacity;
+    private final Map<InetAddress,Bucket> buckets;
+    private final Clock clock;
+    private long limitedTotal; // guarded by this
+    private Date since = new Date(); // guarded by this
+    private String lastSummary = "";
+
+    /**
+     * @param aRate traps per minute each sender may sustain
+     * @param aBurst traps each sender may send at once
+     * @param aMaxSenders number of senders tracked before the least recent is evicted
+     * @param aReportMinutes how often to log a summary of limited traps
+     */
+    public SenderRateLimiter(int aRate, int aBurst, final int aMaxSenders, int aReportMinutes)
+    {
+        this(aRate, aBurst, aMaxSenders, aReportMinutes, SystemClock.INSTANCE);
+    }
+
+    /**
+     * @param aRate traps per minute each sender may sustain
+     * @param aBurst traps each sender may send at once
+     * @param aMaxSenders number of senders tracked before the least recent is evicted
+     * @param aReportMinutes how often to log a summary of limited traps
+     * @param aClock Clock the buckets refill on
+     */
+    public SenderRateLimiter(int aRate, int aBurst, final int aMaxSenders, int aReportMinutes,
+                             Clock aClock)
+    {
+        clock = aClock;
+        nanosPerToken = NANOS_PER_MINUTE / Math.max(1, aRate);
+        capacity = Math.max(1, aBurst) * SCALE;
+        buckets = new LinkedHashMap<InetAddress,Bucket>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            /** {@inheritDoc} */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress,Bucket> aEldest)
+            {
+                return size() > aMaxSenders;
+            }
+        };
+
+        if (aClock == SystemClock.INSTANCE)
+        {
+            new Reporter(this, Math.max(1, aReportMinutes) * MILLIS_PER_MINUTE).start();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void processPdu(CommandResponderEvent aEvent)
+    {
+        InetAddress src = ((IpAddress) aEvent.getPeerAddress()).getInetAddress();
+        if (!tryAcquire(src, clock.nanoTime()))
+        {
+            aEvent.setProcessed(true);
+        }
+    }
+
+    /**
+     * @param aSender InetAddress of the sender
+     * @param aNow current nanoTime of our clock
+     * @return true if the sender had a token left
+     */
+    synchronized boolean tryAcquire(InetAddress aSender, long aNow)
+    {
+        Bucket bucket = buckets.get(aSender);
+        if (bucket == null)
+        {
+            bucket = new Bucket(capacity, aNow);
+            buckets.put(aSender, bucket);
+        }
+
+        long elapsed = aNow - bucket.refilled;
+        if (elapsed >= nanosPerToken * (capacity / SCALE))
+        {
+            bucket.tokens = capacity; // idle long enough to be full
+            bucket.refilled = aNow;
+        }
+        else if (elapsed > 0)
+        {
+            // only consume the time that became whole thousandths of a token
+            long added = elapsed * SCALE / nanosPerToken;
+            bucket.tokens = Math.min(capacity, bucket.tokens + added);
+            bucket.refilled += added * nanosPerToken / SCALE;
+        }
+
+        if (bucket.tokens >= SCALE)
+        {
+            bucket.tokens -= SCALE;
+            return true;
+        }
+
+        ++bucket.limited;
+        ++limitedTotal;
+        return false;
+    }
+
+    /**
+     * Log and reset the per sender counts of limited traps
+     */
+    synchronized void report()
+    {
+        if (limitedTotal == 0)
+        {
+            since = new Date();
+            return;
+        }
+
+        StringBuilder str = new StringBuilder();
+        str.append("rate limited ").append(limitedTotal).append(" since ").append(since);
+        for (Iterator<Map.Entry<InetAddress,Bucket>> it = buckets.entrySet().iterator(); it
+            .hasNext();)
+        {
+            Map.Entry<InetAddress,Bucket> entry = it.next();
+            Bucket bucket = entry.getValue();
+            if (bucket.limited > 0)
+            {
+                str.append("\n").append(entry.getKey().getHostAddress());
+                str.append(" ").append(bucket.limited);
+                bucket.limited = 0;
+            }
+        }
+
+        lastSummary = str.toString();
+        log.warn(lastSummary);
+        limitedTotal = 0;
+        since = new Date();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        return "senders=" + buckets.size() + " limited=" + limitedTotal + " since " + since
+            + "\n" + lastSummary + "\n";
+    }
+
+    private static class Bucket
+    {
+        private long tokens;
+        private long refilled;
+        private int limited;
+
+        public Bucket(long aTokens, long aNow)
+        {
+            tokens = aTokens;
+            refilled = aNow;
+        }
+    }
+
+    private static class Reporter extends Thread
+    {
+        private final SenderRateLimiter parent;
+        private final long interval;
+
+        public Reporter(SenderRateLimiter aParent, long aInterval)
+        {
+            parent = aParent;
+            interval = aInterval;
+            setDaemon(true);
+            setName("RateLimitReporter");
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    sleep(interval);
+                    parent.report();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                parent.log.warn("RateLimitReporter interrupted...");
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+/**
+ * <code>SmtpMailer</code> really sends, through javax.mail.
+ * @author justin.good
+ */
+public final class SmtpMailer implements Mailer
+{
+    public static final SmtpMailer INSTANCE = new SmtpMailer();
+
+    private SmtpMailer()
+    {
+    }
+
+    /** {@inheritDoc} */
+    public void send(Message aMessage) throws MessagingException
+    {
+        Transport.send(aMessage);
+    }
+}
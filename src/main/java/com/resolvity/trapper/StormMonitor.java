@@ -0,0 +1,206 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>StormMonitor</code> watches the total rate of accepted traps across all groups.
+ * When it rises above the enter rate we switch to storm mode: groups stop forwarding and
+ * consolidating on their own, and instead one summary covering every group (counts, top
+ * senders, top messages) goes to each distinct destination every few minutes. Storm mode
+ * ends, with a final summary, once the rate has stayed below the (lower) exit rate for a
+ * minute, so a rate hovering around one threshold does not flip modes every check.
+ * <p>
+ * check() only builds a due summary; the caller sends it once it no longer holds the
+ * classifier's lock, so traps are not held up behind the emails.
+ * @author justin.good
+ */
+public class StormMonitor implements TrapperAlive.Page
+{
+    private static final int QUIET_CHECKS = 2; // consecutive checks below exit, ~1 minute
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final int enterRate;
+    private final int exitRate;
+    private final long summaryMillis;
+    private final AtomicInteger counter = new AtomicInteger();
+    private final ConcurrentMap<TrapGroup,AtomicInteger> counts =
+        new ConcurrentHashMap<TrapGroup,AtomicInteger>();
+    private final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm");
+    private volatile boolean active;
+    private long lastCheck;
+    private long stormStart;
+    private long lastSummary;
+    private int quiet;
+    private double rate;
+    private int storms;
+
+    /**
+     * @param aEnterRate accepted traps per minute at which storm mode starts
+     * @param aExitRate accepted traps per minute below which storm mode ends
+     * @param aSummaryMinutes minutes between storm summaries
+     */
+    public StormMonitor(int aEnterRate, int aExitRate, int aSummaryMinutes)
+    {
+        enterRate = aEnterRate;
+        exitRate = Math.min(aExitRate, aEnterRate);
+        summaryMillis = Math.max(1, aSummaryMinutes) * 60000L;
+    }
+
+    /**
+     * Count an accepted trap
+     * @param aGroup TrapGroup which accepted it
+     * @return true if we are in storm mode, and the group should only sketch the trap
+     */
+    public boolean offer(TrapGroup aGroup)
+    {
+        counter.incrementAndGet();
+        if (!active)
+        {
+            return false;
+        }
+
+        AtomicInteger count = counts.get(aGroup);
+        if (count == null)
+        {
+            AtomicInteger existing = counts.putIfAbsent(aGroup, count = new AtomicInteger());
+            if (existing != null)
+            {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called periodically to measure the rate and switch modes; isActive() then says
+     * whether groups should leave consolidation to our summaries
+     * @param aGroups accepted TrapGroups
+     * @param aNow current time in milliseconds
+     * @return summary now due, to be sent by the caller, or null
+     */
+    public synchronized Notice check(List<TrapGroup> aGroups, long aNow)
+    {
+        int count = counter.getAndSet(0);
+        if (lastCheck == 0)
+        {
+            lastCheck = aNow;
+            return null;
+        }
+        rate = count * 60000.0 / Math.max(1, aNow - lastCheck);
+        lastCheck = aNow;
+
+        if (!active)
+        {
+            if (rate >= enterRate)
+            {
+                log.warn(String.format("storm mode on at %.0f traps/min", rate));
+                for (TrapGroup group : aGroups)
+                {
+                    group.clearSketches();
+                }
+                counts.clear();
+                stormStart = aNow;
+                lastSummary = aNow;
+                quiet = 0;
+                ++storms;
+                active = true;
+            }
+            return null;
+        }
+
+        if (rate < exitRate)
+        {
+            if (++quiet >= QUIET_CHECKS)
+            {
+                log.warn(String.format("storm mode off at %.0f traps/min", rate));
+                active = false;
+                return summarize(aGroups, aNow, "trap storm over");
+            }
+        }
+        else
+        {
+            quiet = 0;
+        }
+
+        if (aNow - lastSummary >= summaryMillis)
+        {
+            return summarize(aGroups, aNow, "trap storm");
+        }
+        return null;
+    }
+
+    /**
+     * @return true if we are in storm mode
+     */
+    public boolean isActive()
+    {
+        return active;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append(active ? "storm since " + sdf.format(new Date(stormStart)) : "normal");
+        str.append(String.format(", %.0f traps/min (enter %d, exit %d), %d storms\n", rate,
+                                 enterRate, exitRate, storms));
+        if (active)
+        {
+            for (Map.Entry<TrapGroup,AtomicInteger> entry : counts.entrySet())
+            {
+                str.append(entry.getKey().getName()).append(" ");
+                str.append(entry.getValue().get()).append("\n");
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Take the counts and sketches of every group with traps into one summary
+     * @param aGroups accepted TrapGroups
+     * @param aNow current time in milliseconds
+     * @param aTitle start of the subject
+     * @return Notice, or null if no group had traps
+     */
+    private Notice summarize(List<TrapGroup> aGroups, long aNow, String aTitle)
+    {
+        StringBuilder body = new StringBuilder();
+        List<TrapGroup> groups = new ArrayList<TrapGroup>();
+        int total = 0;
+        for (TrapGroup group : aGroups)
+        {
+            AtomicInteger count = counts.remove(group);
+            int n = (count != null) ? count.getAndSet(0) : 0;
+            if (n == 0)
+            {
+                continue;
+            }
+
+            total += n;
+            groups.add(group);
+            body.append(group.getName()).append(" ").append(n).append("\n");
+            body.append(group.describeTop()).append("\n");
+            group.clearSketches();
+        }
+        lastSummary = aNow;
+        if (total == 0)
+        {
+            return null;
+        }
+
+        String subject = aTitle + ": " + total + " traps in " + groups.size() + " groups";
+        String text = subject + " since " + sdf.format(new Date(stormStart)) + "\n\n" + body;
+        return new Notice(subject, text, TrapForwarder.distinct(groups));
+    }
+}
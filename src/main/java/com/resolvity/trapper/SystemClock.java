@@ -0,0 +1,27 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+/**
+ * <code>SystemClock</code> is the real time, from System.
+ * @author justin.good
+ */
+public final class SystemClock implements Clock
+{
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    private SystemClock()
+    {
+    }
+
+    /** {@inheritDoc} */
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /** {@inheritDoc} */
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.resolvity.utility.file.ResourceLoader;
+
+/**
+ * <code>TemplateCache</code> loads each email template once and keeps one copy of each
+ * distinct text, however many forwarders name it or under whatever path. There is one
+ * per TrapContext, so a configuration built again reads edited templates afresh, and
+ * the texts of a configuration are dropped along with it.
+ * @author justin.good
+ */
+public class TemplateCache
+{
+    private final ConcurrentMap<String,String> byPath = new ConcurrentHashMap<String,String>();
+    private final ConcurrentMap<String,String> byContent =
+        new ConcurrentHashMap<String,String>();
+
+    /**
+     * @param aPath resource path of a template
+     * @return text of the template, shared with every other template of the same text
+     * @throws IOException if the template cannot be loaded
+     */
+    public String load(String aPath) throws IOException
+    {
+        if (aPath == null)
+        {
+            throw new IOException("no template");
+        }
+        String text = byPath.get(aPath);
+        if (text == null)
+        {
+            text = intern(ResourceLoader.loadTextResource(aPath).toString());
+            String existing = byPath.putIfAbsent(aPath, text);
+            if (existing != null)
+            {
+                text = existing;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * @param aText template text
+     * @return the one copy kept of that text
+     */
+    private String intern(String aText)
+    {
+        String text = byContent.putIfAbsent(aText, aText);
+        return (text != null) ? text : aText;
+    }
+
+    /**
+     * @return number of paths loaded
+     */
+    public int getPaths()
+    {
+        return byPath.size();
+    }
+
+    /**
+     * @return number of distinct template texts
+     */
+    public int getTexts()
+    {
+        return byContent.size();
+    }
+}
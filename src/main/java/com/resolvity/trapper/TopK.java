@@ -0,0 +1,158 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>TopK</code> is a Space-Saving heavy hitter sketch: it tracks at most a fixed
+ * number of items, and when a new item arrives while full it replaces the item with the
+ * smallest count, inheriting that count as its possible overestimate. Any item occurring
+ * more than 1/capacity of the time is guaranteed to be tracked, which is all we need to
+ * say who is causing a storm.
+ * @author justin.good
+ */
+public class TopK
+{
+    private final int capacity;
+    private final Map<String,Counter> counters;
+    private long total;
+
+    /**
+     * @param aCapacity number of items tracked
+     */
+    public TopK(int aCapacity)
+    {
+        capacity = Math.max(1, aCapacity);
+        counters = new HashMap<String,Counter>(capacity * 2);
+    }
+
+    /**
+     * @param aItem item to count
+     */
+    public synchronized void offer(String aItem)
+    {
+        ++total;
+        Counter counter = counters.get(aItem);
+        if (counter != null)
+        {
+            ++counter.count;
+            return;
+        }
+
+        if (counters.size() < capacity)
+        {
+            counters.put(aItem, new Counter(aItem, 1, 0));
+            return;
+        }
+
+        // replace the minimum; capacity is small, so a scan beats keeping a heap
+        Counter min = null;
+        for (Counter c : counters.values())
+        {
+            if (min == null || c.count < min.count)
+            {
+                min = c;
+            }
+        }
+        counters.remove(min.item);
+        counters.put(aItem, new Counter(aItem, min.count + 1, min.count));
+    }
+
+    /**
+     * @param aLimit maximum number of entries
+     * @return copies of the largest counters, largest first
+     */
+    public synchronized List<Counter> top(int aLimit)
+    {
+        List<Counter> list = new ArrayList<Counter>();
+        for (Counter c : counters.values())
+        {
+            list.add(new Counter(c.item, c.count, c.error));
+        }
+        Collections.sort(list, new Comparator<Counter>()
+        {
+            public int compare(Counter aLeft, Counter aRight)
+            {
+                return (aLeft.count < aRight.count) ? 1 : (aLeft.count > aRight.count) ? -1
+                    : 0;
+            }
+        });
+        return (list.size() > aLimit) ? list.subList(0, aLimit) : list;
+    }
+
+    /**
+     * @param aLimit maximum number of entries
+     * @return one line per entry, "count item", largest first
+     */
+    public String describe(int aLimit)
+    {
+        StringBuilder str = new StringBuilder();
+        for (Counter c : top(aLimit))
+        {
+            str.append(c.count);
+            if (c.error > 0)
+            {
+                str.append(" (max ").append(c.error).append(" over)");
+            }
+            str.append(" ").append(c.item).append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * @return number of items offered since the last clear
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * Start a new window
+     */
+    public synchronized void clear()
+    {
+        counters.clear();
+        total = 0;
+    }
+
+    /**
+     * <code>Counter</code> is one tracked item with its (over)estimated count.
+     */
+    public static class Counter
+    {
+        private final String item;
+        private long count;
+        private final long error;
+
+        public Counter(String aItem, long aCount, long aError)
+        {
+            item = aItem;
+            count = aCount;
+            error = aError;
+        }
+
+        public String getItem()
+        {
+            return item;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the most by which count may exceed the true count
+         */
+        public long getError()
+        {
+            return error;
+        }
+    }
+}
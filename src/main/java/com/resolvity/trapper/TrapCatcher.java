@@ -1,12 +1,17 @@
 // Copyright 2010 Resolvity Inc.
 package com.resolvity.trapper;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import org.snmp4j.MessageDispatcher;
+import org.snmp4j.CommandResponder;
 import org.snmp4j.MessageDispatcherImpl;
 import org.snmp4j.Snmp;
 import org.snmp4j.mp.MPv1;
@@ -15,15 +20,26 @@ import org.snmp4j.smi.TcpAddress;
 import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.transport.AbstractTransportMapping;
 import org.snmp4j.transport.DefaultTcpTransportMapping;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
 import org.snmp4j.util.MultiThreadedMessageDispatcher;
 import org.snmp4j.util.ThreadPool;
 
 import com.resolvity.utility.file.ReadableProperties;
 
 /**
- * <code>TrapCatcher</code> listens for traps on a particular address, then groups and
- * processes the traps based on our configuration file.
+ * <code>TrapCatcher</code> listens for traps on one or more addresses, then groups and
+ * processes the traps based on our configuration file. Every address feeds the same
+ * classifier, so consolidation is global no matter where a trap arrived.
+ * <p>
+ * Addresses listed under "address" share the default dispatcher pool. Additional
+ * listeners may be given as "listen.N.address" (N from 0 to 9), and those which also
+ * specify "listen.N.threads" get a dispatcher pool of their own.
+ * <p>
+ * With "execution=perTrap" the dispatcher threads only decode; classification and
+ * forwarding of each trap runs on its own (virtual, where available) thread.
+ * <p>
+ * On SIGTERM (or shutdown()) we report "draining" to liveness checks, stop listening,
+ * let traps already received finish, send every open consolidation, digest and held
+ * incident at once, and close the retry spool and capture, all within shutdown.seconds.
  * @author justin.good
  */
 public class TrapCatcher
@@ -32,11 +48,30 @@ public class TrapCatcher
     private static final int DEFAULT_UDP_PORT = 162;
     private static final int DEFAULT_ALIVE_PORT = 163;
     private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_READERS = 1;
+    private static final int MAX_LISTENERS = 10;
+    private static final String PER_TRAP = "perTrap";
+    private static final int DEFAULT_RATE_SENDERS = 10000;
+    private static final int DEFAULT_RATE_REPORT = 5;
+    private static final int DEFAULT_SPOOL_MIN = 30;
+    private static final int DEFAULT_SPOOL_MAX = 300;
+    private static final int DEFAULT_SPOOL_HOURS = 24;
+    private static final int DEFAULT_SHUTDOWN_SECONDS = 30;
 
     private final ReadableProperties props;
     private final TrapperAlive alive;
-    private final AbstractTransportMapping transport;
+    private final List<AbstractTransportMapping> shared;
+    private final Map<AbstractTransportMapping,Integer> dedicated;
+    private final List<Snmp> sessions = new ArrayList<Snmp>();
+    private final List<MultiThreadedMessageDispatcher> dispatchers =
+        new ArrayList<MultiThreadedMessageDispatcher>();
     private final int numThreads;
+    private final Mailer mailer;
+    private RetrySpool spool;
+    private TrapRecorder recorder;
+    private TrapClassifier classifier;
+    private AsyncResponder async;
+    private boolean stopped;
 
     /**
      * @param aPath name of our properties file
@@ -44,57 +79,437 @@ public class TrapCatcher
      */
     public TrapCatcher(String aPath) throws IOException
     {
+        this(aPath, SmtpMailer.INSTANCE);
+    }
+
+    /**
+     * @param aPath name of our properties file
+     * @param aMailer Mailer which delivers every email
+     * @throws IOException
+     */
+    public TrapCatcher(String aPath, Mailer aMailer) throws IOException
+    {
+        mailer = aMailer;
         props = new ReadableProperties(aPath, ',');
         numThreads = props.getInt(null, "threads", DEFAULT_THREADS);
 
-        transport = parseTransport(props);
-        
+        shared = new ArrayList<AbstractTransportMapping>();
+        for (String adr : props.getStringList(null, "address"))
+        {
+            shared.add(parseTransport(props, null, adr));
+        }
+
+        dedicated = new LinkedHashMap<AbstractTransportMapping,Integer>();
+        for (int i = 0; i < MAX_LISTENERS; ++i)
+        {
+            String name = "listen." + i;
+            String adr = props.getString(name, "address", null);
+            if (adr != null)
+            {
+                AbstractTransportMapping transport = parseTransport(props, name, adr);
+                int threads = props.getInt(name, "threads", 0);
+                if (threads > 0)
+                {
+                    dedicated.put(transport, threads);
+                }
+                else
+                {
+                    shared.add(transport);
+                }
+            }
+        }
+
+        if (shared.isEmpty() && dedicated.isEmpty())
+        {
+            shared.add(parseTransport(props, null, DEFAULT_ADR));
+        }
+
         int livePort = props.getInt(null, "liveness", DEFAULT_ALIVE_PORT);
         alive = new TrapperAlive(livePort);
+        String token = props.getString("liveness", "token", null);
+        alive.setToken((token != null && token.trim().length() > 0) ? token.trim() : null);
     }
 
     /**
-     * Listen for SNMP messages on our address
+     * Listen for SNMP messages on all of our addresses, until interrupted
      * @throws IOException
      */
     public synchronized void listen() throws IOException
     {
-        ThreadPool threadPool = ThreadPool.create("DispatcherPool", numThreads);
-        MessageDispatcher dispatch = new MultiThreadedMessageDispatcher(threadPool,
-            new MessageDispatcherImpl());
+        start();
+        Runtime.getRuntime().addShutdownHook(new Thread("Shutdown")
+        {
+            /** {@inheritDoc} */
+            @Override
+            public void run()
+            {
+                shutdown();
+            }
+        });
+        try
+        {
+            while (!stopped)
+            {
+                this.wait();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Exiting...");
+    }
 
-        // currently we only expect version 1 and 2 traps
-        dispatch.addMessageProcessingModel(new MPv1());
-        dispatch.addMessageProcessingModel(new MPv2c());
+    /**
+     * Start listening on all of our addresses and return
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException
+    {
+        // one classifier for every listener, so groups are consolidated globally
+        List<CommandResponder> chain = new ArrayList<CommandResponder>();
+        int rate = props.getInt("ratelimit", "rate", 0);
+        if (rate > 0)
+        {
+            SenderRateLimiter limiter = new SenderRateLimiter(rate,
+                props.getInt("ratelimit", "burst", rate),
+                props.getInt("ratelimit", "senders", DEFAULT_RATE_SENDERS),
+                props.getInt("ratelimit", "report", DEFAULT_RATE_REPORT));
+            chain.add(limiter);
+            alive.addPage("/ratelimit", limiter);
+        }
+        chain.add(new TrapLogger());
+
+        String spoolDir = props.getString("spool", "dir", null);
+        if (spoolDir != null)
+        {
+            spool = new RetrySpool(new File(spoolDir.trim()), mailer,
+                                   props.getInt("spool", "min", DEFAULT_SPOOL_MIN),
+                                   props.getInt("spool", "max", DEFAULT_SPOOL_MAX),
+                                   props.getInt("spool", "hours", DEFAULT_SPOOL_HOURS));
+            TrapForwarder.setSpool(spool);
+            spool.start();
+            alive.addPage("/spool", spool);
+        }
+
+        final TrapClassifier classifier =
+            ClassifierFactory.create(props, SystemClock.INSTANCE, mailer);
+        this.classifier = classifier;
+        alive.addPage("/top", new TrapperAlive.Page()
+        {
+            public String render()
+            {
+                StringBuilder str = new StringBuilder();
+                for (TrapGroup group : classifier.getAccept())
+                {
+                    String top = group.describeTop();
+                    if (top.length() > 0)
+                    {
+                        str.append(group.getName()).append("\n").append(top).append("\n");
+                    }
+                }
+                return str.toString();
+            }
+        });
+        alive.addPage("/distinct", new TrapperAlive.Page()
+        {
+            public String render()
+            {
+                StringBuilder str = new StringBuilder();
+                for (TrapGroup group : classifier.getAccept())
+                {
+                    String distinct = group.describeDistinct();
+                    if (distinct.length() > 0)
+                    {
+                        str.append(group.getName()).append("\n").append(distinct);
+                        str.append("\n");
+                    }
+                }
+                return str.toString();
+            }
+        });
+        CommandResponder responder = classifier;
+        if (PER_TRAP.equalsIgnoreCase(props.getString(null, "execution", null)))
+        {
+            async = new AsyncResponder(classifier,
+                props.getInt("execution", "threads", AsyncResponder.DEFAULT_THREADS),
+                props.getInt("execution", "queue", AsyncResponder.DEFAULT_QUEUE));
+            responder = async;
+            alive.addPage("/execution", async);
+        }
+        if (classifier.getLanes() != null)
+        {
+            alive.addPage("/lanes", classifier.getLanes());
+        }
+        if (classifier.getStorm() != null)
+        {
+            alive.addPage("/storm", classifier.getStorm());
+        }
+        if (classifier.getCorrelator() != null)
+        {
+            alive.addPage("/correlate", classifier.getCorrelator());
+        }
+        if (classifier.getCalendar() != null)
+        {
+            alive.addPage("/maintenance", classifier.getCalendar());
+        }
+        if (classifier.getQuotas() != null && classifier.getQuotas().isInUse())
+        {
+            alive.addPage("/quota", classifier.getQuotas());
+        }
+        if (!classifier.getFlaps().isEmpty())
+        {
+            alive.addPage("/flap", new TrapperAlive.Page()
+            {
+                public String render()
+                {
+                    StringBuilder str = new StringBuilder();
+                    for (FlapDetector flap : classifier.getFlaps())
+                    {
+                        str.append(flap.render()).append("\n");
+                    }
+                    return str.toString();
+                }
+            });
+        }
+        if (props.getBoolean(null, "prefilter", false))
+        {
+            installPrefilter(new TrapPrefilter(classifier.getIgnore()));
+        }
+        String capture = props.getString("record", "file", null);
+        if (capture != null)
+        {
+            recorder = new TrapRecorder(new File(capture.trim()));
+            installRecorder(recorder);
+        }
+        chain.add(responder);
+
+        if (!shared.isEmpty())
+        {
+            sessions.add(createSession("DispatcherPool", numThreads, shared, chain));
+        }
+        for (Map.Entry<AbstractTransportMapping,Integer> entry : dedicated.entrySet())
+        {
+            AbstractTransportMapping transport = entry.getKey();
+            List<AbstractTransportMapping> list = new ArrayList<AbstractTransportMapping>();
+            list.add(transport);
+            sessions.add(createSession("DispatcherPool-" + transport.getListenAddress(),
+                                       entry.getValue(), list, chain));
+        }
 
-        Snmp snmp = new Snmp(dispatch, transport);
-        snmp.addCommandResponder(new TrapLogger());
-        snmp.addCommandResponder(ClassifierFactory.create(props));
+        for (AbstractTransportMapping transport : getTransports())
+        {
+            transport.listen();
+            System.out.println("Listening on " + transport.getListenAddress());
+        }
 
-        transport.listen();
-        System.out.println("Listening on " + transport.getListenAddress());
-        
         alive.start();
         System.out.println("Liveness available on " + alive.getPort());
+    }
 
+    /**
+     * Stop listening, finish the traps already received, send whatever is being
+     * consolidated, held or collected for a digest, and close our files, giving up on
+     * every step at shutdown.seconds; liveness checks get "draining" meanwhile. The spool
+     * is only closed once nothing can still be sending, since whatever is left would
+     * write to it.
+     */
+    public synchronized void shutdown()
+    {
+        if (stopped)
+        {
+            return;
+        }
+        stopped = true;
+        long deadline = System.currentTimeMillis()
+            + props.getInt("shutdown", "seconds", DEFAULT_SHUTDOWN_SECONDS) * 1000L;
+        alive.setDraining(true);
+        System.out.println("Draining...");
+
+        boolean idle = false;
         try
         {
-            this.wait();
+            for (Snmp snmp : sessions)
+            {
+                try
+                {
+                    snmp.close();
+                }
+                catch (IOException ex)
+                {
+                    System.out.println("Unable to close listener: " + ex);
+                }
+            }
+            idle = runUntil("dispatchers", deadline, new Runnable()
+            {
+                public void run()
+                {
+                    for (MultiThreadedMessageDispatcher dispatcher : dispatchers)
+                    {
+                        dispatcher.stop(); // returns once its threads have finished
+                    }
+                }
+            });
+            if (async != null && !async.drain(deadline))
+            {
+                System.out.println("Gave up waiting for traps being processed");
+                idle = false;
+            }
+            if (classifier != null && classifier.getLanes() != null
+                && !classifier.getLanes().drain(deadline))
+            {
+                System.out.println("Gave up waiting for traps queued on lanes");
+                idle = false;
+            }
+            if (classifier != null)
+            {
+                idle &= runUntil("consolidations and digests", deadline, new Runnable()
+                {
+                    public void run()
+                    {
+                        classifier.flush();
+                    }
+                });
+            }
         }
         catch (InterruptedException ex)
         {
             Thread.currentThread().interrupt();
         }
-        System.out.println("Exiting...");
+        finally
+        {
+            if (recorder != null)
+            {
+                recorder.close();
+            }
+            if (spool != null && idle)
+            {
+                spool.close();
+            }
+            else if (spool != null)
+            {
+                System.out.println("Leaving the spool open for emails still being sent");
+            }
+            alive.close();
+            notifyAll();
+            System.out.println("Stopped");
+        }
+    }
+
+    /**
+     * @param aWhat what is being waited for, for the log
+     * @param aDeadline time in milliseconds to give up waiting
+     * @param aStep work to run on a thread of its own
+     * @return true if the step finished by the deadline
+     * @throws InterruptedException
+     */
+    private static boolean runUntil(String aWhat, long aDeadline, Runnable aStep)
+        throws InterruptedException
+    {
+        Thread thread = new Thread(aStep, "Shutdown-" + aWhat);
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(Math.max(1, aDeadline - System.currentTimeMillis()));
+        if (thread.isAlive())
+        {
+            System.out.println("Gave up waiting for " + aWhat);
+            return false;
+        }
+        return true;
     }
 
     /**
-     * @param aProps Properties file which may have a key "address" with a url
+     * @param aPrefilter TrapPrefilter applied by every UDP transport
+     */
+    private void installPrefilter(TrapPrefilter aPrefilter)
+    {
+        if (aPrefilter.isEmpty())
+        {
+            System.out.println("No ignore groups can be prefiltered");
+            return;
+        }
+
+        for (AbstractTransportMapping transport : getTransports())
+        {
+            if (transport instanceof NioUdpTransportMapping)
+            {
+                ((NioUdpTransportMapping) transport).setPrefilter(aPrefilter);
+            }
+        }
+        alive.addPage("/prefilter", aPrefilter);
+    }
+
+    /**
+     * @param aRecorder TrapRecorder capturing the datagrams of every UDP transport
+     */
+    private void installRecorder(TrapRecorder aRecorder)
+    {
+        for (AbstractTransportMapping transport : getTransports())
+        {
+            if (transport instanceof NioUdpTransportMapping)
+            {
+                ((NioUdpTransportMapping) transport).setRecorder(aRecorder);
+            }
+        }
+        alive.addPage("/record", aRecorder);
+    }
+
+    /**
+     * @return every transport we listen on, shared pool first
+     */
+    private List<AbstractTransportMapping> getTransports()
+    {
+        List<AbstractTransportMapping> list = new ArrayList<AbstractTransportMapping>();
+        list.addAll(shared);
+        list.addAll(dedicated.keySet());
+        return list;
+    }
+
+    /**
+     * @param aPoolName name of the dispatcher ThreadPool
+     * @param aThreads size of the dispatcher ThreadPool
+     * @param aTransports transports served by this dispatcher, must not be empty
+     * @param aChain CommandResponders shared by all sessions, in the order they run
+     * @return Snmp session wired to the given transports, its dispatcher kept for
+     *         shutdown
+     */
+    private Snmp createSession(String aPoolName,
+                               int aThreads,
+                               List<AbstractTransportMapping> aTransports,
+                               List<CommandResponder> aChain)
+    {
+        ThreadPool threadPool = ThreadPool.create(aPoolName, aThreads);
+        MultiThreadedMessageDispatcher dispatch =
+            new MultiThreadedMessageDispatcher(threadPool, new MessageDispatcherImpl());
+        dispatchers.add(dispatch);
+
+        // currently we only expect version 1 and 2 traps
+        dispatch.addMessageProcessingModel(new MPv1());
+        dispatch.addMessageProcessingModel(new MPv2c());
+
+        Snmp snmp = new Snmp(dispatch, aTransports.get(0));
+        for (int i = 1; i < aTransports.size(); ++i)
+        {
+            snmp.addTransportMapping(aTransports.get(i));
+        }
+        for (CommandResponder responder : aChain)
+        {
+            snmp.addCommandResponder(responder);
+        }
+        return snmp;
+    }
+
+    /**
+     * @param aProps Properties file which may tune the transport
+     * @param aName domain within the properties file for per-listener settings, or null
+     * @param aAdr url of the address to listen on, udp:// or tcp://
      * @return SNMP4J AbstractTransportMapping based on parsed address
      */
-    private static AbstractTransportMapping parseTransport(ReadableProperties aProps)
+    private static AbstractTransportMapping parseTransport(ReadableProperties aProps,
+                                                           String aName,
+                                                           String aAdr)
     {
-        String adr = aProps.getString(null, "address", DEFAULT_ADR);
+        String adr = aAdr.trim();
 
         try
         {
@@ -109,7 +524,14 @@ public class TrapCatcher
                     port = DEFAULT_UDP_PORT;
                 }
                 UdpAddress udp = new UdpAddress(inet, port);
-                return new DefaultUdpTransportMapping(udp);
+                int readers = aProps.getInt(null, "readers", DEFAULT_READERS);
+                int rcvBuf = aProps.getInt(null, "receiveBuffer", 0);
+                if (aName != null)
+                {
+                    readers = aProps.getInt(aName, "readers", readers);
+                    rcvBuf = aProps.getInt(aName, "receiveBuffer", rcvBuf);
+                }
+                return new NioUdpTransportMapping(udp, readers, rcvBuf);
             }
             else if (uri.getScheme().equalsIgnoreCase("tcp"))
             {
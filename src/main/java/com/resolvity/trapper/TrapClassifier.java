@@ -3,13 +3,13 @@ package com.resolvity.trapper;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.snmp4j.CommandResponder;
@@ -22,6 +22,10 @@ import org.snmp4j.smi.IpAddress;
  * our TrapGroups. We maintain what is essentially a white list (accept) and black list
  * (ignore) based on TrapGroups. Accepted traps are further processed and forwarded, while
  * ignored traps are... ignored.
+ * <p>
+ * All times come from a Clock as primitive milliseconds. Normally that is the system
+ * clock and a Consolidator thread sends consolidations every 30 seconds; given a
+ * VirtualClock instead, the caller drives time and calls consolidate() itself.
  * @author justin.good
  */
 public class TrapClassifier implements CommandResponder
@@ -30,34 +34,223 @@ public class TrapClassifier implements CommandResponder
     private final List<TrapGroup> accept;
     private final List<TrapGroup> ignore;
 
+    private static final long MINUTE = 60000L;
+    private final Clock clock;
+
     // keeps track of all groups being classified
-    // the date list stores the times of traps until they are sent
-    private final Map<TrapGroup,List<Date>> active;
+    // the times of traps until they are sent, or fall out of the window
+    private final Map<TrapGroup,Times> active;
     // marks the moment a trap group consolidation started
-    private final Map<TrapGroup,Date> consolidating;
+    private final Map<TrapGroup,Long> consolidating;
+    // optional queues which run accepted traps in order of their group's priority
+    private PriorityLanes lanes;
+    // optional global rate monitor which replaces per group emails during a storm
+    private StormMonitor storm;
+    // optional stage merging related traps across groups into one incident
+    private Correlator correlator;
+    // problem/cleared group pairs whose flapping keys are summarised, not forwarded
+    private List<FlapDetector> flaps = Collections.emptyList();
+    // optional planned maintenance windows during which accepted traps are archived only
+    private MaintenanceCalendar calendar;
+    // delivery quotas of our forwarders, whose notices we send as we consolidate
+    private DeliveryQuota.Quotas quotas;
 
     /**
      * @param aAccept List of TrapGroups that we explicitly accept
      * @param aIgnore List of TrapGroups that we explicitly ignore
      */
     public TrapClassifier(List<TrapGroup> aAccept, List<TrapGroup> aIgnore)
+    {
+        this(aAccept, aIgnore, SystemClock.INSTANCE);
+        new Consolidator(this).start();
+    }
+
+    /**
+     * No Consolidator thread is started; the caller must call consolidate() every 30
+     * seconds of the clock's time
+     * @param aAccept List of TrapGroups that we explicitly accept
+     * @param aIgnore List of TrapGroups that we explicitly ignore
+     * @param aClock Clock used by us and our groups
+     */
+    public TrapClassifier(List<TrapGroup> aAccept, List<TrapGroup> aIgnore, Clock aClock)
     {
         accept = Collections.unmodifiableList(aAccept);
         ignore = Collections.unmodifiableList(aIgnore);
+        clock = aClock;
+        for (TrapGroup group : aAccept)
+        {
+            group.setClock(aClock);
+        }
 
         // the following maps must be synchronized on this
-        active = new HashMap<TrapGroup,List<Date>>();
-        consolidating = new HashMap<TrapGroup,Date>();
+        active = new HashMap<TrapGroup,Times>();
+        consolidating = new HashMap<TrapGroup,Long>();
+    }
 
-        new Consolidator(this).start();
+    /**
+     * @return Clock used by us and our groups
+     */
+    public Clock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * @param aLanes PriorityLanes to run accepted traps on, or null to run them inline
+     */
+    public void setLanes(PriorityLanes aLanes)
+    {
+        lanes = aLanes;
+    }
+
+    /**
+     * @param aStorm StormMonitor switching to cross group summaries, or null
+     */
+    public void setStorm(StormMonitor aStorm)
+    {
+        storm = aStorm;
+    }
+
+    /**
+     * @return StormMonitor in use, or null
+     */
+    public StormMonitor getStorm()
+    {
+        return storm;
+    }
+
+    /**
+     * @param aCorrelator Correlator to hold and merge related traps, or null; on the
+     *            system clock it is started here, releasing incidents back to us, otherwise
+     *            the caller must call correlate() every span of the clock's time
+     */
+    public void setCorrelator(Correlator aCorrelator)
+    {
+        correlator = aCorrelator;
+        if (aCorrelator != null && clock == SystemClock.INSTANCE)
+        {
+            aCorrelator.start(new Correlator.Sink()
+            {
+                public void release(Correlator.Incident aIncident)
+                {
+                    releaseIncident(aIncident);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Correlator in use, or null
+     */
+    public Correlator getCorrelator()
+    {
+        return correlator;
+    }
+
+    /**
+     * Release the incidents whose correlation window is over, for a virtual clock
+     */
+    public void correlate()
+    {
+        if (correlator != null)
+        {
+            for (Correlator.Incident incident : correlator.tick())
+            {
+                releaseIncident(incident);
+            }
+        }
+    }
+
+    /**
+     * @param aFlaps FlapDetectors for our problem/cleared group pairs
+     */
+    public void setFlaps(List<FlapDetector> aFlaps)
+    {
+        flaps = Collections.unmodifiableList(aFlaps);
+    }
+
+    /**
+     * @return FlapDetectors in use, possibly empty
+     */
+    public List<FlapDetector> getFlaps()
+    {
+        return flaps;
+    }
+
+    /**
+     * @param aCalendar MaintenanceCalendar suppressing accepted traps, or null
+     */
+    public void setCalendar(MaintenanceCalendar aCalendar)
+    {
+        calendar = aCalendar;
+    }
+
+    /**
+     * @param aQuotas delivery quotas of our forwarders, or null
+     */
+    public void setQuotas(DeliveryQuota.Quotas aQuotas)
+    {
+        quotas = aQuotas;
+    }
+
+    /**
+     * @return delivery quotas of our forwarders, or null
+     */
+    public DeliveryQuota.Quotas getQuotas()
+    {
+        return quotas;
+    }
+
+    /**
+     * @return MaintenanceCalendar in use, or null
+     */
+    public MaintenanceCalendar getCalendar()
+    {
+        return calendar;
+    }
+
+    /**
+     * @return TrapGroups that we explicitly accept
+     */
+    public List<TrapGroup> getAccept()
+    {
+        return accept;
+    }
+
+    /**
+     * @return TrapGroups that we explicitly ignore
+     */
+    public List<TrapGroup> getIgnore()
+    {
+        return ignore;
+    }
+
+    /**
+     * @return PriorityLanes in use, or null
+     */
+    public PriorityLanes getLanes()
+    {
+        return lanes;
     }
 
     /** {@inheritDoc} */
     public void processPdu(CommandResponderEvent aEvent)
     {
-        InetAddress src = ((IpAddress) aEvent.getPeerAddress()).getInetAddress();
-        PDU pdu = aEvent.getPDU();
+        final InetAddress src = ((IpAddress) aEvent.getPeerAddress()).getInetAddress();
+        if (classify(aEvent.getPDU(), src))
+        {
+            aEvent.setProcessed(true);
+        }
+    }
 
+    /**
+     * Ignore, or accept and handle, one trap
+     * @param pdu PDU
+     * @param src InetAddress of the sender
+     * @return true if a group ignored or accepted the trap
+     */
+    public boolean classify(final PDU pdu, final InetAddress src)
+    {
         for (TrapGroup group : ignore)
         {
             if (group.matches(pdu, src))
@@ -66,8 +259,7 @@ public class TrapClassifier implements CommandResponder
                 {
                     log.info("ignored, group: " + group.getName() + ", pdu: " + pdu);
                 }
-                aEvent.setProcessed(true);
-                return;
+                return true;
             }
         }
 
@@ -80,140 +272,402 @@ public class TrapClassifier implements CommandResponder
                     log.debug("accepted, group: " + group.getName() + ", pdu: " + pdu);
                 }
 
-                if (group.hasSchedule())
+                if (calendar != null
+                    && calendar.isSuppressed(group.getName(), src, clock.currentTimeMillis()))
                 {
-                    // keep track of the arrival time of the first pdu in a time frame
-                    if (!consolidating.containsKey(group))
-                    {
-                        consolidating.put(group, new Date());
-                    }
+                    calendar.archive(group.getName(), pdu, src);
+                    return true;
+                }
 
-                    // Send out a digest as soon as the specified limit has been reached
-                    // but no sooner than specified number of minutes after previous send
-                    synchronized (group)
+                if (lanes != null)
+                {
+                    // a full lane drops the trap, counted on its /lanes line
+                    final TrapGroup accepted = group;
+                    lanes.submit(group.getPriority(), new Runnable()
                     {
-                        group.savePdu(pdu, src);
-
-                        int diffMinutes = -1;
-                        final Date lastSentTime = group.getLastSentTime();
-                        if(lastSentTime == null)
+                        public void run()
                         {
-                        	log.debug("No traps sent so far for group: "+group.getName());
-                        }
-                        else
-                        {
-	                        final Date now = new Date();
-	                        diffMinutes = (int)((now.getTime() - lastSentTime.getTime())/60000L);
-	                        log.debug("Time since last trap sent in group "+group.getName()+" is "+diffMinutes+" minutes");
+                            handle(accepted, pdu, src);
                         }
+                    });
+                }
+                else
+                {
+                    handle(group, pdu, src);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consolidate, digest or forward an accepted trap
+     * @param group TrapGroup which accepted the trap
+     * @param pdu PDU
+     * @param src InetAddress of the sender
+     */
+    private void handle(TrapGroup group, PDU pdu, InetAddress src)
+    {
+        // repeats neither forward nor count towards consolidation
+        if (group.isDuplicate(pdu, src))
+        {
+            return;
+        }
+
+        // during a storm traps are only counted, for the storm summary
+        if (storm != null && storm.offer(group))
+        {
+            group.sketch(pdu, src);
+            return;
+        }
+
+        // a flapping component is summarised periodically instead
+        for (FlapDetector flap : flaps)
+        {
+            if (flap.isSuppressed(group, pdu, src, clock.currentTimeMillis()))
+            {
+                group.sketch(pdu, src);
+                return;
+            }
+        }
 
-                        if (group.limitReached())
+        if (group.hasSchedule())
+        {
+            final long now = clock.currentTimeMillis();
+
+            // consolidating is ours to guard, and our lock comes before the group's, as
+            // when consolidate() sends a digest
+            synchronized (this)
+            {
+                // keep track of the arrival time of the first pdu in a time frame
+                if (!consolidating.containsKey(group))
+                {
+                    consolidating.put(group, now);
+                }
+
+                // Send out a digest as soon as the specified limit has been reached
+                // but no sooner than specified number of minutes after previous send
+                synchronized (group)
+                {
+                    group.savePdu(pdu, src);
+                    group.sketch(pdu, src);
+
+                    int diffMinutes = -1;
+                    final long lastSentTime = group.getLastSentTime();
+                    if (lastSentTime == 0)
+                    {
+                        log.debug("No traps sent so far for group: " + group.getName());
+                    }
+                    else
+                    {
+                        diffMinutes = (int) ((now - lastSentTime) / MINUTE);
+                        log.debug("Time since last trap sent in group " + group.getName()
+                                + " is " + diffMinutes + " minutes");
+                    }
+
+                    if (group.limitReached())
+                    {
+                        log.debug("Limit reached (" + group.getNumberOfTraps() + " > "
+                                + group.getLimit() + ") , for: " + group.getName()
+                                + ", pdu: " + pdu);
+                        if (lastSentTime == 0 // never sent before
+                                || diffMinutes >= group.getMinutes())
                         {
-                        	log.debug("Limit reached ("+group.getNumberOfTraps()+" > "+group.getLimit()+") , for: " + group.getName() + ", pdu: " + pdu);
-                            if(lastSentTime == null // never sent before 
-                            || diffMinutes >= group.getMinutes())
-                            {
-	                            group.sendDigest(lastSentTime==null?consolidating.get(group):lastSentTime);
-	
-	                            if (consolidating.containsKey(group))
-	                            {
-	                                consolidating.remove(group);
-	                            }
-                            }
-                            else
+                            Long start = consolidating.get(group);
+                            group.sendDigest(lastSentTime != 0 ? lastSentTime
+                                    : (start != null) ? start.longValue() : 0);
+
+                            if (consolidating.containsKey(group))
                             {
-                            	log.debug("\t"+diffMinutes+" minutes since last sent, too early to send, will wait till "+group.getMinutes()+"min elapsed: " + group.getName() + ", pdu: " + pdu);
+                                consolidating.remove(group);
                             }
                         }
+                        else
+                        {
+                            log.debug("\t" + diffMinutes + " minutes since last sent,"
+                                    + " too early to send, will wait till "
+                                    + group.getMinutes() + "min elapsed: "
+                                    + group.getName() + ", pdu: " + pdu);
+                        }
                     }
                 }
-                else // no schedule
-                {
-                    if (!consolidating(group))
-                    {
-                        group.forward(pdu, src);
-                    }
-                }
+            }
+        }
+        else // no schedule
+        {
+            String key = (correlator != null)
+                ? group.getCorrelationKey(correlator.getKeys(), pdu) : null;
+            if (key != null && correlator.hold(key, group, pdu, src))
+            {
+                return; // handled when the incident is released
+            }
+            forwardOrConsolidate(group, pdu, src);
+        }
+    }
 
-                aEvent.setProcessed(true);
-                return;
+    /**
+     * @param aGroup TrapGroup without a schedule which accepted the trap
+     * @param aPdu PDU
+     * @param aSrc InetAddress of the sender
+     */
+    private void forwardOrConsolidate(TrapGroup aGroup, PDU aPdu, InetAddress aSrc)
+    {
+        boolean consolidate = consolidating(aGroup);
+        aGroup.sketch(aPdu, aSrc);
+        if (!consolidate)
+        {
+            aGroup.forward(aPdu, aSrc);
+        }
+    }
+
+    /**
+     * Send a correlated incident as one message to the destinations of the groups which
+     * would have forwarded their traps. Each trap counts towards its own group's window,
+     * as forwardOrConsolidate would count it, so a group which is (or now starts)
+     * consolidating leaves its traps to its consolidation and gets no incident email,
+     * and a group which is sent one has its last sent time updated. Repeats and flapping
+     * traps never reach here, as they are dropped before a trap is held.
+     * @param aIncident incident whose window is over
+     */
+    private void releaseIncident(Correlator.Incident aIncident)
+    {
+        List<Correlator.Trap> traps = aIncident.getTraps();
+        if (traps.size() == 1)
+        {
+            Correlator.Trap trap = traps.get(0);
+            forwardOrConsolidate(trap.getGroup(), trap.getPdu(), trap.getSender());
+            return;
+        }
+
+        Set<TrapGroup> forwarding = new LinkedHashSet<TrapGroup>();
+        for (Correlator.Trap trap : traps)
+        {
+            if (!consolidating(trap.getGroup()))
+            {
+                forwarding.add(trap.getGroup());
+            }
+            trap.getGroup().sketch(trap.getPdu(), trap.getSender());
+        }
+        if (forwarding.isEmpty())
+        {
+            return;
+        }
+
+        final String subject = aIncident.getSubject();
+        final String body = aIncident.describe();
+        List<TrapForwarder> forwarders =
+            new ArrayList<TrapForwarder>(TrapForwarder.distinct(forwarding));
+        if (log.isInfoEnabled())
+        {
+            log.info("sending " + subject + " to " + forwarders);
+        }
+        FanOut.send(forwarders, new FanOut.Send()
+        {
+            public boolean send(TrapForwarder aForwarder)
+            {
+                return aForwarder.sendText(subject, body);
             }
+        });
+        long now = clock.currentTimeMillis();
+        for (TrapGroup group : forwarding)
+        {
+            if (!group.getForwarders().isEmpty())
+            {
+                group.setLastSentTime(now);
+            }
+        }
+    }
+
+    /**
+     * @param aGroup TrapGroup
+     * @return true if the group is consolidating or collecting a digest
+     */
+    synchronized boolean isConsolidating(TrapGroup aGroup)
+    {
+        return consolidating.containsKey(aGroup);
+    }
+
+    /**
+     * Call sendConsolidated for all of our actively consolidating trap groups; called
+     * every 30 seconds by the Consolidator, or by whoever drives a virtual clock; also
+     * sends the notices of delivery quotas which have refilled and keeps the maintenance
+     * calendar's index current
+     */
+    public void consolidate()
+    {
+        if (quotas != null)
+        {
+            quotas.notifySuppressed(); // outside our lock, as it sends
+        }
+        if (calendar != null)
+        {
+            calendar.refresh(clock.currentTimeMillis());
+        }
+        for (Notice notice : consolidateGroups())
+        {
+            notice.send(); // outside our lock, as it goes to every destination
         }
     }
 
     /**
-     * Call sendConsolidated for all of our actively consolidating trap groups
+     * @return flap and storm summaries and escalations now due
      */
-    private synchronized void sendAllConsolidated()
+    private synchronized List<Notice> consolidateGroups()
     {
+        List<Notice> notices = new ArrayList<Notice>();
+        final long now = clock.currentTimeMillis();
+        for (FlapDetector flap : flaps)
+        {
+            add(notices, flap.report(now));
+        }
+
+        boolean stormy = false;
+        if (storm != null)
+        {
+            add(notices, storm.check(accept, now));
+            stormy = storm.isActive();
+        }
+
+        // repeats and schedules carry on through a storm, only consolidation waits
         for (TrapGroup group : accept)
         {
+            group.sendDuplicates();
+
             if (group.hasSchedule())
             {
-                final Date now = new Date();
-                
                 // If we get at least one trap and it's time to send out a digest,
                 // we'll then send out a digest.
                 if (group.onSchedule(now))
                 {
                     if (consolidating.containsKey(group))
                     {
-                        Date start = consolidating.get(group);
+                        long start = consolidating.get(group);
                         group.sendDigest(start);
                         consolidating.remove(group);
                     }
                     group.markScheduleProcessed(now);
                 }
             }
+            else if (!stormy && consolidating.containsKey(group))
+            {
+                add(notices, sendConsolidated(group));
+            }
+        }
+        return notices;
+    }
+
+    /**
+     * @param aNotices notices to send
+     * @param aNotice Notice, or null if none is due
+     */
+    private static void add(List<Notice> aNotices, Notice aNotice)
+    {
+        if (aNotice != null)
+        {
+            aNotices.add(aNotice);
+        }
+    }
+
+    /**
+     * Send everything still held, whatever its window or schedule: incidents held for
+     * correlation, repeats, open consolidations and digests. For shutdown, once traps no
+     * longer arrive.
+     */
+    public void flush()
+    {
+        for (Notice notice : flushGroups())
+        {
+            notice.send(); // outside our lock, as in consolidate()
+        }
+    }
+
+    /**
+     * @return escalations now due
+     */
+    private synchronized List<Notice> flushGroups()
+    {
+        List<Notice> notices = new ArrayList<Notice>();
+        if (correlator != null)
+        {
+            for (Correlator.Incident incident : correlator.drain())
+            {
+                releaseIncident(incident);
+            }
+        }
+
+        for (TrapGroup group : accept)
+        {
+            group.sendDuplicates();
+
+            Long start = consolidating.remove(group);
+            if (start == null)
+            {
+                continue;
+            }
+            if (group.hasSchedule())
+            {
+                log.info("flushing digest of " + group.getName());
+                group.sendDigest(start.longValue());
+            }
             else
             {
-                if (consolidating.containsKey(group))
+                Times times = active.get(group);
+                int count = (times != null)
+                    ? times.count(start.longValue(), Long.MAX_VALUE) : 0;
+                if (count != 0)
                 {
-                    sendConsolidated(group);
+                    log.info("flushing consolidation of " + count + " for "
+                            + group.getName());
+                    add(notices, group.sendConsolidated(start.longValue(), count));
                 }
+                group.stopConsolidation();
             }
         }
+        return notices;
     }
 
     /**
      * This method will only send the consolidated email if enough time has passed since
      * this group last sent one
      * @param aGroup TrapGroup which may send the consolidated email
+     * @return escalation now due, or null
      */
-    private synchronized void sendConsolidated(TrapGroup aGroup)
+    private synchronized Notice sendConsolidated(TrapGroup aGroup)
     {
-        final Date now = new Date();
-        final Date start = consolidating.get(aGroup);
-        final Date cutoff = getCutoffStart(now, aGroup);
+        Notice escalation = null;
+        final long now = clock.currentTimeMillis();
+        final Long start = consolidating.get(aGroup);
+        final long cutoff = getCutoffStart(now, aGroup);
 
-        if (start != null && start.before(cutoff))
+        if (start != null && start.longValue() < cutoff)
         {
             // we can send
-            List<Date> list = active.get(aGroup);
+            Times times = active.get(aGroup);
 
             // end time is based on the window trailing the start time
-            final Date end = getCutoffEnd(start, aGroup);
+            final long end = getCutoffEnd(start.longValue(), aGroup);
 
             if (log.isDebugEnabled())
             {
                 log.debug("checking consolidation window for " + aGroup.getName() + " "
-                        + start + " to " + end);
+                        + new Date(start.longValue()) + " to " + new Date(end));
             }
 
-            final int count = getWindowSize(start, end, list);
+            final int count = times.count(start.longValue(), end);
             if (count != 0)
             {
-                aGroup.sendConsolidated(start, count);
+                escalation = aGroup.sendConsolidated(start.longValue(), count);
 
                 // now the end is the earliest thing we ever have to examine again
-                int removable = getWindowSize(null, end, list);
+                int removable = times.count(Long.MIN_VALUE, end);
                 if (log.isInfoEnabled())
                 {
                     log.info("sending consolidation of " + count + " for "
                             + aGroup.getName() + ", removing " + removable + " before "
-                            + end);
+                            + new Date(end));
                 }
-                list.subList(0, removable).clear();
+                times.removeFirst(removable);
             }
 
             if (count < aGroup.getLimit())
@@ -221,6 +675,7 @@ public class TrapClassifier implements CommandResponder
                 // stop consolidation
                 log.debug("stopping consolidation of " + aGroup.getName());
                 consolidating.remove(aGroup);
+                aGroup.stopConsolidation();
             }
             else
             {
@@ -228,6 +683,7 @@ public class TrapClassifier implements CommandResponder
                 consolidating.put(aGroup, end);
             }
         }
+        return escalation;
     }
 
     /**
@@ -241,23 +697,22 @@ public class TrapClassifier implements CommandResponder
      */
     private synchronized boolean consolidating(TrapGroup aGroup)
     {
-        // mark group active and get the current trap time
-        final Date latest = markActive(aGroup);
-
         // ensure there's any point in continuing
-        final List<Date> list = active.get(aGroup);
         if (aGroup.getLimit() == 0)
         {
             return false; // we are definitely not going to consolidate
         }
 
+        // mark group active and get the current trap time
+        final long latest = markActive(aGroup);
+
         // if we are already consolidating, keep consolidating
         if (consolidating.containsKey(aGroup))
         {
             if (log.isDebugEnabled())
             {
                 log.debug("continuing consolidation for " + aGroup.getName()
-                        + ", list size " + list.size());
+                        + ", list size " + active.get(aGroup).size());
             }
             return true;
         }
@@ -268,6 +723,7 @@ public class TrapClassifier implements CommandResponder
             // only count the very latest trap towards consolidation,
             // since items prior to this trap were forwarded individually
             consolidating.put(aGroup, latest);
+            aGroup.clearSketches();
             return true;
         }
 
@@ -275,15 +731,18 @@ public class TrapClassifier implements CommandResponder
     }
 
     /**
+     * Times before the window are dropped, since we are not consolidating and so will
+     * never look at them again
      * @param aWindowEnd end time for window, inclusive
      * @param aGroup TrapGroup specifying window size and trap limit
      * @return true if consolidation is required
      */
-    private synchronized boolean consolidateWindow(Date aWindowEnd, TrapGroup aGroup)
+    private synchronized boolean consolidateWindow(long aWindowEnd, TrapGroup aGroup)
     {
-        final List<Date> list = active.get(aGroup);
-        final Date cutoff = getCutoffStart(aWindowEnd, aGroup);
-        final int windowSize = getWindowSize(cutoff, aWindowEnd, list);
+        final Times times = active.get(aGroup);
+        final long cutoff = getCutoffStart(aWindowEnd, aGroup);
+        times.removeFirst(times.count(Long.MIN_VALUE, cutoff - 1));
+        final int windowSize = times.count(cutoff, aWindowEnd);
 
         // first we examine current window
         if (windowSize > aGroup.getLimit())
@@ -291,7 +750,7 @@ public class TrapClassifier implements CommandResponder
             if (log.isDebugEnabled())
             {
                 log.debug("consolidating " + aGroup.getName() + ": " + windowSize
-                        + " between " + cutoff + " and " + aWindowEnd);
+                        + " between " + new Date(cutoff) + " and " + new Date(aWindowEnd));
             }
             return true;
         }
@@ -300,67 +759,110 @@ public class TrapClassifier implements CommandResponder
     }
 
     /**
-     * @param aDate reference Date
+     * @param aTime reference time
      * @param aGroup TrapGroup which specified some number of minutes
-     * @return Date before given date (by number of minutes in group)
+     * @return time before given time (by number of minutes in group)
      */
-    private Date getCutoffStart(Date aDate, TrapGroup aGroup)
+    private long getCutoffStart(long aTime, TrapGroup aGroup)
     {
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(aDate);
-        cal.add(Calendar.MINUTE, -aGroup.getMinutes());
-        return cal.getTime();
+        return aTime - aGroup.getMinutes() * MINUTE;
     }
 
     /**
-     * @param aDate reference Date
+     * @param aTime reference time
      * @param aGroup TrapGroup which specified some number of minutes
-     * @return Date after to given date (by number of minutes in group)
+     * @return time after given time (by number of minutes in group)
      */
-    private Date getCutoffEnd(Date aDate, TrapGroup aGroup)
+    private long getCutoffEnd(long aTime, TrapGroup aGroup)
     {
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(aDate);
-        cal.add(Calendar.MINUTE, aGroup.getMinutes());
-        return cal.getTime();
+        return aTime + aGroup.getMinutes() * MINUTE;
     }
 
     /**
-     * @param aStart start time, inclusive, if null then no lower limit
-     * @param aEnd end time, inclusive, if null then no upper limit
-     * @param aList ordered list of dates
-     * @return count of dates in list within given range
+     * @param aGroup TrapGroup with activity
+     * @return current time, which was recorded
      */
-    private int getWindowSize(Date aStart, Date aEnd, List<Date> aList)
+    private synchronized long markActive(TrapGroup aGroup)
     {
-        int count = 0;
-        for (Date date : aList)
+        Times times = active.get(aGroup);
+        if (times == null)
         {
-            if (aEnd != null && date.after(aEnd))
-            {
-                break;
-            }
-            else if (aStart == null || !date.before(aStart))
-            {
-                ++count;
-            }
+            times = new Times();
+            active.put(aGroup, times);
         }
-        return count;
+
+        long now = clock.currentTimeMillis();
+        times.add(now);
+        return now;
     }
 
     /**
-     * @param aGroup TrapGroup with activity
+     * <code>Times</code> is a growable ring of trap times in arrival order, so marking a
+     * group active stores a primitive rather than allocating a Date.
      */
-    private synchronized Date markActive(TrapGroup aGroup)
+    private static class Times
     {
-        if (!active.containsKey(aGroup))
+        private long[] times = new long[16];
+        private int head;
+        private int size;
+
+        void add(long aTime)
+        {
+            if (size == times.length)
+            {
+                long[] grown = new long[times.length * 2];
+                for (int i = 0; i < size; ++i)
+                {
+                    grown[i] = get(i);
+                }
+                times = grown;
+                head = 0;
+            }
+            times[(head + size) % times.length] = aTime;
+            ++size;
+        }
+
+        long get(int aIndex)
         {
-            active.put(aGroup, new ArrayList<Date>());
+            return times[(head + aIndex) % times.length];
         }
 
-        Date now = new Date();
-        active.get(aGroup).add(now);
-        return now;
+        int size()
+        {
+            return size;
+        }
+
+        /**
+         * @param aStart start time, inclusive
+         * @param aEnd end time, inclusive
+         * @return count of times within the given range
+         */
+        int count(long aStart, long aEnd)
+        {
+            int count = 0;
+            for (int i = 0; i < size; ++i)
+            {
+                long time = get(i);
+                if (time > aEnd)
+                {
+                    break;
+                }
+                else if (time >= aStart)
+                {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @param aCount number of oldest times to forget
+         */
+        void removeFirst(int aCount)
+        {
+            head = (head + aCount) % times.length;
+            size -= aCount;
+        }
     }
 
     private static class Consolidator extends Thread
@@ -384,7 +886,7 @@ public class TrapClassifier implements CommandResponder
                 while (true)
                 {
                     sleep(SLEEP_INTERVAL_MS);
-                    parent.sendAllConsolidated();
+                    parent.consolidate();
                 }
             }
             catch (InterruptedException ex)
@@ -0,0 +1,83 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+/**
+ * <code>TrapContext</code> is what the groups and forwarders of one configuration share:
+ * the Mailer delivering their emails, the Clock they run on, the delivery quotas of
+ * their recipients, their email templates and their escalation streaks.
+ * ClassifierFactory makes one per configuration it builds, so configurations replayed
+ * side by side in one JVM share nothing. TrapCatcher has no reload: it builds one
+ * configuration when it starts, so only a caller building a replacement itself hands it
+ * the old streaks, and the replacement still reads its templates again.
+ * @author justin.good
+ */
+public class TrapContext
+{
+    private final Mailer mailer;
+    private final Clock clock;
+    private final DeliveryQuota.Quotas quotas;
+    private final EscalationPolicy.Streaks streaks;
+    private final TemplateCache templates = new TemplateCache();
+
+    /**
+     * @param aMailer Mailer which delivers every email
+     * @param aClock Clock for quotas and the classifier
+     */
+    public TrapContext(Mailer aMailer, Clock aClock)
+    {
+        this(aMailer, aClock, new EscalationPolicy.Streaks());
+    }
+
+    /**
+     * @param aMailer Mailer which delivers every email
+     * @param aClock Clock for quotas and the classifier
+     * @param aStreaks escalation streaks to carry on, from the configuration replaced
+     */
+    public TrapContext(Mailer aMailer, Clock aClock, EscalationPolicy.Streaks aStreaks)
+    {
+        mailer = aMailer;
+        clock = aClock;
+        quotas = new DeliveryQuota.Quotas(aClock);
+        streaks = aStreaks;
+    }
+
+    /**
+     * @return Mailer which delivers every email
+     */
+    public Mailer getMailer()
+    {
+        return mailer;
+    }
+
+    /**
+     * @return Clock for quotas and the classifier
+     */
+    public Clock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * @return delivery quotas, one per recipient address with a quota
+     */
+    public DeliveryQuota.Quotas getQuotas()
+    {
+        return quotas;
+    }
+
+    /**
+     * @return email templates loaded by the forwarders
+     */
+    public TemplateCache getTemplates()
+    {
+        return templates;
+    }
+
+    /**
+     * @return escalation streaks of the groups
+     */
+    public EscalationPolicy.Streaks getStreaks()
+    {
+        return streaks;
+    }
+}
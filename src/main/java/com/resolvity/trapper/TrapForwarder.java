@@ -2,22 +2,27 @@
 package com.resolvity.trapper;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import javax.mail.Message;
 import javax.mail.Session;
-import javax.mail.Transport;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.log4j.Logger;
 
 import com.resolvity.utility.file.ReadableProperties;
-import com.resolvity.utility.file.ResourceLoader;
 import com.resolvity.utility.velocity.StringProcessor;
 
 /**
@@ -28,12 +33,32 @@ import com.resolvity.utility.velocity.StringProcessor;
  */
 public class TrapForwarder
 {
+    private static final int DEFAULT_TIMEOUT = 60; // seconds
+    // shared by every forwarder, caps concurrent SMTP conversations per host
+    private static final ConcurrentMap<String,Semaphore> SMTP_PERMITS =
+        new ConcurrentHashMap<String,Semaphore>();
+    // shared by every forwarder, keeps what no SMTP server would take; null for none
+    private static volatile RetrySpool spool;
+    // shared by every forwarder, a mail Session per SMTP server
+    private static final ConcurrentMap<String,Session> SESSIONS =
+        new ConcurrentHashMap<String,Session>();
+    private static final int MAX_SENDERS = 256; // From addresses kept per forwarder
+
     private final Logger log = Logger.getLogger(getClass().getSimpleName());
     private final List<String> addresses;
+    private final InternetAddress[] recipients; // parsed addresses, never modified
+    private final InternetAddress from; // used unless the trap names a stack
+    private final ConcurrentMap<String,InternetAddress> stackFrom =
+        new ConcurrentHashMap<String,InternetAddress>();
     private final List<String> smtpList;
     private final String template;
     private final String domain; // used for sent emails
     private final boolean noSubject;
+    private final int smtpPermits; // 0 means unlimited
+    private final Mailer mailer;
+    private final Clock clock; // for quotas
+    private final List<DeliveryQuota> quotas; // by address, empty if unlimited
+    private final long timeout; // milliseconds a fan out waits for us, and SMTP i/o
 
     /**
      * @param aProps ReadableProperties
@@ -41,21 +66,73 @@ public class TrapForwarder
      */
     public TrapForwarder(ReadableProperties aProps, String aName)
     {
+        this(aProps, aName, SmtpMailer.INSTANCE);
+    }
+
+    /**
+     * @param aProps ReadableProperties
+     * @param aName our domain within the properties file
+     * @param aMailer Mailer which delivers our messages
+     */
+    public TrapForwarder(ReadableProperties aProps, String aName, Mailer aMailer)
+    {
+        this(aProps, aName, new TrapContext(aMailer, SystemClock.INSTANCE));
+    }
+
+    /**
+     * @param aProps ReadableProperties
+     * @param aName our domain within the properties file
+     * @param aContext TrapContext of our configuration, with its Mailer and quotas
+     */
+    public TrapForwarder(ReadableProperties aProps, String aName, TrapContext aContext)
+    {
+        mailer = aContext.getMailer();
+        clock = aContext.getClock();
         smtpList = new ArrayList<String>();
-        smtpList.addAll(aProps.getStringList(null, "smtp"));
+        for (String smtp : aProps.getStringList(null, "smtp"))
+        {
+            smtpList.add(smtp.trim());
+        }
         if (smtpList.isEmpty())
         {
             smtpList.add("localhost");
         }
 
+        smtpPermits = aProps.getInt("smtp", "permits", 0);
+
         addresses = aProps.getStringList(aName, "address");
         noSubject = aProps.getBoolean(aName, "noSubject", false);
         domain = aProps.getString(aName, "domain", "resolvity.com");
-        
+        timeout = aProps.getInt(aName, "timeout", DEFAULT_TIMEOUT) * 1000L;
+        try
+        {
+            recipients = new InternetAddress[addresses.size()];
+            for (int i = 0; i < recipients.length; ++i)
+            {
+                recipients[i] = new InternetAddress(addresses.get(i).trim());
+            }
+            from = new InternetAddress("trap@" + domain);
+        }
+        catch (AddressException ex)
+        {
+            throw new RuntimeException("invalid address for " + aName, ex);
+        }
+
+        quotas = new ArrayList<DeliveryQuota>();
+        int quota = aProps.getInt(aName, "quota", 0);
+        if (quota > 0)
+        {
+            int burst = aProps.getInt(aName + ".quota", "burst", quota);
+            for (String address : addresses)
+            {
+                quotas.add(aContext.getQuotas().get(address, quota, burst));
+            }
+        }
+
         try
         {
             String path = aProps.getString(aName, "template", null);
-            template = ResourceLoader.loadTextResource(path).toString();
+            template = aContext.getTemplates().load(path);
         }
         catch (IOException ex)
         {
@@ -63,6 +140,45 @@ public class TrapForwarder
         }
     }
 
+    /**
+     * @param aSpool RetrySpool for messages no SMTP server would take, or null to drop
+     *            them
+     */
+    public static void setSpool(RetrySpool aSpool)
+    {
+        spool = aSpool;
+    }
+
+    /**
+     * @return milliseconds a FanOut waits for us before reporting failure
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * @param aGroups TrapGroups whose forwarders are wanted
+     * @return one forwarder per distinct list of addresses, so shared destinations get a
+     *         single copy of a summary
+     */
+    public static Collection<TrapForwarder> distinct(Collection<TrapGroup> aGroups)
+    {
+        Map<List<String>,TrapForwarder> destinations =
+            new LinkedHashMap<List<String>,TrapForwarder>();
+        for (TrapGroup group : aGroups)
+        {
+            for (TrapForwarder fwd : group.getForwarders())
+            {
+                if (!destinations.containsKey(fwd.addresses))
+                {
+                    destinations.put(fwd.addresses, fwd);
+                }
+            }
+        }
+        return destinations.values();
+    }
+
     /**
      * @param aMap Map of string to string used for Velocity replacements
      * @return merged String, note first line is intended to be the subject
@@ -73,84 +189,286 @@ public class TrapForwarder
     }
 
     /**
+     * @param aSmtp SMTP server, host or host:port
+     * @return mail Session for the SMTP server, with the default timeout
+     */
+    static Session createSession(String aSmtp)
+    {
+        return createSession(aSmtp, DEFAULT_TIMEOUT * 1000L);
+    }
+
+    /**
+     * @param aSmtp SMTP server, host or host:port
+     * @param aTimeout milliseconds allowed to connect, and for each read and write
+     * @return mail Session for the SMTP server
+     */
+    static Session createSession(String aSmtp, long aTimeout)
+    {
+        String key = aSmtp + "/" + aTimeout;
+        Session session = SESSIONS.get(key);
+        if (session == null)
+        {
+            SESSIONS.putIfAbsent(key, newSession(aSmtp, aTimeout));
+            session = SESSIONS.get(key);
+        }
+        return session;
+    }
+
+    /**
+     * @param aSmtp SMTP server, host or host:port
+     * @param aTimeout milliseconds allowed to connect, and for each read and write
+     * @return new mail Session for the SMTP server
+     */
+    private static Session newSession(String aSmtp, long aTimeout)
+    {
+        Properties props = new Properties();
+        // a hung relay must not hold a thread and its SMTP permit forever
+        String timeout = String.valueOf(aTimeout);
+        props.put("mail.smtp.connectiontimeout", timeout);
+        props.put("mail.smtp.timeout", timeout);
+        props.put("mail.smtp.writetimeout", timeout);
+        int colon = aSmtp.indexOf(':');
+        if (colon > 0 && colon == aSmtp.lastIndexOf(':'))
+        {
+            props.put("mail.smtp.host", aSmtp.substring(0, colon).trim());
+            props.put("mail.smtp.port", aSmtp.substring(colon + 1).trim());
+        }
+        else
+        {
+            props.put("mail.smtp.host", aSmtp);
+        }
+        return Session.getInstance(props);
+    }
+
+    /**
+     * @param aSmtp SMTP server, host or host:port
      * @return empty Message object destined for our SMTP server
      */
     private Message initMessage(String aSmtp)
     {
-        Properties props = new Properties();
-        props.put("mail.smtp.host", aSmtp);
+        return new MimeMessage(createSession(aSmtp, timeout));
+    }
+
+    /**
+     * Blocks until the given SMTP host has a free permit, if permits are limited
+     * @param aSmtp SMTP server address
+     * @return Semaphore holding our permit, or null if unlimited
+     */
+    private Semaphore acquire(String aSmtp)
+    {
+        if (smtpPermits <= 0)
+        {
+            return null;
+        }
+
+        Semaphore permits = SMTP_PERMITS.get(aSmtp);
+        if (permits == null)
+        {
+            SMTP_PERMITS.putIfAbsent(aSmtp, new Semaphore(smtpPermits, true));
+            permits = SMTP_PERMITS.get(aSmtp);
+        }
+        permits.acquireUninterruptibly();
+        return permits;
+    }
 
-        Session session = Session.getInstance(props);
-        return new MimeMessage(session);
+    /**
+     * @param aPermit Semaphore returned by acquire, may be null
+     */
+    private static void release(Semaphore aPermit)
+    {
+        if (aPermit != null)
+        {
+            aPermit.release();
+        }
     }
 
     /**
      * @param aMap Map of string to string used for Velocity replacements
      * @return true if message was sent
      */
-    public boolean send(Map<String,String> aMap)
+    public boolean send(final Map<String,String> aMap)
     {
-        for (String smtp : smtpList)
+        // merged once, however many SMTP servers are tried
+        final String merged = merge(aMap);
+        return deliver(new Composer()
         {
-            try
+            public Message compose(String aSmtp, InternetAddress[] aTo) throws Exception
             {
-                send(smtp, aMap);
-                return true; // return after first success
+                return composeTemplate(aSmtp, aTo, merged, aMap.get("stack"));
             }
-            catch (Exception ex)
+        });
+    }
+
+    /**
+     * Send through the first SMTP server which takes the message; if none will, or
+     * earlier messages to our addresses are still spooled, spool it for retry
+     * @param aComposer builds the message for each SMTP server tried
+     * @return true if message was sent now
+     */
+    private boolean deliver(Composer aComposer)
+    {
+        if (quotas.isEmpty())
+        {
+            return deliver(aComposer, recipients);
+        }
+
+        List<InternetAddress> admitted = new ArrayList<InternetAddress>(recipients.length);
+        long now = clock.currentTimeMillis();
+        for (int i = 0; i < recipients.length; ++i)
+        {
+            if (quotas.get(i).admit(this, now))
             {
-                log.error("failed to send to " + addresses + " via " + smtp, ex);
+                admitted.add(recipients[i]);
             }
         }
-        return false;
+        if (admitted.isEmpty())
+        {
+            if (log.isInfoEnabled())
+            {
+                log.info("over quota, suppressed email to " + addresses);
+            }
+            return false;
+        }
+        return deliver(aComposer, (admitted.size() < recipients.length)
+            ? admitted.toArray(new InternetAddress[admitted.size()]) : recipients);
     }
 
     /**
-     * @param aSmtp SMTP server address
-     * @param aMap Map of string to string used for Velocity replacements
-     * @throws Exception
+     * @param aComposer builds the message for each SMTP server tried
+     * @param aTo recipients, all or some of our addresses
+     * @return true if message was sent now
      */
-    private void send(String aSmtp, Map<String,String> aMap) throws Exception
+    private boolean deliver(Composer aComposer, InternetAddress[] aTo)
     {
-        Message msg = initMessage(aSmtp);
-        String merged = merge(aMap);
-
-        final String subject, body;
-        if (noSubject)
+        RetrySpool retry = spool;
+        String key = toString();
+        Message msg = null;
+        if (retry == null || !retry.hasBacklog(key))
         {
-            subject = null;
-            body = merged;
+            for (String smtp : smtpList)
+            {
+                Semaphore permit = acquire(smtp);
+                try
+                {
+                    msg = aComposer.compose(smtp, aTo);
+                    mailer.send(msg);
+                    return true; // return after first success
+                }
+                catch (Exception ex)
+                {
+                    log.error("failed to send to " + addresses + " via " + smtp, ex);
+                }
+                finally
+                {
+                    release(permit);
+                }
+            }
         }
         else
         {
-            // subject is the first line
-            String[] parts = merged.split("[\\r\\n]+", 2);
-            subject = parts[0].trim();
-            body = parts[1].trim();
+            try
+            {
+                // queued behind the backlog
+                msg = aComposer.compose(smtpList.get(0), aTo);
+            }
+            catch (Exception ex)
+            {
+                log.error("failed to compose for " + addresses, ex);
+            }
+        }
+
+        if (retry != null && msg != null && retry.add(key, smtpList, msg))
+        {
+            log.warn("spooled email to " + addresses + " for retry");
         }
+        return false;
+    }
 
-        String stack = aMap.get("stack");
-        if (stack != null)
+    /**
+     * Tell one of our addresses how many messages its quota suppressed; the caller has
+     * already taken a token for this
+     * @param aAddress one of our addresses
+     * @param aCount messages suppressed
+     * @param aSince when the first of them was suppressed
+     * @return true if message was sent
+     */
+    public boolean sendSuppressed(String aAddress, int aCount, Date aSince)
+    {
+        final String text = aCount + " more alerts suppressed since " + aSince;
+        InternetAddress to = null;
+        for (int i = 0; i < recipients.length; ++i)
         {
-            msg.setFrom(new InternetAddress(stack + "@" + domain, stack));
+            if (addresses.get(i).trim().equalsIgnoreCase(aAddress.trim()))
+            {
+                to = recipients[i];
+            }
         }
-        else
+        if (to == null)
         {
-            msg.setFrom(new InternetAddress("trap@" + domain));
+            log.warn("not sending suppressed count to " + aAddress + ", not one of ours");
+            return false;
         }
+        return deliver(new Composer()
+        {
+            public Message compose(String aSmtp, InternetAddress[] aTo) throws Exception
+            {
+                return composeText(aSmtp, aTo, text, text);
+            }
+        }, new InternetAddress[] {to});
+    }
+
+    /**
+     * @param aSmtp SMTP server address
+     * @param aTo recipients
+     * @param aMerged our template merged with the trap's variables
+     * @param aStack stack named by the trap, or null
+     * @return message ready to send
+     * @throws Exception
+     */
+    private Message composeTemplate(String aSmtp, InternetAddress[] aTo, String aMerged,
+                                    String aStack)
+        throws Exception
+    {
+        Message msg = initMessage(aSmtp);
+        msg.setFrom((aStack != null) ? getStackFrom(aStack) : from);
+        msg.setRecipients(Message.RecipientType.TO, aTo);
 
-        for (String address : addresses)
+        if (noSubject)
+        {
+            msg.setContent(aMerged, "text/plain");
+        }
+        else
         {
-            InternetAddress to = new InternetAddress(address);
-            msg.addRecipient(Message.RecipientType.TO, to);
+            // subject is the first line, the body starts after the line break
+            int eol = 0;
+            while (eol < aMerged.length() && aMerged.charAt(eol) != '\r'
+                && aMerged.charAt(eol) != '\n')
+            {
+                ++eol;
+            }
+            msg.setSubject(aMerged.substring(0, eol).trim());
+            msg.setContent(aMerged.substring(eol).trim(), "text/plain");
         }
+        return msg;
+    }
 
-        if (subject != null)
+    /**
+     * @param aStack stack named by a trap
+     * @return From address for the stack, parsed once for the first MAX_SENDERS stacks
+     * @throws UnsupportedEncodingException
+     */
+    private InternetAddress getStackFrom(String aStack) throws UnsupportedEncodingException
+    {
+        InternetAddress address = stackFrom.get(aStack);
+        if (address == null)
         {
-            msg.setSubject(subject);
+            address = new InternetAddress(aStack + "@" + domain, aStack);
+            if (stackFrom.size() < MAX_SENDERS)
+            {
+                stackFrom.putIfAbsent(aStack, address);
+            }
         }
-        msg.setContent(body, "text/plain");
-        Transport.send(msg);
+        return address;
     }
 
     /**
@@ -161,48 +479,68 @@ public class TrapForwarder
      */
     public boolean sendConsolidated(String aName, Date aStart, int aCount)
     {
-        for (String smtp : smtpList)
+        return sendConsolidated(aName, aStart, aCount, "");
+    }
+
+    /**
+     * @param aName group name
+     * @param aStart start of window we are consolidating
+     * @param aCount number of traps during this window
+     * @param aDetail extra lines for the body, such as the top senders
+     * @return true if message was sent
+     */
+    public boolean sendConsolidated(String aName, Date aStart, int aCount, String aDetail)
+    {
+        String subject = aName + " " + aCount;
+        StringBuilder body = new StringBuilder(subject.length() + aDetail.length() + 40);
+        body.append(subject).append(" since ").append(aStart);
+        if (aDetail.length() > 0)
         {
-            try
-            {
-                sendConsolidated(smtp, aName, aStart, aCount);
-                return true; // return after first success
-            }
-            catch (Exception ex)
+            body.append("\n\n").append(aDetail);
+        }
+        return sendText(subject, body.toString());
+    }
+
+    /**
+     * Send a plain message (not based on our template) to our addresses
+     * @param aSubject subject line, dropped if we use noSubject
+     * @param aBody message body
+     * @return true if message was sent
+     */
+    public boolean sendText(final String aSubject, final String aBody)
+    {
+        return deliver(new Composer()
+        {
+            public Message compose(String aSmtp, InternetAddress[] aTo) throws Exception
             {
-                log.error("failed to send to " + addresses + " via " + smtp, ex);
+                return composeText(aSmtp, aTo, aSubject, aBody);
             }
-        }
-        return false;
+        });
     }
 
     /**
      * @param aSmtp SMTP server address
-     * @param aName group name
-     * @param aStart start of window we are consolidating
-     * @param aCount number of traps during this window
+     * @param aTo recipients
+     * @param aSubject subject line, dropped if we use noSubject
+     * @param aBody message body
+     * @return message ready to send
+     * @throws Exception
      */
-    private void sendConsolidated(String aSmtp, String aName, Date aStart, int aCount)
+    private Message composeText(String aSmtp, InternetAddress[] aTo, String aSubject,
+                                String aBody)
         throws Exception
     {
         Message msg = initMessage(aSmtp);
-
-        msg.setFrom(new InternetAddress("trap@" + domain));
-
-        for (String address : addresses)
-        {
-            InternetAddress to = new InternetAddress(address);
-            msg.addRecipient(Message.RecipientType.TO, to);
-        }
+        msg.setFrom(from);
+        msg.setRecipients(Message.RecipientType.TO, aTo);
 
         if (!noSubject)
         {
-            msg.setSubject(aName + " " + aCount);
+            msg.setSubject(aSubject);
         }
 
-        String body = aName + " " + aCount + " since " + aStart;
-        msg.setContent(body, "text/plain");
-        Transport.send(msg);
+        msg.setContent(aBody, "text/plain");
+        return msg;
     }
 
     /** {@inheritDoc} */
@@ -211,4 +549,12 @@ public class TrapForwarder
     {
         return addresses.toString();
     }
+
+    /**
+     * <code>Composer</code> builds a message for one SMTP server.
+     */
+    private interface Composer
+    {
+        Message compose(String aSmtp, InternetAddress[] aTo) throws Exception;
+    }
 }
@@ -5,9 +5,9 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +17,8 @@ import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.Null;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.Variable;
@@ -42,42 +44,130 @@ import com.resolvity.utility.file.ReadableProperties;
  * schedule is a comma-separated list of time at which a digest of a trap will be sent.
  * For example, 08:00, 12:00, 16:00. Note if both minutes and schedule are specified,
  * schedule will be used and a warning will be logged.
+ * <p>
+ * priority names the lane accepted traps are queued on when lanes are enabled, for
+ * example "high" for groups that page someone; the default is "normal".
+ * <p>
+ * dedup is a list of fields (renamed variables, OIDs, "sender" or "body") identifying
+ * repeats of the same trap; any other field is a configuration error. Repeats within
+ * dedup.seconds are not forwarded and do not count towards consolidation; they are
+ * announced once, with a count and the values of the fields, when they expire.
+ * <p>
+ * Each group also keeps a heavy hitter sketch of its top senders and top (normalised)
+ * messages since consolidation started or the last digest; "top" is how many of each
+ * are reported (default 5).
+ * <p>
+ * distinct is a list of fields (renamed variables, OIDs, "sender" or "body") whose
+ * distinct values are estimated with a HyperLogLog sketch per field, both for the current window and since
+ * startup; templates see the window estimate as $distinct_<field>.
+ * <p>
+ * Scheduled digests keep the first digest.first traps of the window plus a random sample
+ * of digest.sample of the rest, each flattened to one line of at most digest.chars;
+ * templates see them as $samples (one per line) and $sample_count.
+ * <p>
+ * escalate.windows is the number of consecutive consolidation windows at or above the
+ * limit after which each consolidation is also sent to the escalate.forward.N
+ * forwarders, again every escalate.windows windows while it lasts.
  * @author justin.good
  */
 public class TrapGroup
 {
     public static final int DEFAULT_MINUTES = 15;
     public static final int DEFAULT_LIMIT = 3;
+    public static final int DEFAULT_DEDUP_SECONDS = 60;
+    public static final int DEFAULT_DEDUP_SIZE = 1024;
+    public static final int DEFAULT_TOP = 5;
+    public static final int DEFAULT_DIGEST_FIRST = 5;
+    public static final int DEFAULT_DIGEST_SAMPLE = 5;
+    public static final int DEFAULT_DIGEST_CHARS = 200;
+    private static final long MINUTE = 60000L;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int TOP_TRACKED_PER_REPORTED = 4;
+    private static final int MAX_MESSAGE = 100;
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final Pattern NUMERIC_OID = Pattern.compile("\\d+(\\.\\d+)*");
 
     private final Logger log = Logger.getLogger(getClass().getSimpleName());
     private final String name;
     private final int minutes;
     private final int limit;
+    private final String priority;
     private final OID varOid;
     private final Pattern varMatch;
     private final Pattern bodyFind;
+    private final OID enterprise;
     private final List<String> senders = new ArrayList<String>();
+    private final List<AddressRange> senderRanges = new ArrayList<AddressRange>();
     private final Map<OID,String> rename = new HashMap<OID,String>();
     private final List<TrapForwarder> forwarders;
+    private final List<String> dedupFields = new ArrayList<String>();
+    private final List<OID> dedupOids = new ArrayList<OID>();
+    private final DuplicateFilter duplicates;
+    private final int top;
+    private final TopK topSenders;
+    private final TopK topMessages;
+    private final int distinctPrecision;
+    private final List<String> distinctFields = new ArrayList<String>();
+    private final List<OID> distinctOids = new ArrayList<OID>();
+    private final List<HyperLogLog> distinctWindow = new ArrayList<HyperLogLog>();
+    private final List<HyperLogLog> distinctTotal = new ArrayList<HyperLogLog>();
     private final List<String> schedules = new ArrayList<String>();
     private final SimpleDateFormat sdf2 = new SimpleDateFormat("MM-dd HH:mm");
     private int indexOfLastProcessedSchedule = -1;
+    private final DigestBuffer samples;
+    private final EscalationPolicy escalation;
     private DataHolder mostRecentTrap = new DataHolder();
     private AtomicInteger numberOfTraps = new AtomicInteger(0);
-    private Date lastSentTime = null; // time when last trap from this group was sent
+    private long lastSentTime = 0; // time when last trap from this group was sent, 0 if never
+    private int[] scheduleMinutes = new int[0]; // minute of the day of each schedule
+    private final TimeZone zone = TimeZone.getDefault();
+    private volatile Clock clock = SystemClock.INSTANCE;
 
     /**
      * @param aProps ReadableProperties
      * @param aName our domain within the properties file
      */
     public TrapGroup(ReadableProperties aProps, String aName)
+    {
+        this(aProps, aName, SmtpMailer.INSTANCE);
+    }
+
+    /**
+     * @param aProps ReadableProperties
+     * @param aName our domain within the properties file
+     * @param aMailer Mailer which delivers the emails of our forwarders
+     */
+    public TrapGroup(ReadableProperties aProps, String aName, Mailer aMailer)
+    {
+        this(aProps, aName, new TrapContext(aMailer, SystemClock.INSTANCE));
+    }
+
+    /**
+     * @param aProps ReadableProperties
+     * @param aName our domain within the properties file
+     * @param aContext TrapContext shared by the groups of our configuration
+     */
+    public TrapGroup(ReadableProperties aProps, String aName, TrapContext aContext)
     {
         name = aName;
         minutes = aProps.getInt(aName, "minutes", DEFAULT_MINUTES);
         limit = aProps.getInt(aName, "limit", DEFAULT_LIMIT);
+        priority = aProps.getString(aName, "priority", PriorityLanes.DEFAULT_LANE).trim();
 
-        senders.addAll(aProps.getStringList(aName, "sender"));
-        forwarders = loadForwarders(aProps, aName);
+        for (String sender : aProps.getStringList(aName, "sender"))
+        {
+            senders.add(sender.trim());
+            if (AddressRange.isRange(sender))
+            {
+                senderRanges.add(AddressRange.parse(sender));
+            }
+        }
+        forwarders = loadForwarders(aProps, aName, aContext);
+        int escalateWindows = aProps.getInt(aName + ".escalate", "windows", 0);
+        escalation = (escalateWindows > 0) ? new EscalationPolicy(aName, escalateWindows,
+            loadForwarders(aProps, aName + ".escalate", aContext), aContext.getStreaks())
+            : null;
 
         String oidStr = aProps.getString(aName, "var.oid", null);
         varOid = (oidStr != null) ? new OID(oidStr) : null;
@@ -88,6 +178,9 @@ public class TrapGroup
         String findStr = aProps.getString(aName, "find", null);
         bodyFind = (findStr != null) ? Pattern.compile(findStr) : null;
 
+        String enterpriseStr = aProps.getString(aName, "enterprise", null);
+        enterprise = (enterpriseStr != null) ? new OID(enterpriseStr.trim()) : null;
+
         String scheduleStr = aProps.getString(aName, "schedule", null);
         populateSchedules(scheduleStr);
 
@@ -107,6 +200,43 @@ public class TrapGroup
             rename.put(oid, renameMap.get(key));
         }
 
+        top = aProps.getInt(aName, "top", DEFAULT_TOP);
+        topSenders = new TopK(top * TOP_TRACKED_PER_REPORTED);
+        topMessages = new TopK(top * TOP_TRACKED_PER_REPORTED);
+
+        for (String field : aProps.getStringList(aName, "dedup"))
+        {
+            dedupFields.add(field.trim());
+            dedupOids.add(toOid(field.trim()));
+        }
+        distinctPrecision = aProps.getInt(aName + ".distinct", "precision",
+                                          HyperLogLog.DEFAULT_PRECISION);
+        for (String field : aProps.getStringList(aName, "distinct"))
+        {
+            distinctFields.add(field.trim());
+            distinctOids.add(toOid(field.trim()));
+            distinctWindow.add(new HyperLogLog(distinctPrecision));
+            distinctTotal.add(new HyperLogLog(distinctPrecision));
+        }
+
+        samples = new DigestBuffer(aProps.getInt(aName + ".digest", "first",
+                                                 DEFAULT_DIGEST_FIRST),
+                                   aProps.getInt(aName + ".digest", "sample",
+                                                 DEFAULT_DIGEST_SAMPLE),
+                                   aProps.getInt(aName + ".digest", "chars",
+                                                 DEFAULT_DIGEST_CHARS));
+
+        if (!dedupFields.isEmpty())
+        {
+            int seconds = aProps.getInt(aName + ".dedup", "seconds", DEFAULT_DEDUP_SECONDS);
+            int size = aProps.getInt(aName + ".dedup", "size", DEFAULT_DEDUP_SIZE);
+            duplicates = new DuplicateFilter(seconds * 1000L, size);
+        }
+        else
+        {
+            duplicates = null;
+        }
+
         if (hasSchedule())
         {
             log.warn(String.format("[%s] schedule is used.", name));
@@ -118,10 +248,12 @@ public class TrapGroup
     /**
      * @param aProps ReadableProperties
      * @param aName our domain within the properties file
+     * @param aContext TrapContext of our configuration
      * @return List of TrapForwarders
      */
     private static List<TrapForwarder> loadForwarders(ReadableProperties aProps,
-                                                      String aName)
+                                                      String aName,
+                                                      TrapContext aContext)
     {
         List<TrapForwarder> list = new ArrayList<TrapForwarder>();
 
@@ -131,7 +263,7 @@ public class TrapGroup
             String template = aProps.getString(fwdName, "template", null);
             if (template != null)
             {
-                list.add(new TrapForwarder(aProps, fwdName));
+                list.add(new TrapForwarder(aProps, fwdName, aContext));
             }
         }
         return list;
@@ -153,6 +285,14 @@ public class TrapGroup
         return minutes;
     }
 
+    /**
+     * @return name of the lane this group's traps are queued on
+     */
+    public String getPriority()
+    {
+        return priority;
+    }
+
     /**
      * @return the name
      */
@@ -161,6 +301,14 @@ public class TrapGroup
         return name;
     }
 
+    /**
+     * @return our email destinations
+     */
+    public List<TrapForwarder> getForwarders()
+    {
+        return forwarders;
+    }
+
     /**
      * @param aPdu PDU
      * @return each VariableBinding's value on a new line
@@ -187,6 +335,17 @@ public class TrapGroup
      * @return map from string format of OID (or renamed name) to variable value
      */
     public Map<String,String> getVarMap(PDU aPdu, InetAddress aSender)
+    {
+        Map<String,String> map = getVarMap(aPdu);
+        map.put("sender", aSender.getHostName());
+        return map;
+    }
+
+    /**
+     * @param aPdu PDU
+     * @return map as above, without the sender (which needs a DNS lookup)
+     */
+    private Map<String,String> getVarMap(PDU aPdu)
     {
         StringBuilder body = new StringBuilder();
         StringBuilder remainder = new StringBuilder();
@@ -218,11 +377,10 @@ public class TrapGroup
             }
         }
 
-        // finally, add the sender and the entire body as their own variables
+        // finally, add the entire body as its own variable
         map.put("name", name);
         map.put("body", body.toString());
         map.put("remainder", remainder.toString());
-        map.put("sender", aSender.getHostName());
 
         return map;
     }
@@ -242,6 +400,10 @@ public class TrapGroup
         {
             return false;
         }
+        else if (!matchesEnterprise(aPdu))
+        {
+            return false;
+        }
         else if (!matchesFind(aPdu))
         {
             return false;
@@ -250,6 +412,49 @@ public class TrapGroup
         return true;
     }
 
+    /**
+     * @return true if this group can be matched from the sender and trap OID alone, which
+     *         is what the raw packet prefilter requires
+     */
+    public boolean isRawMatchable()
+    {
+        return bodyFind == null && varOid == null
+            && (enterprise == null || enterprise.size() >= 2)
+            && (!senders.isEmpty() || enterprise != null);
+    }
+
+    /**
+     * @return sender specifications which are single hosts rather than ranges
+     */
+    public List<String> getSenderHosts()
+    {
+        List<String> list = new ArrayList<String>();
+        for (String sender : senders)
+        {
+            if (!AddressRange.isRange(sender))
+            {
+                list.add(sender);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return sender specifications which are ranges
+     */
+    public List<AddressRange> getSenderRanges()
+    {
+        return Collections.unmodifiableList(senderRanges);
+    }
+
+    /**
+     * @return enterprise OID prefix, or null if not used
+     */
+    public OID getEnterprise()
+    {
+        return enterprise;
+    }
+
     /**
      * Send our trap to all our email destinations
      * @param aPdu PDU
@@ -257,46 +462,360 @@ public class TrapGroup
      */
     public void forward(PDU aPdu, InetAddress aSender)
     {
-        Map<String,String> map = getVarMap(aPdu, aSender);
-        boolean sent = false;
-        for (TrapForwarder fwd : forwarders)
+        final Map<String,String> map = getVarMap(aPdu, aSender);
+        putDistinct(map);
+        if (log.isDebugEnabled())
+        {
+            log.debug(name + " sending " + aPdu + " to " + forwarders);
+        }
+        boolean[] sent = FanOut.send(forwarders, new FanOut.Send()
         {
-            if (log.isDebugEnabled())
+            public boolean send(TrapForwarder aForwarder)
             {
-                log.debug(name + " sending " + aPdu + " to " + fwd);
+                return aForwarder.send(map);
             }
-
-            fwd.send(map);
-            sent = true;
+        });
+        logFailures("trap", sent);
+        if (sent.length > 0)
+        {
+            setLastSentTime(clock.currentTimeMillis());
         }
-        if(sent)
+    }
+
+    /**
+     * @param aWhat what was sent, for the log
+     * @param aSent per forwarder, true if it sent the message
+     */
+    private void logFailures(String aWhat, boolean[] aSent)
+    {
+        for (int i = 0; i < aSent.length; ++i)
         {
-        	setLastSentTime(new Date());
+            if (!aSent[i] && log.isInfoEnabled())
+            {
+                log.info(name + " " + aWhat + " not sent to " + forwarders.get(i));
+            }
         }
     }
 
     /**
-     * @param aStart start of window we are consolidating
+     * @param aStart start of window we are consolidating, in milliseconds
      * @param aCount count during consolidation window
+     * @return escalation now due, for the caller to send once it holds no lock, or null
+     */
+    public Notice sendConsolidated(long aStart, int aCount)
+    {
+        final Date start = new Date(aStart);
+        final String detail = describeTop();
+        final int count = aCount;
+        clearSketches();
+        if (log.isInfoEnabled())
+        {
+            log.info(name + " sending consolidation of " + aCount + " since "
+                    + start + " to " + forwarders);
+        }
+        boolean[] sent = FanOut.send(forwarders, new FanOut.Send()
+        {
+            public boolean send(TrapForwarder aForwarder)
+            {
+                return aForwarder.sendConsolidated(name, start, count, detail);
+            }
+        });
+        logFailures("consolidation", sent);
+        if (sent.length > 0)
+        {
+        	setLastSentTime(clock.currentTimeMillis());
+        }
+        return (escalation != null)
+            ? escalation.window(aCount >= limit, start, aCount, detail) : null;
+    }
+
+    /**
+     * Consolidation of this group stopped, so any escalation streak ends
+     */
+    public void stopConsolidation()
+    {
+        if (escalation != null)
+        {
+            escalation.reset();
+        }
+    }
+
+    /**
+     * @param aField dedup or distinct field, a renamed variable or an OID
+     * @return OID of the field, or null for "sender" and "body"
+     * @throws IllegalArgumentException if the field is none of these
+     */
+    private OID toOid(String aField)
+    {
+        if (aField.equals("sender") || aField.equals("body"))
+        {
+            return null;
+        }
+        for (Map.Entry<OID,String> entry : rename.entrySet())
+        {
+            if (entry.getValue().equals(aField))
+            {
+                return entry.getKey();
+            }
+        }
+        if (!NUMERIC_OID.matcher(aField).matches())
+        {
+            throw new IllegalArgumentException("unknown field for " + name + ": " + aField
+                + " is not sender, body, a renamed variable or an OID");
+        }
+        return new OID(aField);
+    }
+
+    /**
+     * @param aField "sender" or a variable we rename
+     * @param aPdu PDU
+     * @param aSender InetAddress (IP)
+     * @return value of the field, or null if we don't rename it or the trap lacks it
+     */
+    public String getField(String aField, PDU aPdu, InetAddress aSender)
+    {
+        if (aField.equals("sender"))
+        {
+            return aSender.getHostAddress();
+        }
+        if (!rename.containsValue(aField))
+        {
+            return null;
+        }
+        return getValue(aPdu, toOid(aField));
+    }
+
+    /**
+     * @param aKeys renamed variables identifying an incident
+     * @param aPdu PDU
+     * @return "name=value" of every key, or null if we don't rename them all or the trap
+     *         lacks one of them
+     */
+    public String getCorrelationKey(List<String> aKeys, PDU aPdu)
+    {
+        StringBuilder str = new StringBuilder();
+        for (String key : aKeys)
+        {
+            if (!rename.containsValue(key))
+            {
+                return null;
+            }
+            String value = getValue(aPdu, toOid(key));
+            if (value == null)
+            {
+                return null;
+            }
+            if (str.length() > 0)
+            {
+                str.append(",");
+            }
+            str.append(key).append("=").append(value);
+        }
+        return (str.length() > 0) ? str.toString() : null;
+    }
+
+    /**
+     * @param aPdu PDU
+     * @param aSender InetAddress (IP)
+     * @return true if dedup is used and this trap repeats one seen within the window
+     */
+    public boolean isDuplicate(PDU aPdu, InetAddress aSender)
+    {
+        if (duplicates == null)
+        {
+            return false;
+        }
+
+        // the label shows what the key is made of, so the sender only if it is part
+        long hash = Hash64.SEED;
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < dedupFields.size(); ++i)
+        {
+            String field = dedupFields.get(i);
+            OID oid = dedupOids.get(i);
+            String value;
+            if (oid != null)
+            {
+                value = getValue(aPdu, oid);
+            }
+            else if (field.equals("sender"))
+            {
+                value = aSender.getHostAddress();
+            }
+            else
+            {
+                value = getBody(aPdu);
+            }
+            hash = Hash64.add(hash, value);
+            if (value != null)
+            {
+                if (label.length() > 0)
+                {
+                    label.append(" ");
+                }
+                label.append((oid == null && !field.equals("sender")) ? normalize(value)
+                    : value);
+            }
+        }
+
+        boolean dup = duplicates.isDuplicate(Hash64.finish(hash), label.toString(),
+                                             clock.currentTimeMillis());
+        if (dup && log.isDebugEnabled())
+        {
+            log.debug(name + " suppressed duplicate " + label);
+        }
+        return dup;
+    }
+
+    /**
+     * Count this trap towards our top senders and messages, and distinct values
+     * @param aPdu PDU
+     * @param aSender InetAddress (IP)
      */
-    public void sendConsolidated(Date aStart, int aCount)
+    public void sketch(PDU aPdu, InetAddress aSender)
     {
-    	boolean sent = false;
-        for (TrapForwarder fwd : forwarders)
+        topSenders.offer(aSender.getHostAddress());
+        topMessages.offer(normalize(getBody(aPdu)));
+
+        for (int i = 0; i < distinctOids.size(); ++i)
         {
-            if (log.isInfoEnabled())
+            OID oid = distinctOids.get(i);
+            String value;
+            if (oid != null)
+            {
+                value = getValue(aPdu, oid);
+            }
+            else if (distinctFields.get(i).equals("sender"))
+            {
+                value = aSender.getHostAddress();
+            }
+            else
             {
-                log.info(name + " sending consolidation of " + aCount + " since "
-                        + aStart + " to " + fwd);
+                value = getBody(aPdu);
             }
+            distinctWindow.get(i).offer(value);
+        }
+    }
+
+    /**
+     * @param aMap template map to which $distinct_&lt;field&gt; estimates are added
+     */
+    private void putDistinct(Map<String,String> aMap)
+    {
+        for (int i = 0; i < distinctFields.size(); ++i)
+        {
+            aMap.put("distinct_" + distinctFields.get(i),
+                     Long.toString(distinctWindow.get(i).estimate()));
+        }
+    }
+
+    /**
+     * @return distinct value estimates, for the window and since startup, or an empty
+     *         string if we don't use distinct
+     */
+    public String describeDistinct()
+    {
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < distinctFields.size(); ++i)
+        {
+            HyperLogLog window = distinctWindow.get(i);
+            HyperLogLog total = new HyperLogLog(distinctPrecision);
+            total.merge(distinctTotal.get(i));
+            total.merge(window);
+
+            str.append(distinctFields.get(i)).append(" window=").append(window.estimate());
+            str.append(" total=").append(total.estimate()).append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * @return top senders and messages of the current window, or an empty string
+     */
+    public String describeTop()
+    {
+        if (topSenders.getTotal() == 0)
+        {
+            return "";
+        }
+        return "top senders:\n" + topSenders.describe(top) + "top messages:\n"
+            + topMessages.describe(top);
+    }
+
+    /**
+     * Start a new window for our top senders and messages, and distinct values
+     */
+    public void clearSketches()
+    {
+        topSenders.clear();
+        topMessages.clear();
+
+        for (int i = 0; i < distinctWindow.size(); ++i)
+        {
+            HyperLogLog window = distinctWindow.get(i);
+            distinctTotal.get(i).merge(window);
+            window.clear();
+        }
+    }
+
+    /**
+     * @param aBody trap body
+     * @return body with numbers and whitespace runs collapsed, so traps which differ only
+     *         in ids and counts are counted together
+     */
+    static String normalize(String aBody)
+    {
+        String str = DIGITS.matcher(aBody).replaceAll("#");
+        str = SPACES.matcher(str).replaceAll(" ").trim();
+        return (str.length() > MAX_MESSAGE) ? str.substring(0, MAX_MESSAGE) : str;
+    }
 
-            fwd.sendConsolidated(name, aStart, aCount);
-            sent = true;
+    /**
+     * Email the repeats which were collapsed in windows that have since expired
+     */
+    public void sendDuplicates()
+    {
+        if (duplicates == null)
+        {
+            return;
         }
-        if(sent)
+
+        duplicates.rotate(clock.currentTimeMillis());
+        final String report = duplicates.drainReport();
+        if (report == null)
         {
-        	setLastSentTime(new Date());
+            return;
+        }
+
+        if (log.isInfoEnabled())
+        {
+            log.info(name + " sending repeats to " + forwarders + "\n" + report);
         }
+        logFailures("repeats", FanOut.send(forwarders, new FanOut.Send()
+        {
+            public boolean send(TrapForwarder aForwarder)
+            {
+                return aForwarder.sendText(name + " repeated", report);
+            }
+        }));
+    }
+
+    /**
+     * @param aPdu PDU
+     * @param aOid OID of a variable
+     * @return string value of the variable, or null if absent
+     */
+    private static String getValue(PDU aPdu, OID aOid)
+    {
+        for (int i = 0; i < aPdu.size(); ++i)
+        {
+            VariableBinding bind = aPdu.get(i);
+            if (bind.getOid().equals(aOid))
+            {
+                return bind.getVariable().toString();
+            }
+        }
+        return null;
     }
 
     /**
@@ -310,9 +829,17 @@ public class TrapGroup
             return true; // cannot fail
         }
 
+        for (AddressRange range : senderRanges)
+        {
+            if (range.contains(aSender))
+            {
+                return true;
+            }
+        }
+
         for (String sender : senders)
         {
-            if (matchesAdr(aSender, sender))
+            if (!AddressRange.isRange(sender) && matchesHost(aSender, sender))
             {
                 return true;
             }
@@ -320,6 +847,36 @@ public class TrapGroup
         return false;
     }
 
+    /**
+     * The trap OID is the enterprise of a v1 trap, or the value of snmpTrapOID.0 in v2
+     * @param aPdu PDU
+     * @return true if enterprise is not set, or the trap OID starts with it
+     */
+    private boolean matchesEnterprise(PDU aPdu)
+    {
+        if (enterprise == null)
+        {
+            return true; // cannot fail
+        }
+
+        if (aPdu instanceof PDUv1)
+        {
+            OID trapOid = ((PDUv1) aPdu).getEnterprise();
+            return trapOid != null && trapOid.startsWith(enterprise);
+        }
+
+        for (int i = 0; i < aPdu.size(); ++i)
+        {
+            VariableBinding bind = aPdu.get(i);
+            if (bind.getOid().equals(SnmpConstants.snmpTrapOID))
+            {
+                Variable var = bind.getVariable();
+                return (var instanceof OID) && ((OID) var).startsWith(enterprise);
+            }
+        }
+        return false;
+    }
+
     /**
      * @param aPdu PDU
      * @return true if bodyFind is not set, or bodyFind matches any substring in body
@@ -367,28 +924,20 @@ public class TrapGroup
 
     /**
      * @param aInet InetAddress
-     * @param aHost string with host name or IP address, possibly with % wildcard
+     * @param aHost string with host name or IP address
      * @return true if addresses match
      */
-    private boolean matchesAdr(InetAddress aInet, String aHost)
+    private boolean matchesHost(InetAddress aInet, String aHost)
     {
-        if (aHost.contains("%"))
+        try
         {
-            String prefix = aHost.substring(0, aHost.indexOf('%'));
-            return aInet.getHostAddress().startsWith(prefix);
+            InetAddress host = InetAddress.getByName(aHost);
+            return aInet.equals(host);
         }
-        else
+        catch (UnknownHostException ex)
         {
-            try
-            {
-                InetAddress host = InetAddress.getByName(aHost);
-                return aInet.equals(host);
-            }
-            catch (UnknownHostException ex)
-            {
-                log.error("bad sender: " + aHost, ex);
-                return false;
-            }
+            log.error("bad sender: " + aHost, ex);
+            return false;
         }
     }
 
@@ -417,10 +966,18 @@ public class TrapGroup
         StringBuilder str = new StringBuilder();
         str.append(name + " " + limit + "/" + minutes);
 
+        if (!PriorityLanes.DEFAULT_LANE.equals(priority))
+        {
+            str.append(", priority: " + priority);
+        }
         if (!senders.isEmpty())
         {
             str.append(", sender: " + senders);
         }
+        if (enterprise != null)
+        {
+            str.append(", enterprise: " + enterprise);
+        }
         if (bodyFind != null)
         {
             str.append(", find: " + bodyFind);
@@ -434,6 +991,15 @@ public class TrapGroup
             }
         }
 
+        if (!dedupFields.isEmpty())
+        {
+            str.append(", dedup: " + dedupFields);
+        }
+        if (!distinctFields.isEmpty())
+        {
+            str.append(", distinct: " + distinctFields);
+        }
+
         if (hasSchedule())
         {
             str.append(", schedules:");
@@ -459,6 +1025,7 @@ public class TrapGroup
         schedules.clear();
         schedules.addAll(list);
         Collections.sort(schedules);
+        updateScheduleMinutes();
     }
 
     /**
@@ -476,64 +1043,42 @@ public class TrapGroup
      */
     public int findIndexOfClosestSchedule(final Date now)
     {
-        int indexOfClosestSchedule = -1;
+        return findIndexOfClosestSchedule(now.getTime());
+    }
 
-        if (!hasSchedule())
+    /**
+     * Find the index of the closest schedule based on the specified time, which is the
+     * last schedule at or before the time of day (or the last schedule of the day for any
+     * time before the first one)
+     * @param now time in milliseconds
+     * @return -1 if no schedule is defined. Note that schedules are sorted.
+     */
+    public int findIndexOfClosestSchedule(final long now)
+    {
+        final int[] minutes = scheduleMinutes;
+        if (minutes.length == 0)
         {
-            return indexOfClosestSchedule;
+            return -1;
         }
 
-        String dateStr = null;
-        Date from = null;
-        Date to = null;
-        final Calendar c = Calendar.getInstance();
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        for (int index = 0; index < schedules.size(); index++)
-        {
-            dateStr = schedules.get(index);
-            c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dateStr.substring(0, 2)));
-            c.set(Calendar.MINUTE, Integer.parseInt(dateStr.substring(3)));
-            from = c.getTime();
-
-            // Return the last schedule for any time before the first schedule of the day
-            if (index == 0 && now.before(from))
-            {
-                indexOfClosestSchedule = schedules.size() - 1;
-                break;
-            }
+        // minute of the local day, without allocating a Calendar
+        final long local = (now + zone.getOffset(now)) / MINUTE;
+        final int minute = (int) (((local % MINUTES_PER_DAY) + MINUTES_PER_DAY)
+                % MINUTES_PER_DAY);
 
-            if (index < schedules.size() - 1)
-            {
-                dateStr = schedules.get(index + 1);
-                c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dateStr.substring(0, 2)));
-                c.set(Calendar.MINUTE, Integer.parseInt(dateStr.substring(3)));
-                to = c.getTime();
-            }
-            else
-            {
-                c.add(Calendar.DAY_OF_YEAR, 1);
-                c.set(Calendar.HOUR_OF_DAY, 0);
-                c.set(Calendar.MINUTE, 0);
-                to = c.getTime();
-            }
-
-            // Check if now is between from and to, including from
-            if ((now.after(from) && now.before(to)) || now.getTime() == from.getTime())
-            {
-                indexOfClosestSchedule = index;
-                break;
-            }
+        int indexOfClosestSchedule = minutes.length - 1;
+        for (int index = 0; index < minutes.length && minutes[index] <= minute; ++index)
+        {
+            indexOfClosestSchedule = index;
         }
-
         return indexOfClosestSchedule;
     }
 
     /**
      * Set the schedule index to the next schedule
-     * @return
+     * @param now time in milliseconds
      */
-    public synchronized void markScheduleProcessed(Date now)
+    public synchronized void markScheduleProcessed(long now)
     {
         indexOfLastProcessedSchedule = findIndexOfClosestSchedule(now);
 
@@ -548,10 +1093,20 @@ public class TrapGroup
 
     /**
      * Check if the specified time is on or past the current schedule.
-     * @param Date
+     * @param now Date
      * @return True if the specified time is on or past the current schedule.
      */
     public boolean onSchedule(Date now)
+    {
+        return onSchedule(now.getTime());
+    }
+
+    /**
+     * Check if the specified time is on or past the current schedule.
+     * @param now time in milliseconds
+     * @return True if the specified time is on or past the current schedule.
+     */
+    public boolean onSchedule(long now)
     {
         if (indexOfLastProcessedSchedule == -1)
         {
@@ -562,16 +1117,54 @@ public class TrapGroup
         return (indexOfClosestSchedule != indexOfLastProcessedSchedule);
     }
 
+    /**
+     * @param aClock Clock for our times, the system clock unless set
+     */
+    public void setClock(Clock aClock)
+    {
+        clock = aClock;
+    }
+
+    /**
+     * Convert the sorted HH:MM schedules to minutes of the day
+     */
+    private void updateScheduleMinutes()
+    {
+        int[] minutes = new int[schedules.size()];
+        for (int i = 0; i < minutes.length; ++i)
+        {
+            String schedule = schedules.get(i);
+            minutes[i] = Integer.parseInt(schedule.substring(0, 2)) * 60
+                + Integer.parseInt(schedule.substring(3));
+        }
+        scheduleMinutes = minutes;
+    }
+
+    /**
+     * Remember a trap for the next digest; only flattened strings are kept, never the PDU,
+     * and a trap goes into the sample only if the sample keeps it
+     * @param aPdu PDU
+     * @param aSender InetAddress (IP)
+     */
     public synchronized void savePdu(PDU aPdu, InetAddress aSender)
     {
-        mostRecentTrap.setAPdu(aPdu);
+        Map<String,String> vars = getVarMap(aPdu);
+        mostRecentTrap.setVars(vars);
         mostRecentTrap.setASender(aSender);
+        int slot = samples.reserve();
+        if (slot >= 0)
+        {
+            samples.fill(slot, aSender.getHostAddress(), vars.get("body"));
+        }
         numberOfTraps.incrementAndGet();
     }
 
-    public synchronized void sendDigest(Date aStart)
+    /**
+     * @param aStart start of the digest window, in milliseconds, or 0 if unknown
+     */
+    public synchronized void sendDigest(long aStart)
     {
-        if (mostRecentTrap.isEmpty() || aStart == null)
+        if (mostRecentTrap.isEmpty() || aStart == 0)
         {
             // nothing to send
             return;
@@ -579,24 +1172,50 @@ public class TrapGroup
 
         final int count = numberOfTraps.get();
         final DataHolder dh = mostRecentTrap;
-        Map<String,String> map = getVarMap(dh.getPdu(), dh.getSender());
+        final Map<String,String> map = new HashMap<String,String>(dh.getVars());
+        map.put("sender", dh.getSender().getHostName());
         map.put("count", Integer.toString(count));
-        map.put("start_date", sdf2.format(aStart));
+        final String startDate = sdf2.format(new Date(aStart));
+        map.put("start_date", startDate);
+        map.put("top_senders", topSenders.describe(top));
+        map.put("top_messages", topMessages.describe(top));
+        putDistinct(map);
+        putSamples(map);
+        clearSketches();
 
-        for (TrapForwarder fwd : forwarders)
+        if (log.isInfoEnabled())
+        {
+            log.info(String.format("[%s] sending a digest of %d since %s to %s",
+                                   name, count, startDate, forwarders));
+        }
+        logFailures("digest", FanOut.send(forwarders, new FanOut.Send()
         {
-            if (log.isInfoEnabled())
+            public boolean send(TrapForwarder aForwarder)
             {
-                log.info(String.format("[%s] sending a digest of %d since %s to %s",
-                                       name, count, sdf2.format(aStart), fwd));
+                return aForwarder.send(map);
             }
-
-            fwd.send(map);
-        }
+        }));
 
         mostRecentTrap.clear();
+        samples.clear();
         numberOfTraps.set(0);
-        setLastSentTime(new Date());
+        setLastSentTime(clock.currentTimeMillis());
+    }
+
+    /**
+     * Add the digest sample, one trap per line, and how many traps it holds
+     * @param aMap template variables
+     */
+    private void putSamples(Map<String,String> aMap)
+    {
+        StringBuilder str = new StringBuilder();
+        List<String> list = samples.getSamples();
+        for (String sample : list)
+        {
+            str.append(sample).append("\n");
+        }
+        aMap.put("samples", str.toString());
+        aMap.put("sample_count", Integer.toString(list.size()));
     }
 
     public boolean limitReached()
@@ -647,6 +1266,7 @@ public class TrapGroup
         }
 
         Collections.sort(schedules);
+        updateScheduleMinutes();
     }
 	
 	
@@ -654,14 +1274,14 @@ public class TrapGroup
     /**
 	 * @return the lastSentTime
 	 */
-	public Date getLastSentTime() {
+	public long getLastSentTime() {
 		return lastSentTime;
 	}
 
 	/**
 	 * @param lastSentTime the lastSentTime to set
 	 */
-	public void setLastSentTime(Date lastSentTime) {
+	public void setLastSentTime(long lastSentTime) {
 		this.lastSentTime = lastSentTime;
 	}
 
@@ -669,16 +1289,16 @@ public class TrapGroup
 
 	class DataHolder
     {
-        private PDU aPdu;
+        private Map<String,String> vars;
         private InetAddress aSender;
 
         public DataHolder()
         {
         }
 
-        public PDU getPdu()
+        public Map<String,String> getVars()
         {
-            return aPdu;
+            return vars;
         }
 
         public InetAddress getSender()
@@ -686,9 +1306,9 @@ public class TrapGroup
             return aSender;
         }
 
-        public void setAPdu(PDU pdu)
+        public void setVars(Map<String,String> aVars)
         {
-            aPdu = pdu;
+            vars = aVars;
         }
 
         public void setASender(InetAddress sender)
@@ -698,12 +1318,12 @@ public class TrapGroup
 
         public boolean isEmpty()
         {
-            return (aPdu == null && aSender == null);
+            return (vars == null && aSender == null);
         }
 
         public void clear()
         {
-            aPdu = null;
+            vars = null;
             aSender = null;
         }
     }
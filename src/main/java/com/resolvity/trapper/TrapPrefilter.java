@@ -0,0 +1,340 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.OID;
+
+/**
+ * <code>TrapPrefilter</code> applies our ignore groups to raw datagrams, before snmp4j
+ * decodes them, so an ignored device costs a few byte comparisons instead of a full BER
+ * decode and a log line. Only ignore groups which can be decided from the sender and the
+ * trap OID (see <code>TrapGroup.isRawMatchable</code>) are used; anything else is left
+ * to <code>TrapClassifier</code> as before.
+ * <p>
+ * The trap OID is found by walking just enough of the message: the enterprise of a v1
+ * trap, or the value of the second variable binding (snmpTrapOID.0) of a v2 trap or
+ * inform. Sender host names are resolved once, when the filter is built.
+ * @author justin.good
+ */
+public class TrapPrefilter implements TrapperAlive.Page
+{
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_V1TRAP = 0xA4;
+    private static final int TAG_INFORM = 0xA6;
+    private static final int TAG_V2TRAP = 0xA7;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param aIgnore ignore groups, those which are not raw matchable are skipped
+     */
+    public TrapPrefilter(List<TrapGroup> aIgnore)
+    {
+        for (TrapGroup group : aIgnore)
+        {
+            if (group.isRawMatchable())
+            {
+                Rule rule = new Rule(group);
+                rules.add(rule);
+                log.info("prefiltering " + group);
+            }
+        }
+    }
+
+    /**
+     * @return true if any ignore group could be applied before decoding
+     */
+    public boolean isEmpty()
+    {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @param aSender InetAddress of the datagram's source
+     * @param aDatagram raw message between position and limit, which are left unchanged
+     * @return true if the datagram should be decoded, false if it is ignored
+     */
+    public boolean accept(InetAddress aSender, ByteBuffer aDatagram)
+    {
+        long trapOid = 0; // 0 means not looked for yet, -1 means not found
+        for (Rule rule : rules)
+        {
+            if (!rule.matchesSender(aSender))
+            {
+                continue;
+            }
+            if (rule.enterprise != null)
+            {
+                if (trapOid == 0)
+                {
+                    trapOid = findTrapOid(aDatagram);
+                }
+                if (!rule.matchesEnterprise(aDatagram, trapOid))
+                {
+                    continue;
+                }
+            }
+
+            rule.dropped.incrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        passed.incrementAndGet();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public String render()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append("passed=").append(passed.get());
+        str.append(" dropped=").append(dropped.get()).append("\n");
+        for (Rule rule : rules)
+        {
+            str.append(rule.name).append(" dropped=").append(rule.dropped.get());
+            str.append("\n");
+        }
+        return str.toString();
+    }
+
+    /**
+     * @param aBuf raw SNMP message
+     * @return offset of the trap OID's content in the high 32 bits and its length in the
+     *         low 32 bits, or -1 if this is not a well formed v1 or v2 trap
+     */
+    static long findTrapOid(ByteBuffer aBuf)
+    {
+        final int end = aBuf.limit();
+        int pos = enter(aBuf, aBuf.position(), end, TAG_SEQUENCE);
+        pos = skip(aBuf, pos, end); // version
+        pos = skip(aBuf, pos, end); // community
+        if (pos < 0 || pos >= end)
+        {
+            return -1;
+        }
+
+        int tag = aBuf.get(pos) & 0xff;
+        if (tag == TAG_V1TRAP)
+        {
+            pos = enter(aBuf, pos, end, TAG_V1TRAP);
+            return oid(aBuf, pos, end);
+        }
+        else if (tag == TAG_V2TRAP || tag == TAG_INFORM)
+        {
+            pos = enter(aBuf, pos, end, tag);
+            pos = skip(aBuf, pos, end); // request id
+            pos = skip(aBuf, pos, end); // error status
+            pos = skip(aBuf, pos, end); // error index
+            pos = enter(aBuf, pos, end, TAG_SEQUENCE); // variable bindings
+            pos = enter(aBuf, pos, end, TAG_SEQUENCE); // sysUpTime.0
+            pos = skip(aBuf, pos, end);
+            pos = skip(aBuf, pos, end);
+            pos = enter(aBuf, pos, end, TAG_SEQUENCE); // snmpTrapOID.0
+            pos = skip(aBuf, pos, end);
+            return oid(aBuf, pos, end);
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset of the content of the TLV at aPos with tag aTag, or -1
+     */
+    private static int enter(ByteBuffer aBuf, int aPos, int aEnd, int aTag)
+    {
+        if (aPos < 0 || aPos >= aEnd || (aBuf.get(aPos) & 0xff) != aTag)
+        {
+            return -1;
+        }
+        return contentOffset(aBuf, aPos, aEnd);
+    }
+
+    /**
+     * @return offset just past the TLV at aPos, or -1
+     */
+    private static int skip(ByteBuffer aBuf, int aPos, int aEnd)
+    {
+        int content = contentOffset(aBuf, aPos, aEnd);
+        if (content < 0)
+        {
+            return -1;
+        }
+        int next = content + contentLength(aBuf, aPos);
+        return (next <= aEnd) ? next : -1;
+    }
+
+    /**
+     * @return packed offset and length of the OID content at aPos, or -1
+     */
+    private static long oid(ByteBuffer aBuf, int aPos, int aEnd)
+    {
+        int content = enter(aBuf, aPos, aEnd, TAG_OID);
+        if (content < 0)
+        {
+            return -1;
+        }
+        int length = contentLength(aBuf, aPos);
+        if (content + length > aEnd)
+        {
+            return -1;
+        }
+        return ((long) content << 32) | length;
+    }
+
+    /**
+     * @return offset of the content of the TLV at aPos, or -1
+     */
+    private static int contentOffset(ByteBuffer aBuf, int aPos, int aEnd)
+    {
+        if (aPos < 0 || aPos + 1 >= aEnd)
+        {
+            return -1;
+        }
+        int first = aBuf.get(aPos + 1) & 0xff;
+        if (first < 0x80)
+        {
+            return aPos + 2;
+        }
+        int n = first & 0x7f;
+        if (n == 0 || n > 3 || aPos + 2 + n > aEnd)
+        {
+            return -1; // indefinite or absurd lengths never occur in a trap
+        }
+        return aPos + 2 + n;
+    }
+
+    /**
+     * @return content length of the TLV at aPos, which contentOffset accepted
+     */
+    private static int contentLength(ByteBuffer aBuf, int aPos)
+    {
+        int first = aBuf.get(aPos + 1) & 0xff;
+        if (first < 0x80)
+        {
+            return first;
+        }
+        int length = 0;
+        for (int i = 0; i < (first & 0x7f); ++i)
+        {
+            length = (length << 8) | (aBuf.get(aPos + 2 + i) & 0xff);
+        }
+        return length;
+    }
+
+    /**
+     * @param aOid OID with at least two sub-identifiers
+     * @return BER content octets of aOid, any prefix OID encodes to a prefix of these
+     */
+    static byte[] encode(OID aOid)
+    {
+        int[] value = aOid.getValue();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encodeSubId(out, value[0] * 40 + value[1]);
+        for (int i = 2; i < value.length; ++i)
+        {
+            encodeSubId(out, value[i]);
+        }
+        return out.toByteArray();
+    }
+
+    private static void encodeSubId(ByteArrayOutputStream aOut, int aSubId)
+    {
+        long sub = aSubId & 0xffffffffL;
+        int shift = 28;
+        while (shift > 0 && (sub >> shift) == 0)
+        {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7)
+        {
+            aOut.write((int) ((sub >> shift) & 0x7f) | 0x80);
+        }
+        aOut.write((int) (sub & 0x7f));
+    }
+
+    /**
+     * <code>Rule</code> is the raw form of one ignore group.
+     */
+    private class Rule
+    {
+        private final String name;
+        private final boolean anySender;
+        private final List<AddressRange> ranges;
+        private final Set<InetAddress> hosts = new HashSet<InetAddress>();
+        private final byte[] enterprise;
+        private final AtomicLong dropped = new AtomicLong();
+
+        public Rule(TrapGroup aGroup)
+        {
+            name = aGroup.getName();
+            ranges = aGroup.getSenderRanges();
+            anySender = ranges.isEmpty() && aGroup.getSenderHosts().isEmpty();
+            for (String host : aGroup.getSenderHosts())
+            {
+                try
+                {
+                    hosts.add(InetAddress.getByName(host));
+                }
+                catch (UnknownHostException ex)
+                {
+                    log.error("bad sender: " + host, ex);
+                }
+            }
+
+            OID oid = aGroup.getEnterprise();
+            enterprise = (oid != null) ? encode(oid) : null;
+        }
+
+        public boolean matchesSender(InetAddress aSender)
+        {
+            if (anySender)
+            {
+                return true; // cannot fail
+            }
+            for (AddressRange range : ranges)
+            {
+                if (range.contains(aSender))
+                {
+                    return true;
+                }
+            }
+            return hosts.contains(aSender);
+        }
+
+        public boolean matchesEnterprise(ByteBuffer aBuf, long aTrapOid)
+        {
+            if (aTrapOid < 0)
+            {
+                return false;
+            }
+            int offset = (int) (aTrapOid >>> 32);
+            int length = (int) aTrapOid;
+            if (length < enterprise.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < enterprise.length; ++i)
+            {
+                if (aBuf.get(offset + i) != enterprise[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
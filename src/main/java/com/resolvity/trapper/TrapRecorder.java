@@ -0,0 +1,432 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <code>TrapRecorder</code> appends every received datagram, undecoded, to a compact
+ * binary capture so that it can later be replayed through other configurations (see
+ * TrapReplay). Each record is the receive time in milliseconds, the sender's address and
+ * port, and the raw bytes; the file starts with a magic number and version. A capture
+ * cut short mid record (the catcher was killed) plays back to the last complete one,
+ * and is truncated there when it is opened for recording again, so later records are
+ * not read as the remains of the partial one.
+ * <p>
+ * The reader threads only queue their datagrams; a "Recorder" thread writes them and
+ * flushes about once a second. Datagrams arriving while the queue is full are counted
+ * as dropped rather than blocking the readers. The first failure to write stops the
+ * recording, since the record it was writing may be torn: later records would be read
+ * as its remains. What is left, and all that arrives after, is counted as dropped.
+ * @author justin.good
+ */
+public class TrapRecorder implements TrapperAlive.Page
+{
+    private static final int MAGIC = 0x54524150; // "TRAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6;
+    private static final long FLUSH_MILLIS = 1000L;
+    private static final long CLOSE_MILLIS = 5000L;
+    private static final int DEFAULT_QUEUE = 10000;
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final File file;
+    private final DataOutputStream out; // written by the writer only
+    private final BlockingQueue<Record> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long records; // guarded by this
+    private long bytes;
+    private long dropped;
+    private boolean failed;
+
+    /**
+     * @param aFile capture file, appended to if it already exists
+     * @throws IOException if aFile is not a capture or cannot be written
+     */
+    public TrapRecorder(File aFile) throws IOException
+    {
+        this(aFile, DEFAULT_QUEUE);
+    }
+
+    /**
+     * @param aFile capture file, appended to if it already exists
+     * @param aQueue datagrams waiting to be written before more are dropped
+     * @throws IOException if aFile is not a capture or cannot be written
+     */
+    public TrapRecorder(File aFile, int aQueue) throws IOException
+    {
+        file = aFile;
+        boolean fresh = !aFile.exists() || aFile.length() == 0;
+        if (!fresh)
+        {
+            truncateToComplete(aFile);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aFile,
+                                                                                 true)));
+        if (fresh)
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.flush();
+        }
+
+        queue = new ArrayBlockingQueue<Record>(Math.max(1, aQueue));
+        writer = new Thread("Recorder")
+        {
+            /** {@inheritDoc} */
+            @Override
+            public void run()
+            {
+                write();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Cut an existing capture after its last complete record
+     * @param aFile existing, non-empty capture
+     * @throws IOException if aFile is not a capture
+     */
+    private static void truncateToComplete(File aFile) throws IOException
+    {
+        long complete = HEADER_BYTES;
+        Playback playback = open(aFile);
+        try
+        {
+            Record record;
+            while ((record = playback.next()) != null)
+            {
+                complete += record.length();
+            }
+        }
+        finally
+        {
+            playback.close();
+        }
+
+        if (complete < aFile.length())
+        {
+            Logger.getLogger(TrapRecorder.class.getSimpleName()).warn(
+                "dropping " + (aFile.length() - complete) + " bytes of a partial record from "
+                    + aFile);
+            RandomAccessFile raf = new RandomAccessFile(aFile, "rw");
+            try
+            {
+                raf.setLength(complete);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Queue a datagram for the writer; never blocks
+     * @param aTime receive time in milliseconds
+     * @param aSender address of the sender
+     * @param aPort port of the sender
+     * @param aBytes datagram, not modified afterwards
+     */
+    public void record(long aTime, InetAddress aSender, int aPort, byte[] aBytes)
+    {
+        if (!running || !queue.offer(new Record(aTime, aSender, aPort, aBytes)))
+        {
+            synchronized (this)
+            {
+                ++dropped;
+            }
+        }
+    }
+
+    /**
+     * Write queued records until closed and drained, flushing about once a second
+     */
+    private void write()
+    {
+        List<Record> batch = new ArrayList<Record>();
+        long lastFlush = System.currentTimeMillis();
+        boolean dirty = false;
+        while (running || !queue.isEmpty())
+        {
+            try
+            {
+                Record first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null)
+                {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch(batch);
+                    batch.clear();
+                    dirty = true;
+                }
+
+                long now = System.currentTimeMillis();
+                if (dirty && (first == null || now - lastFlush >= FLUSH_MILLIS))
+                {
+                    out.flush();
+                    lastFlush = now;
+                    dirty = false;
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                break; // close() gave up waiting
+            }
+            catch (IOException ex)
+            {
+                failed(ex);
+                break;
+            }
+        }
+
+        if (failed)
+        {
+            batch.clear();
+            queue.drainTo(batch);
+            synchronized (this)
+            {
+                dropped += batch.size();
+            }
+        }
+        try
+        {
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            log.error("unable to close " + file, ex);
+        }
+    }
+
+    /**
+     * @param aBatch records to write, those not written are counted as dropped
+     * @throws IOException at the first record which could not be written
+     */
+    private void writeBatch(List<Record> aBatch) throws IOException
+    {
+        long written = 0;
+        long size = 0;
+        try
+        {
+            for (Record record : aBatch)
+            {
+                byte[] adr = record.getSender().getAddress();
+                out.writeLong(record.getTime());
+                out.writeByte(adr.length);
+                out.write(adr);
+                out.writeShort(record.getPort());
+                out.writeShort(record.getBytes().length);
+                out.write(record.getBytes());
+                ++written;
+                size += record.getBytes().length;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                records += written;
+                bytes += size;
+                dropped += aBatch.size() - written;
+            }
+        }
+    }
+
+    /**
+     * Stop recording, the readers drop what they would queue from now on
+     * @param aEx failure to write
+     */
+    private synchronized void failed(IOException aEx)
+    {
+        running = false;
+        failed = true;
+        log.error("unable to record to " + file + ", recording stopped", aEx);
+    }
+
+    /**
+     * Write what is queued, then flush and close the capture
+     */
+    public void close()
+    {
+        running = false;
+        try
+        {
+            writer.join(CLOSE_MILLIS);
+            if (writer.isAlive())
+            {
+                log.warn("gave up writing " + queue.size() + " datagrams to " + file);
+                writer.interrupt();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String render()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append("recording to ").append(file.getAbsolutePath()).append("\n");
+        str.append(records).append(" datagrams, ").append(bytes).append(" bytes, ");
+        str.append(queue.size()).append(" queued");
+        if (dropped > 0)
+        {
+            str.append(", ").append(dropped).append(" dropped");
+        }
+        if (failed)
+        {
+            str.append(", stopped by a write failure");
+        }
+        return str.append("\n").toString();
+    }
+
+    /**
+     * @param aFile capture file written by a TrapRecorder
+     * @return Playback positioned at the first record
+     * @throws IOException if the file is not a capture
+     */
+    public static Playback open(File aFile) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(aFile)));
+        try
+        {
+            int magic = in.readInt();
+            int version = in.readShort();
+            if (magic != MAGIC || version != VERSION)
+            {
+                throw new IOException(aFile + " is not a version " + VERSION + " capture");
+            }
+        }
+        catch (IOException ex)
+        {
+            in.close();
+            throw ex;
+        }
+        return new Playback(in);
+    }
+
+    /**
+     * <code>Record</code> is one captured datagram.
+     */
+    public static class Record
+    {
+        private final long time;
+        private final InetAddress sender;
+        private final int port;
+        private final byte[] bytes;
+
+        Record(long aTime, InetAddress aSender, int aPort, byte[] aBytes)
+        {
+            time = aTime;
+            sender = aSender;
+            port = aPort;
+            bytes = aBytes;
+        }
+
+        /**
+         * @return receive time in milliseconds
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * @return address of the sender
+         */
+        public InetAddress getSender()
+        {
+            return sender;
+        }
+
+        /**
+         * @return port of the sender
+         */
+        public int getPort()
+        {
+            return port;
+        }
+
+        /**
+         * @return the datagram
+         */
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return bytes this record takes in a capture
+         */
+        long length()
+        {
+            return 8 + 1 + sender.getAddress().length + 2 + 2 + bytes.length;
+        }
+    }
+
+    /**
+     * <code>Playback</code> reads the records of a capture in order.
+     */
+    public static class Playback
+    {
+        private final DataInputStream in;
+
+        Playback(DataInputStream aIn)
+        {
+            in = aIn;
+        }
+
+        /**
+         * @return next Record, or null at the end of the capture
+         * @throws IOException
+         */
+        public Record next() throws IOException
+        {
+            try
+            {
+                long time = in.readLong();
+                byte[] adr = new byte[in.readUnsignedByte()];
+                in.readFully(adr);
+                int port = in.readUnsignedShort();
+                byte[] bytes = new byte[in.readUnsignedShort()];
+                in.readFully(bytes);
+                return new Record(time, InetAddress.getByAddress(adr), port, bytes);
+            }
+            catch (EOFException ex)
+            {
+                return null; // includes a final record cut short
+            }
+        }
+
+        /**
+         * @throws IOException
+         */
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.smi.UdpAddress;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TrapReplay</code> feeds a capture written by a TrapRecorder through one or more
+ * configurations, each on its own VirtualClock and with a Mailer which only records, and
+ * reports exactly which emails each configuration would have sent. Configurations are
+ * replayed in parallel, so limits, minutes and schedules can be compared on the same
+ * traffic:
+ * <pre>
+ * TrapReplay traps.cap 500 trap.properties tuned.properties
+ * </pre>
+ * The speed is virtual time per real time (0 for as fast as possible). The clock is
+ * driven as the real one would be: consolidate() every 30 seconds and correlate() every
+ * correlation span, and it runs on for an hour after the last trap so that open
+ * consolidations and digests are sent.
+ * <p>
+ * Each configuration's SenderRateLimiter ("ratelimit.rate") is applied on the virtual
+ * clock ahead of its classifier, as TrapCatcher chains it. Its TrapPrefilter is not: the
+ * prefilter only drops early what the ignore groups would drop anyway, so the emails are
+ * the same. A capture holds only what passed the recording catcher's own prefilter,
+ * though, so traps it ignored cannot be replayed through a configuration which would
+ * accept them.
+ * @author justin.good
+ */
+public class TrapReplay
+{
+    private static final long CONSOLIDATE_MILLIS = 30000L; // as the Consolidator
+    private static final long DRAIN_MILLIS = 60 * 60000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int DEFAULT_RATE_SENDERS = 10000; // as TrapCatcher
+
+    private final Logger log = Logger.getLogger(getClass().getSimpleName());
+    private final File capture;
+    private final double speed;
+
+    /**
+     * @param aCapture capture file written by a TrapRecorder
+     * @param aSpeed virtual milliseconds per real millisecond, or 0 for no pacing
+     */
+    public TrapReplay(File aCapture, double aSpeed)
+    {
+        capture = aCapture;
+        speed = aSpeed;
+    }
+
+    /**
+     * @param aProps configuration to replay the capture through
+     * @return emails which would have been sent, in order
+     * @throws IOException if the capture cannot be read
+     */
+    public List<Email> replay(ReadableProperties aProps) throws IOException
+    {
+        TrapRecorder.Playback playback = TrapRecorder.open(capture);
+        try
+        {
+            TrapRecorder.Record record = playback.next();
+            if (record == null)
+            {
+                return Collections.emptyList();
+            }
+
+            VirtualClock clock = new VirtualClock(record.getTime());
+            RecordingMailer mailer = new RecordingMailer(clock);
+            TrapClassifier classifier = ClassifierFactory.create(aProps, clock, mailer);
+
+            MessageDispatcherImpl dispatcher = new MessageDispatcherImpl();
+            dispatcher.addMessageProcessingModel(new MPv1());
+            dispatcher.addMessageProcessingModel(new MPv2c());
+
+            int rate = aProps.getInt("ratelimit", "rate", 0);
+            if (rate > 0)
+            {
+                dispatcher.addCommandResponder(new SenderRateLimiter(rate,
+                    aProps.getInt("ratelimit", "burst", rate),
+                    aProps.getInt("ratelimit", "senders", DEFAULT_RATE_SENDERS), 1, clock));
+            }
+            dispatcher.addCommandResponder(classifier);
+
+            Driver driver = new Driver(classifier, clock);
+            for (; record != null; record = playback.next())
+            {
+                driver.advanceTo(record.getTime());
+                try
+                {
+                    dispatcher.processMessage(null, new UdpAddress(record.getSender(),
+                                                                   record.getPort()),
+                                              ByteBuffer.wrap(record.getBytes()));
+                }
+                catch (RuntimeException ex)
+                {
+                    log.warn("unable to replay datagram from " + record.getSender(), ex);
+                }
+            }
+            driver.advanceTo(clock.currentTimeMillis() + DRAIN_MILLIS);
+            return mailer.getEmails();
+        }
+        finally
+        {
+            playback.close();
+        }
+    }
+
+    /**
+     * <code>Driver</code> moves the clock forward, running the periodic work the
+     * classifier's threads would have run on the way, and pacing to our speed.
+     */
+    private class Driver
+    {
+        private final TrapClassifier classifier;
+        private final VirtualClock clock;
+        private final long correlateMillis;
+        private final long virtualStart;
+        private final long realStart = System.nanoTime();
+        private long nextConsolidate;
+        private long nextCorrelate;
+
+        Driver(TrapClassifier aClassifier, VirtualClock aClock)
+        {
+            classifier = aClassifier;
+            clock = aClock;
+            virtualStart = aClock.currentTimeMillis();
+            Correlator correlator = aClassifier.getCorrelator();
+            correlateMillis = (correlator != null) ? correlator.getSpan() : 0;
+            nextConsolidate = virtualStart + CONSOLIDATE_MILLIS;
+            nextCorrelate = virtualStart + correlateMillis;
+        }
+
+        /**
+         * @param aTime virtual time to move to; earlier times leave the clock alone
+         */
+        void advanceTo(long aTime)
+        {
+            while (true)
+            {
+                boolean correlate = correlateMillis > 0 && nextCorrelate <= nextConsolidate;
+                long next = correlate ? nextCorrelate : nextConsolidate;
+                if (next > aTime)
+                {
+                    break;
+                }
+                clock.set(next);
+                if (correlate)
+                {
+                    classifier.correlate();
+                    nextCorrelate += correlateMillis;
+                }
+                else
+                {
+                    classifier.consolidate();
+                    nextConsolidate += CONSOLIDATE_MILLIS;
+                }
+            }
+            clock.set(aTime);
+            pace();
+        }
+
+        private void pace()
+        {
+            if (speed <= 0)
+            {
+                return;
+            }
+            long due = (long) ((clock.currentTimeMillis() - virtualStart) / speed);
+            long elapsed = (System.nanoTime() - realStart) / NANOS_PER_MILLI;
+            if (due > elapsed)
+            {
+                try
+                {
+                    Thread.sleep(due - elapsed);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * <code>Email</code> is one message a replayed configuration would have sent.
+     */
+    public static class Email
+    {
+        private final long time;
+        private final String to;
+        private final String subject;
+
+        Email(long aTime, String aTo, String aSubject)
+        {
+            time = aTime;
+            to = aTo;
+            subject = aSubject;
+        }
+
+        /**
+         * @return virtual time the email was sent
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * @return recipients
+         */
+        public String getTo()
+        {
+            return to;
+        }
+
+        /**
+         * @return subject, or null if the forwarder sends none
+         */
+        public String getSubject()
+        {
+            return subject;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss");
+            return sdf.format(new Date(time)) + " " + to + " " + subject;
+        }
+    }
+
+    /**
+     * <code>RecordingMailer</code> keeps what would have been sent, stamped with the
+     * virtual time.
+     */
+    private static class RecordingMailer implements Mailer
+    {
+        private final Clock clock;
+        private final List<Email> emails = new ArrayList<Email>();
+
+        RecordingMailer(Clock aClock)
+        {
+            clock = aClock;
+        }
+
+        /** {@inheritDoc} */
+        public synchronized void send(Message aMessage) throws MessagingException
+        {
+            Address[] to = aMessage.getAllRecipients();
+            emails.add(new Email(clock.currentTimeMillis(),
+                                 (to != null) ? Arrays.asList(to).toString() : "[]",
+                                 aMessage.getSubject()));
+        }
+
+        synchronized List<Email> getEmails()
+        {
+            return new ArrayList<Email>(emails);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.err.println("usage: TrapReplay <capture> <speed> <properties>...");
+            System.exit(1);
+        }
+
+        final TrapReplay replay = new TrapReplay(new File(args[0]),
+                                                 Double.parseDouble(args[1]));
+        final List<String> configs = Arrays.asList(args).subList(2, args.length);
+
+        ExecutorService pool = Executors.newFixedThreadPool(configs.size());
+        List<Future<List<Email>>> results = new ArrayList<Future<List<Email>>>();
+        for (final String path : configs)
+        {
+            results.add(pool.submit(new Callable<List<Email>>()
+            {
+                public List<Email> call() throws Exception
+                {
+                    return replay.replay(new ReadableProperties(path, ','));
+                }
+            }));
+        }
+        pool.shutdown();
+
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < configs.size(); ++i)
+        {
+            try
+            {
+                List<Email> emails = results.get(i).get();
+                System.out.println("== " + configs.get(i) + ": " + emails.size()
+                    + " emails");
+                for (Email email : emails)
+                {
+                    System.out.println(email);
+                }
+                System.out.println();
+                summary.append(emails.size()).append("\t").append(configs.get(i));
+            }
+            catch (ExecutionException ex)
+            {
+                System.out.println("== " + configs.get(i) + ": failed");
+                ex.getCause().printStackTrace();
+                summary.append("failed\t").append(configs.get(i));
+            }
+            summary.append("\n");
+        }
+        System.out.print(summary);
+    }
+}
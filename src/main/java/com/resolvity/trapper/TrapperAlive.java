@@ -4,9 +4,15 @@ package com.resolvity.trapper;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -14,12 +20,25 @@ import org.apache.log4j.Logger;
  * <code>TrapperAlive</code> listens on a given TCP port for simple, http requests
  * checking whether we are alive or not, and just responds with the current time (to
  * ensure non-cached responses).
+ * <p>
+ * Other components may register a <code>Page</code> under a path (such as "/lanes"),
+ * in which case a request for that path is answered with the page's text instead. A
+ * <code>Form</code> page also accepts a query string ("/maintenance?remove=3"), which is
+ * decoded and submitted to it, but only if it carries our token ("&amp;token=..."); with
+ * no token configured, forms are read only, since anyone who can reach the liveness
+ * port could otherwise change them.
+ * <p>
+ * While we shut down, requests for anything but a page are answered "503 draining", so
+ * a secondary polling us takes over before we stop.
  * @author justin.good
  */
 public class TrapperAlive extends Thread
 {
     private final Logger log = Logger.getLogger(getClass().getSimpleName());
     private final ServerSocket server;
+    private final Map<String,Page> pages = new ConcurrentHashMap<String,Page>();
+    private volatile boolean draining;
+    private volatile String token;
 
     public TrapperAlive(int aPort)
     {
@@ -44,15 +63,57 @@ public class TrapperAlive extends Thread
         return server.getLocalPort();
     }
 
+    /**
+     * @param aPath request path, such as "/lanes"
+     * @param aPage Page which renders the response body for that path
+     */
+    public void addPage(String aPath, Page aPage)
+    {
+        pages.put(aPath, aPage);
+    }
+
+    /**
+     * @param aToken token a form submission must carry, or null to refuse every one
+     */
+    public void setToken(String aToken)
+    {
+        token = aToken;
+    }
+
+    /**
+     * @param aDraining true to answer liveness checks with 503 while we shut down
+     */
+    public void setDraining(boolean aDraining)
+    {
+        draining = aDraining;
+    }
+
+    /**
+     * Stop answering and release our port
+     */
+    public void close()
+    {
+        interrupt();
+        try
+        {
+            server.close();
+        }
+        catch (IOException ex)
+        {
+            log.error("error shutting down TrapperAlive", ex);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public void run()
     {
         String ok = "HTTP/1.1 200 OK\r\n";
+        String unavailable = "HTTP/1.1 503 Service Unavailable\r\n";
         String cache = "Cache-Control: no-cache\r\n";
         String type = "Content-Type: text/plain\r\n";
         String length = "Content-Length: ";
-        String headers = ok + cache + type + length;
+        String headers = cache + type + length;
 
         while (!isInterrupted())
         {
@@ -70,11 +131,18 @@ public class TrapperAlive extends Thread
 
                 if (log.isDebugEnabled())
                 {
-                    log.debug(client.getInetAddress() + " " + req);
+                    log.debug(client.getInetAddress() + " "
+                        + req.replaceAll("token=[^& ]*", "token=..."));
                 }
 
-                String body = String.valueOf(System.currentTimeMillis());
-                String message = headers + body.length() + "\r\n\r\n" + body;
+                String body = render(req);
+                String status = ok;
+                if (body == null)
+                {
+                    status = draining ? unavailable : ok;
+                    body = draining ? "draining" : String.valueOf(System.currentTimeMillis());
+                }
+                String message = status + headers + body.length() + "\r\n\r\n" + body;
 
                 System.out.println(message);
 
@@ -83,6 +151,10 @@ public class TrapperAlive extends Thread
             }
             catch (IOException ex)
             {
+                if (server.isClosed())
+                {
+                    break; // closed by close()
+                }
                 log.error("error listening for TrapperAlive messages", ex);
             }
             finally
@@ -101,6 +173,88 @@ public class TrapperAlive extends Thread
         }
     }
 
+    /**
+     * @param aRequest request line, such as "GET /lanes HTTP/1.1"
+     * @return body for a registered page, or null for a liveness check
+     */
+    private String render(String aRequest)
+    {
+        String[] parts = aRequest.split(" ");
+        String path = (parts.length > 1) ? parts[1] : "";
+        String query = null;
+        int mark = path.indexOf('?');
+        if (mark >= 0)
+        {
+            query = path.substring(mark + 1);
+            path = path.substring(0, mark);
+        }
+
+        Page page = pages.get(path);
+        if (page != null)
+        {
+            try
+            {
+                if (query != null && page instanceof Form)
+                {
+                    Map<String,String> params = parseQuery(query);
+                    String expected = token;
+                    if (expected == null)
+                    {
+                        return "error: changes need liveness.token configured\n";
+                    }
+                    String given = params.remove("token");
+                    if (given == null || !MessageDigest.isEqual(expected.getBytes("UTF-8"),
+                                                                given.getBytes("UTF-8")))
+                    {
+                        log.warn("refused a change to " + path + " without the token");
+                        return "error: bad token\n";
+                    }
+                    return ((Form) page).submit(params);
+                }
+                return page.render();
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                throw new IllegalStateException(ex); // UTF-8 is always supported
+            }
+            catch (RuntimeException ex)
+            {
+                log.error("error rendering " + path, ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param aQuery query string, such as "group=timeout&amp;repeat=daily"
+     * @return decoded parameters, in order
+     */
+    public static Map<String,String> parseQuery(String aQuery)
+    {
+        Map<String,String> map = new LinkedHashMap<String,String>();
+        for (String param : aQuery.split("&"))
+        {
+            if (param.length() == 0)
+            {
+                continue;
+            }
+            int eq = param.indexOf('=');
+            try
+            {
+                String key = URLDecoder.decode((eq < 0) ? param : param.substring(0, eq),
+                                               "UTF-8");
+                String value = (eq < 0) ? "" : URLDecoder.decode(param.substring(eq + 1),
+                                                                 "UTF-8");
+                map.put(key, value);
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                throw new IllegalStateException(ex); // UTF-8 is always supported
+            }
+        }
+        return map;
+    }
+
     /**
      * @param aIn InputStream, closed first if non-null
      * @param aOut OutputStream, closed second if non-null
@@ -128,4 +282,27 @@ public class TrapperAlive extends Thread
             log.error("error closing resource", ex);
         }
     }
+
+    /**
+     * <code>Page</code> supplies the plain text body for a path.
+     */
+    public interface Page
+    {
+        /**
+         * @return current text of this page
+         */
+        String render();
+    }
+
+    /**
+     * <code>Form</code> is a page which may also be changed by a request with a query.
+     */
+    public interface Form extends Page
+    {
+        /**
+         * @param aQuery decoded query parameters
+         * @return text describing the result
+         */
+        String submit(Map<String,String> aQuery);
+    }
 }
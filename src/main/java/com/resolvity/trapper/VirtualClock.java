@@ -0,0 +1,53 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+/**
+ * <code>VirtualClock</code> only moves when told to, so consolidation windows and
+ * schedules can be tested, or traps replayed, without waiting in real time.
+ * @author justin.good
+ */
+public class VirtualClock implements Clock
+{
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private volatile long millis;
+
+    /**
+     * @param aMillis starting time, in milliseconds since the epoch
+     */
+    public VirtualClock(long aMillis)
+    {
+        millis = aMillis;
+    }
+
+    /** {@inheritDoc} */
+    public long currentTimeMillis()
+    {
+        return millis;
+    }
+
+    /** {@inheritDoc} */
+    public long nanoTime()
+    {
+        return millis * NANOS_PER_MILLI;
+    }
+
+    /**
+     * @param aMillis new time, in milliseconds since the epoch; never earlier than now
+     */
+    public synchronized void set(long aMillis)
+    {
+        if (aMillis > millis)
+        {
+            millis = aMillis;
+        }
+    }
+
+    /**
+     * @param aMillis milliseconds to move forward
+     */
+    public synchronized void advance(long aMillis)
+    {
+        set(millis + aMillis);
+    }
+}
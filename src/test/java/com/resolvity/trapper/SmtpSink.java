@@ -0,0 +1,432 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+/**
+ * <code>SmtpSink</code> is a minimal SMTP server on loopback which accepts and keeps
+ * every message, so forwarders can be tested and benchmarked without a relay. It can
+ * delay every reply, reject the next messages with a temporary failure, and drop the
+ * next connections without a greeting, and it counts connections, messages, rejections
+ * and drops. Point a forwarder at it with smtp=127.0.0.1:&lt;port&gt;.
+ * <p>
+ * Accepted messages are kept for getMails(), unless a Listener is set, which is handed
+ * each one as it is accepted instead, so long load runs do not hold every message.
+ * @author justin.good
+ */
+public class SmtpSink
+{
+    private final ServerSocket server;
+    private final ExecutorService pool;
+    private final List<Mail> mails = Collections.synchronizedList(new ArrayList<Mail>());
+    private final AtomicInteger messages = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger failNext = new AtomicInteger();
+    private final AtomicInteger dropNext = new AtomicInteger();
+    private volatile long latency;
+    private volatile Listener listener;
+
+    /**
+     * <code>Listener</code> is told of each message as it is accepted.
+     */
+    public interface Listener
+    {
+        /**
+         * @param aMail message accepted, with the System.nanoTime it was accepted at
+         */
+        void accepted(Mail aMail);
+    }
+
+    /**
+     * Listen on an ephemeral loopback port
+     * @throws IOException
+     */
+    public SmtpSink() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        pool = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable aTask)
+            {
+                Thread thread = new Thread(aTask, "SmtpSink-" + server.getLocalPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.execute(new Runnable()
+        {
+            public void run()
+            {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return host:port, as used in the smtp list
+     */
+    public String getAddress()
+    {
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * @param aMillis delay before every reply
+     */
+    public void setLatency(long aMillis)
+    {
+        latency = aMillis;
+    }
+
+    /**
+     * @param aListener Listener handed every following message instead of keeping it,
+     *        or null to keep them
+     */
+    public void setListener(Listener aListener)
+    {
+        listener = aListener;
+    }
+
+    /**
+     * @param aCount number of following messages to reject with 451
+     */
+    public void failNext(int aCount)
+    {
+        failNext.set(aCount);
+    }
+
+    /**
+     * @param aCount number of following connections to close without a greeting
+     */
+    public void dropNext(int aCount)
+    {
+        dropNext.set(aCount);
+    }
+
+    /**
+     * @return connections accepted, including dropped ones
+     */
+    public int getConnections()
+    {
+        return connections.get();
+    }
+
+    /**
+     * @return messages accepted
+     */
+    public int getMessages()
+    {
+        return messages.get();
+    }
+
+    /**
+     * @return messages rejected by failNext
+     */
+    public int getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return connections dropped by dropNext
+     */
+    public int getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return copy of the messages accepted, in order
+     */
+    public List<Mail> getMails()
+    {
+        synchronized (mails)
+        {
+            return new ArrayList<Mail>(mails);
+        }
+    }
+
+    /**
+     * @param aCount messages expected
+     * @param aMillis how long to wait for them
+     * @return true if at least aCount messages were accepted in time
+     * @throws InterruptedException
+     */
+    public boolean awaitMessages(int aCount, long aMillis) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + aMillis;
+        while (getMessages() < aCount && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10);
+        }
+        return getMessages() >= aCount;
+    }
+
+    /**
+     * @param aCount exact number of messages expected within a second
+     * @throws InterruptedException
+     */
+    public void assertMessages(int aCount) throws InterruptedException
+    {
+        awaitMessages(aCount, 1000);
+        Assert.assertEquals("messages at " + getAddress(), aCount, getMessages());
+    }
+
+    /**
+     * Stop listening, open conversations end with their sockets
+     */
+    public void stop()
+    {
+        try
+        {
+            server.close();
+        }
+        catch (IOException ex)
+        {
+            // closing anyway
+        }
+        pool.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                final Socket socket = server.accept();
+                connections.incrementAndGet();
+                if (takeOne(dropNext))
+                {
+                    dropped.incrementAndGet();
+                    socket.close();
+                    continue;
+                }
+                pool.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        converse(socket);
+                    }
+                });
+            }
+            catch (IOException ex)
+            {
+                // closed by stop()
+            }
+        }
+    }
+
+    /**
+     * @param aCounter counter of things still to do
+     * @return true if the counter was positive, and has been decremented
+     */
+    private static boolean takeOne(AtomicInteger aCounter)
+    {
+        while (true)
+        {
+            int n = aCounter.get();
+            if (n <= 0)
+            {
+                return false;
+            }
+            if (aCounter.compareAndSet(n, n - 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param aSocket connection to serve until QUIT or close
+     */
+    private void converse(Socket aSocket)
+    {
+        try
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                aSocket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = aSocket.getOutputStream();
+            reply(out, "220 localhost SmtpSink");
+
+            String from = null;
+            List<String> to = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO") || command.startsWith("HELO"))
+                {
+                    reply(out, "250 localhost");
+                }
+                else if (command.startsWith("MAIL FROM:"))
+                {
+                    from = line.substring(10).trim();
+                    to.clear();
+                    reply(out, "250 OK");
+                }
+                else if (command.startsWith("RCPT TO:"))
+                {
+                    to.add(line.substring(8).trim());
+                    reply(out, "250 OK");
+                }
+                else if (command.equals("DATA"))
+                {
+                    reply(out, "354 end with <CRLF>.<CRLF>");
+                    StringBuilder data = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals("."))
+                    {
+                        // undo dot stuffing
+                        data.append(line.startsWith(".") ? line.substring(1) : line);
+                        data.append("\n");
+                    }
+                    if (takeOne(failNext))
+                    {
+                        rejected.incrementAndGet();
+                        reply(out, "451 try again later");
+                    }
+                    else
+                    {
+                        Mail mail = new Mail(from, to, data.toString(), System.nanoTime());
+                        Listener told = listener;
+                        if (told != null)
+                        {
+                            told.accepted(mail);
+                        }
+                        else
+                        {
+                            mails.add(mail);
+                        }
+                        messages.incrementAndGet();
+                        reply(out, "250 OK");
+                    }
+                    from = null;
+                    to = new ArrayList<String>();
+                }
+                else if (command.equals("RSET"))
+                {
+                    from = null;
+                    to.clear();
+                    reply(out, "250 OK");
+                }
+                else if (command.equals("NOOP"))
+                {
+                    reply(out, "250 OK");
+                }
+                else if (command.equals("QUIT"))
+                {
+                    reply(out, "221 bye");
+                    break;
+                }
+                else
+                {
+                    reply(out, "502 not implemented");
+                }
+            }
+        }
+        catch (SocketException ex)
+        {
+            // the client went away
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            try
+            {
+                aSocket.close();
+            }
+            catch (IOException ex)
+            {
+                // closing anyway
+            }
+        }
+    }
+
+    private void reply(OutputStream aOut, String aLine)
+        throws IOException, InterruptedException
+    {
+        long delay = latency;
+        if (delay > 0)
+        {
+            Thread.sleep(delay);
+        }
+        aOut.write((aLine + "\r\n").getBytes("ISO-8859-1"));
+        aOut.flush();
+    }
+
+    /**
+     * <code>Mail</code> is one accepted message.
+     */
+    public static class Mail
+    {
+        private final String from;
+        private final List<String> to;
+        private final String data;
+        private final long accepted;
+
+        Mail(String aFrom, List<String> aTo, String aData, long aAccepted)
+        {
+            from = aFrom;
+            to = Collections.unmodifiableList(new ArrayList<String>(aTo));
+            data = aData;
+            accepted = aAccepted;
+        }
+
+        /**
+         * @return envelope sender, as given in MAIL FROM
+         */
+        public String getFrom()
+        {
+            return from;
+        }
+
+        /**
+         * @return envelope recipients, as given in RCPT TO
+         */
+        public List<String> getTo()
+        {
+            return to;
+        }
+
+        /**
+         * @return headers and body
+         */
+        public String getData()
+        {
+            return data;
+        }
+
+        /**
+         * @return System.nanoTime the message was accepted
+         */
+        public long getAccepted()
+        {
+            return accepted;
+        }
+    }
+}
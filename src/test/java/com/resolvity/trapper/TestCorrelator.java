@@ -0,0 +1,137 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestCorrelator</code> checks that related traps become one incident email, and
+ * that an incident goes only to groups which would have forwarded their own traps.
+ * @author justin.good
+ */
+public class TestCorrelator extends TestCase
+{
+    private static final long START = 1262304000000L; // 2010-01-01
+
+    private File file;
+    private VirtualClock clock;
+    private TrapFixtures.RecordingMailer mailer;
+    private TrapGroup disk;
+    private TrapGroup net;
+    private TrapClassifier classifier;
+    private InetAddress sender;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = TrapFixtures.writeProperties(group("disk", "Disk", 0), group("net", "Net", 1));
+
+        ReadableProperties props = new ReadableProperties(file.getPath(), ',');
+        clock = new VirtualClock(START);
+        mailer = new TrapFixtures.RecordingMailer();
+        TrapContext context = new TrapContext(mailer, clock);
+        disk = new TrapGroup(props, "disk", context);
+        net = new TrapGroup(props, "net", context);
+        List<TrapGroup> accept = new ArrayList<TrapGroup>(Arrays.asList(disk, net));
+
+        classifier = new TrapClassifier(accept, new ArrayList<TrapGroup>(), clock);
+        classifier.setCorrelator(new Correlator(Arrays.asList("stack"), 4, 100));
+        sender = InetAddress.getByName("127.0.0.1");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    /**
+     * @return properties of a group renaming variable 2 to stack
+     */
+    private static String group(String aName, String aFind, int aLimit)
+    {
+        return aName + ".find=" + aFind + "\n"
+            + aName + ".limit=" + aLimit + "\n" + aName + ".minutes=15\n"
+            + aName + ".rename=1.3.6.1.4.1.29449.2=stack\n"
+            + aName + ".forward.1.address=" + aName + "@example.com\n"
+            + aName + ".forward.1.template=basic.email.txt\n";
+    }
+
+    public void testIncident()
+    {
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Disk full", "s1"), sender));
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net down", "s1"), sender));
+        assertTrue(mailer.sent.isEmpty()); // held
+
+        drain();
+        // sent to both groups' destinations at once, so in either order
+        assertEquals(2, mailer.sent.size());
+        assertTrue(mailer.sent.contains("incident stack=s1: disk net [disk@example.com]"));
+        assertTrue(mailer.sent.contains("incident stack=s1: disk net [net@example.com]"));
+        assertEquals(START, disk.getLastSentTime());
+        assertEquals(START, net.getLastSentTime());
+    }
+
+    public void testLoneTrap()
+    {
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Disk full", "s1"), sender));
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Disk full", "s2"), sender));
+        drain();
+
+        // different keys, so each trap is forwarded as itself
+        assertEquals(2, mailer.sent.size());
+        assertFalse(mailer.sent.get(0).startsWith("incident"));
+    }
+
+    public void testConsolidatingGroupLeftOut()
+    {
+        // net goes over its limit of 1 before the incident is released
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net down", "s0"), sender));
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net down", "s9"), sender));
+        drain();
+        assertEquals(1, mailer.sent.size());
+        mailer.clear();
+
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Disk full", "s1"), sender));
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net down", "s1"), sender));
+        drain();
+
+        // only disk would have forwarded, so only it hears of the incident
+        assertTrue(classifier.isConsolidating(net));
+        assertEquals(1, mailer.sent.size());
+        assertEquals("incident stack=s1: disk net [disk@example.com]", mailer.sent.get(0));
+    }
+
+    public void testAllConsolidating()
+    {
+        classifier.classify(TrapFixtures.makeTrap("Net down", "s0"), sender);
+        classifier.classify(TrapFixtures.makeTrap("Net down", "s9"), sender);
+        drain();
+        mailer.clear();
+
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net down", "s1"), sender));
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Net again", "s1"), sender));
+        drain();
+        assertTrue(mailer.sent.isEmpty());
+    }
+
+    /**
+     * Tick the correlator through its whole window
+     */
+    private void drain()
+    {
+        for (int i = 0; i < 5; ++i)
+        {
+            classifier.correlate();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestDeliveryQuota</code> checks bursts, refill on the configuration's clock and
+ * sharing by address within, but not across, configurations.
+ * @author justin.good
+ */
+public class TestDeliveryQuota extends TestCase
+{
+    private static final long START = 1262304000000L; // 2010-01-01 00:00 GMT
+
+    private VirtualClock clock;
+    private DeliveryQuota.Quotas quotas;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp()
+    {
+        clock = new VirtualClock(START);
+        quotas = new DeliveryQuota.Quotas(clock);
+    }
+
+    public void testBurstAndRefill()
+    {
+        DeliveryQuota quota = quotas.get("burst@example.com", 6, 3);
+        assertTrue(quota.admit(null, START));
+        assertTrue(quota.admit(null, START));
+        assertTrue(quota.admit(null, START));
+        assertFalse(quota.admit(null, START));
+        assertFalse(quota.admit(null, START + 9000)); // 6/min is one per 10 seconds
+        assertTrue(quota.admit(null, START + 10000));
+        assertFalse(quota.admit(null, START + 10000));
+        assertTrue(quotas.render().contains("burst@example.com 6/min burst 3: "
+            + "4 sent, 3 suppressed, 3 waiting since"));
+    }
+
+    public void testShared()
+    {
+        DeliveryQuota first = quotas.get("pager@example.com", 1, 1);
+        DeliveryQuota second = quotas.get(" Pager@Example.com", 10, 10);
+        assertSame(first, second);
+        assertTrue(first.admit(null, START));
+        assertFalse(second.admit(null, START));
+    }
+
+    public void testSeparateConfigurations()
+    {
+        DeliveryQuota.Quotas other = new DeliveryQuota.Quotas(new VirtualClock(START));
+        DeliveryQuota first = quotas.get("pager@example.com", 1, 1);
+        DeliveryQuota second = other.get("pager@example.com", 1, 1);
+        assertNotSame(first, second);
+        assertTrue(first.admit(null, START));
+        assertTrue(second.admit(null, START));
+        assertTrue(other.isInUse() && quotas.isInUse());
+    }
+
+    public void testNotifyWithoutForwarder()
+    {
+        DeliveryQuota quota = quotas.get("pager@example.com", 1, 1);
+        assertTrue(quota.admit(null, START));
+        assertFalse(quota.admit(null, START));
+        clock.advance(60000);
+        quotas.notifySuppressed(); // nobody to send the notice, so it waits
+        assertTrue(quotas.render().contains("1 suppressed, 1 waiting since"));
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestDigestBuffer</code> checks the first traps are kept verbatim, the rest are
+ * sampled uniformly within a fixed size, and that only kept traps are asked for.
+ * @author justin.good
+ */
+public class TestDigestBuffer extends TestCase
+{
+    public void testFirstInOrder()
+    {
+        DigestBuffer buffer = new DigestBuffer(3, 0, 200);
+        for (int i = 0; i < 10; ++i)
+        {
+            buffer.add("10.0.0.1", "trap " + i + "\n");
+        }
+        List<String> samples = buffer.getSamples();
+        assertEquals(3, samples.size());
+        assertEquals("10.0.0.1: trap 0", samples.get(0));
+        assertEquals("10.0.0.1: trap 2", samples.get(2));
+        assertEquals(10, buffer.getTotal());
+    }
+
+    public void testFlattenAndTruncate()
+    {
+        DigestBuffer buffer = new DigestBuffer(2, 0, 30);
+        buffer.add("10.0.0.1", "disk\r\nfull\n");
+        buffer.add("10.0.0.1", "a much longer body than fits on the line");
+        List<String> samples = buffer.getSamples();
+        assertEquals("10.0.0.1: disk | full", samples.get(0));
+        assertEquals(30, samples.get(1).length());
+    }
+
+    public void testSampleBounded()
+    {
+        DigestBuffer buffer = new DigestBuffer(2, 5, 200);
+        int kept = 0;
+        for (int i = 0; i < 100000; ++i)
+        {
+            int slot = buffer.reserve();
+            if (slot >= 0)
+            {
+                assertTrue(slot < 7);
+                buffer.fill(slot, "10.0.0.1", "trap " + i);
+                ++kept;
+            }
+        }
+
+        // first 2 and the first 5 after them, then about 5 ln(n/5) more
+        assertTrue(kept < 100);
+        assertEquals(7, buffer.getSamples().size());
+        assertEquals(100000, buffer.getTotal());
+        assertEquals("10.0.0.1: trap 0", buffer.getSamples().get(0));
+
+        buffer.clear();
+        assertTrue(buffer.getSamples().isEmpty());
+        assertEquals(0, buffer.getTotal());
+        assertEquals(0, buffer.reserve());
+    }
+
+    public void testSampleUniform()
+    {
+        // which of 10 later traps ends up as the one sample, over many windows
+        int[] hits = new int[10];
+        DigestBuffer buffer = new DigestBuffer(0, 1, 200);
+        for (int run = 0; run < 10000; ++run)
+        {
+            buffer.clear();
+            for (int i = 0; i < 10; ++i)
+            {
+                buffer.add("10.0.0.1", Integer.toString(i));
+            }
+            ++hits[buffer.getSamples().get(0).charAt(10) - '0'];
+        }
+        for (int hit : hits)
+        {
+            assertEquals(1000, hit, 200);
+        }
+    }
+
+    public void testNoSample()
+    {
+        DigestBuffer buffer = new DigestBuffer(0, 0, 200);
+        assertEquals(-1, buffer.reserve());
+        buffer.add("10.0.0.1", "trap");
+        assertTrue(buffer.getSamples().isEmpty());
+        assertEquals(2, buffer.getTotal());
+    }
+}
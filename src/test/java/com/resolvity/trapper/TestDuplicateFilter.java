@@ -0,0 +1,130 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestDuplicateFilter</code> checks the time bucketed duplicate set, and how a
+ * group keys and labels its repeats.
+ * @author justin.good
+ */
+public class TestDuplicateFilter extends TestCase
+{
+    private static final long START = 1000000L;
+
+    public void testRepeatsWithinWindow()
+    {
+        DuplicateFilter filter = new DuplicateFilter(60000, 64);
+        long a = Hash64.hash("a");
+        long b = Hash64.hash("b");
+
+        assertFalse(filter.isDuplicate(a, "a", START));
+        assertTrue(filter.isDuplicate(a, "a", START + 1000));
+        assertFalse(filter.isDuplicate(b, "b", START + 2000));
+        assertTrue(filter.isDuplicate(a, "a", START + 30000));
+        assertEquals(2, filter.getSuppressed());
+        assertNull(filter.drainReport());
+
+        // once the window has passed, a is new again and its repeats are reported once
+        assertFalse(filter.isDuplicate(a, "a", START + 61000));
+        String report = filter.drainReport();
+        assertNotNull(report);
+        assertTrue(report.startsWith("2 more since "));
+        assertTrue(report.endsWith(": a\n"));
+        assertNull(filter.drainReport());
+    }
+
+    public void testFullBucketLetsTrapsThrough()
+    {
+        DuplicateFilter filter = new DuplicateFilter(60000, 16);
+        for (int i = 0; i < 100; ++i)
+        {
+            assertFalse(filter.isDuplicate(Hash64.hash("k" + i), "k", START));
+        }
+        assertTrue(filter.getOverflow() > 0);
+        assertTrue(filter.isDuplicate(Hash64.hash("k0"), "k", START));
+    }
+
+    public void testHashSeparatesFields()
+    {
+        long ab = Hash64.finish(Hash64.add(Hash64.add(Hash64.SEED, "ab"), "c"));
+        long abc = Hash64.finish(Hash64.add(Hash64.add(Hash64.SEED, "a"), "bc"));
+        assertFalse(ab == abc);
+    }
+
+    public void testLabelWithoutSender() throws Exception
+    {
+        // keyed on the stack alone, so two senders repeat each other
+        List<String> reports = repeats("stack");
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0).startsWith("2 more since "));
+        assertTrue(reports.get(0).endsWith(": s1\n"));
+    }
+
+    public void testLabelWithSender() throws Exception
+    {
+        List<String> reports = repeats("sender,stack,body");
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0).startsWith("1 more since "));
+        assertTrue(reports.get(0).endsWith(": 10.0.0.1 s1 Disk full on /var s#\n"));
+    }
+
+    public void testUnknownField() throws Exception
+    {
+        try
+        {
+            repeats("stack,sid");
+            fail("sid is neither renamed nor an OID");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertTrue(ex.getMessage().contains("disk: sid"));
+        }
+        assertNotNull(repeats("1.3.6.1.4.1.29449.2"));
+    }
+
+    /**
+     * Send the same trap from 10.0.0.1 twice and from 10.0.0.2 once, then let the window
+     * pass
+     * @param aDedup dedup fields of the group
+     * @return repeat reports sent
+     */
+    private List<String> repeats(String aDedup) throws Exception
+    {
+        File file = TrapFixtures.writeProperties(
+            "disk.find=Disk\ndisk.dedup=" + aDedup + "\n",
+            "disk.rename=1.3.6.1.4.1.29449.2=stack\n",
+            "disk.forward.1.address=ops@example.com\n",
+            "disk.forward.1.template=basic.email.txt\n");
+        try
+        {
+            VirtualClock clock = new VirtualClock(START);
+            TrapFixtures.RecordingMailer mailer = new TrapFixtures.RecordingMailer();
+            TrapGroup group = new TrapGroup(new ReadableProperties(file.getPath(), ','),
+                                            "disk", new TrapContext(mailer, clock));
+            group.setClock(clock);
+
+            PDU pdu = TrapFixtures.makeTrap("Disk full on /var", "s1");
+            InetAddress first = InetAddress.getByName("10.0.0.1");
+            assertFalse(group.isDuplicate(pdu, first));
+            assertTrue(group.isDuplicate(pdu, first));
+            group.isDuplicate(pdu, InetAddress.getByName("10.0.0.2"));
+
+            clock.advance(2 * 60000L);
+            group.sendDuplicates();
+            return mailer.bodies;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestEscalationPolicy</code> checks that consolidation escalates every N windows
+ * at or above the limit, and that a rebuilt group carries on its streak only when its
+ * configuration is handed the old streaks, and that the classifier sends escalations
+ * once it has released its lock.
+ * @author justin.good
+ */
+public class TestEscalationPolicy extends TestCase
+{
+    private static final long START = 1262304000000L; // 2010-01-01
+    private static final String ESCALATED = "disk 5 escalated [pager@example.com]";
+
+    private File file;
+    private ReadableProperties props;
+    private VirtualClock clock;
+    private TrapFixtures.RecordingMailer mailer;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = TrapFixtures.writeProperties("disk.find=Disk\ndisk.limit=3\n",
+            "disk.forward.1.address=ops@example.com\n",
+            "disk.forward.1.template=basic.email.txt\n",
+            "disk.escalate.windows=2\n",
+            "disk.escalate.forward.1.address=pager@example.com\n",
+            "disk.escalate.forward.1.template=basic.email.txt\n");
+
+        props = new ReadableProperties(file.getPath(), ',');
+        clock = new VirtualClock(START);
+        mailer = new TrapFixtures.RecordingMailer();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testEveryNWindows()
+    {
+        TrapContext context = new TrapContext(mailer, clock);
+        TrapGroup group = new TrapGroup(props, "disk", context);
+
+        send(group, 5);
+        assertFalse(mailer.sent.contains(ESCALATED));
+        send(group, 5);
+        assertEquals(1, mailer.count(ESCALATED));
+        send(group, 5);
+        send(group, 5);
+        assertEquals(2, mailer.count(ESCALATED));
+        assertEquals(4, context.getStreaks().getStreak("disk"));
+
+        // a window under the limit ends the streak, as does consolidation stopping
+        send(group, 1);
+        assertEquals(0, context.getStreaks().getStreak("disk"));
+        send(group, 5);
+        group.stopConsolidation();
+        assertEquals(0, context.getStreaks().getStreak("disk"));
+    }
+
+    public void testCarriedOn()
+    {
+        TrapContext first = new TrapContext(mailer, clock);
+        send(new TrapGroup(props, "disk", first), 5);
+
+        // the replacing configuration is handed the streaks, so escalates at once
+        TrapContext second = new TrapContext(mailer, clock, first.getStreaks());
+        send(new TrapGroup(props, "disk", second), 5);
+        assertEquals(1, mailer.count(ESCALATED));
+        assertEquals(2, second.getStreaks().getStreak("disk"));
+    }
+
+    public void testNotShared()
+    {
+        TrapContext first = new TrapContext(mailer, clock);
+        send(new TrapGroup(props, "disk", first), 5);
+
+        // a configuration of its own, even with the same Mailer, starts from nothing
+        TrapContext other = new TrapContext(mailer, clock);
+        send(new TrapGroup(props, "disk", other), 5);
+        assertEquals(0, mailer.count(ESCALATED));
+        assertEquals(1, first.getStreaks().getStreak("disk"));
+        assertEquals(1, other.getStreaks().getStreak("disk"));
+        assertEquals(0, other.getStreaks().getStreak("net"));
+    }
+
+    public void testOutsideLock() throws Exception
+    {
+        // one window already at the limit, so the next one escalates
+        TrapContext context = new TrapContext(mailer, clock);
+        send(new TrapGroup(props, "disk", context), 5);
+        List<TrapGroup> accept = new ArrayList<TrapGroup>();
+        accept.add(new TrapGroup(props, "disk", context));
+        TrapClassifier classifier =
+            new TrapClassifier(accept, new ArrayList<TrapGroup>(), clock);
+        mailer.watch(classifier);
+
+        InetAddress sender = InetAddress.getByName("127.0.0.1");
+        for (int i = 0; i < 6; ++i)
+        {
+            clock.advance(1000);
+            assertTrue(classifier.classify(TrapFixtures.makeTrap("Disk " + i), sender));
+        }
+        classifier.flush();
+        assertEquals(1, mailer.count("disk 3 escalated [pager@example.com]"));
+        assertFalse(mailer.locked.contains("disk 3 escalated"));
+    }
+
+    /**
+     * Send a window of aCount, and the escalation it brings, as the classifier does once
+     * it has released its lock
+     */
+    private static void send(TrapGroup aGroup, int aCount)
+    {
+        Notice escalation = aGroup.sendConsolidated(START, aCount);
+        if (escalation != null)
+        {
+            escalation.send();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestFlapDetector</code> checks that a key changing state too often is
+ * suppressed, and that it is forwarded again as soon as it has stayed in one state for a
+ * window, without waiting for a report. Reports are only built here, and sent as the
+ * classifier sends them.
+ * @author justin.good
+ */
+public class TestFlapDetector extends TestCase
+{
+    private static final long MINUTE = 60000L;
+    private static final long START = 1262304000000L; // 2010-01-01
+
+    private File file;
+    private TrapFixtures.RecordingMailer mailer;
+    private TrapGroup down;
+    private TrapGroup up;
+    private FlapDetector flaps;
+    private InetAddress sender;
+    private VirtualClock clock;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = TrapFixtures.writeProperties(
+            "down.find=Down\ndown.forward.1.address=ops@example.com\n",
+            "down.forward.1.template=basic.email.txt\n",
+            "up.find=Up\nup.forward.1.address=ops@example.com\n",
+            "up.forward.1.template=basic.email.txt\n");
+
+        ReadableProperties props = new ReadableProperties(file.getPath(), ',');
+        mailer = new TrapFixtures.RecordingMailer();
+        clock = new VirtualClock(START);
+        TrapContext context = new TrapContext(mailer, clock);
+        down = new TrapGroup(props, "down", context);
+        up = new TrapGroup(props, "up", context);
+
+        // 4 transitions within 15 minutes, reported every 5
+        flaps = new FlapDetector(down, up, "sender", 4, 15, 5, 100, clock);
+        sender = InetAddress.getByName("10.0.0.1");
+        assertNull(flaps.report(START)); // first report only starts the period
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testFlapping() throws Exception
+    {
+        assertFalse(trap(down, 1));
+        assertFalse(trap(up, 1));
+        assertFalse(trap(down, 1));
+        assertFalse(trap(up, 1));
+        assertTrue(trap(down, 1)); // the fourth transition
+
+        // within the window either state stays suppressed
+        assertTrue(trap(down, 5));
+        assertTrue(trap(up, 5));
+
+        // another sender is its own key
+        assertFalse(flaps.isSuppressed(down, TrapFixtures.makeTrap("Down"),
+                                       InetAddress.getByName("10.0.0.2"),
+                                       clock.currentTimeMillis()));
+    }
+
+    public void testStableAgain()
+    {
+        flap();
+
+        // down for a whole window, and the next down goes out without a report
+        assertTrue(trap(down, 14));
+        assertFalse(trap(down, 2));
+
+        // and is not flapping, so a single recovery goes out too
+        assertFalse(trap(up, 1));
+    }
+
+    public void testChangeAfterQuietWindow()
+    {
+        flap();
+
+        // no trap at all for a window, then a change of state is forwarded
+        assertFalse(trap(up, 16));
+    }
+
+    public void testReportListsSettled()
+    {
+        flap();
+        assertTrue(trap(down, 1));
+        assertFalse(trap(down, 16));
+
+        report();
+        assertEquals(1, mailer.subjects.size());
+        assertEquals("down/up flapping: 1", mailer.subjects.get(0));
+        assertTrue(mailer.bodies.get(0).contains("10.0.0.1 flapping since"));
+        assertTrue(mailer.bodies.get(0).contains("2 suppressed, now problem, stable again"));
+
+        // listed once only
+        clock.advance(5 * MINUTE);
+        assertNull(flaps.report(clock.currentTimeMillis()));
+    }
+
+    public void testRender()
+    {
+        flap();
+        assertTrue(trap(down, 1));
+
+        // the page counts transitions by the classifier's clock, not the system's
+        String page = flaps.render();
+        assertTrue(page.startsWith("down/up by sender, 1 keys\n"));
+        assertTrue(page.contains("10.0.0.1 flapping since"));
+        assertTrue(page.contains(", 4 transitions in window, 2 suppressed, now problem\n"));
+    }
+
+    /**
+     * Send the report now due, as the classifier does once it has released its lock
+     */
+    private void report()
+    {
+        Notice summary = flaps.report(clock.currentTimeMillis());
+        assertNotNull(summary);
+        summary.send();
+    }
+
+    /**
+     * Flap the sender, leaving it down
+     */
+    private void flap()
+    {
+        for (int i = 0; i < 2; ++i)
+        {
+            trap(down, 1);
+            trap(up, 1);
+        }
+        assertTrue(trap(down, 1));
+    }
+
+    /**
+     * @return true if the trap, after aMinutes, is suppressed
+     */
+    private boolean trap(TrapGroup aGroup, int aMinutes)
+    {
+        clock.advance(aMinutes * MINUTE);
+        PDU trap = TrapFixtures.makeTrap(aGroup == down ? "Down" : "Up");
+        return flaps.isSuppressed(aGroup, trap, sender, clock.currentTimeMillis());
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestHyperLogLog</code> checks the distinct count estimates stay within a few
+ * percent, that merging behaves like a union, and what a group counts per field.
+ * @author justin.good
+ */
+public class TestHyperLogLog extends TestCase
+{
+    public void testSmallCountsAreExact()
+    {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        assertEquals(0, hll.estimate());
+        for (int i = 0; i < 10; ++i)
+        {
+            hll.offer("sid" + i);
+            hll.offer("sid" + i); // repeats don't count
+        }
+        assertEquals(10, hll.estimate());
+    }
+
+    public void testLargeCountWithinError()
+    {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 100000; ++i)
+        {
+            hll.offer("session-" + i);
+        }
+        assertEquals(100000, hll.estimate(), 100000 * 0.1);
+    }
+
+    public void testSmallPrecisions()
+    {
+        // few registers are noisy, but on average unbiased
+        for (int precision = 4; precision <= 6; ++precision)
+        {
+            long sum = 0;
+            for (int run = 0; run < 50; ++run)
+            {
+                HyperLogLog hll = new HyperLogLog(precision);
+                for (int i = 0; i < 2000; ++i)
+                {
+                    hll.offer("run-" + run + "-" + i);
+                }
+                sum += hll.estimate();
+            }
+            assertEquals(2000, sum / 50.0, 2000 * 0.1);
+        }
+    }
+
+    public void testMergeIsUnion()
+    {
+        HyperLogLog a = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog b = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 5000; ++i)
+        {
+            a.offer("stack-" + i);
+            b.offer("stack-" + (i + 2500));
+        }
+        a.merge(b);
+        assertEquals(7500, a.estimate(), 7500 * 0.1);
+
+        a.clear();
+        assertEquals(0, a.estimate());
+    }
+
+    public void testGroupFields() throws Exception
+    {
+        File file = TrapFixtures.writeProperties(
+            "disk.find=Disk\ndisk.distinct=sender,body,stack\n",
+            "disk.rename=1.3.6.1.4.1.29449.2=stack\n");
+        try
+        {
+            TrapGroup group = new TrapGroup(new ReadableProperties(file.getPath(), ','),
+                                            "disk");
+
+            // 3 senders, 2 bodies, 1 stack
+            for (int i = 0; i < 6; ++i)
+            {
+                group.sketch(TrapFixtures.makeTrap("Disk " + (i % 2), "s1"),
+                             InetAddress.getByName("10.0.0." + (i % 3)));
+            }
+            String distinct = group.describeDistinct();
+            assertTrue(distinct.contains("sender window=3 "));
+            assertTrue(distinct.contains("body window=2 "));
+            assertTrue(distinct.contains("stack window=1 "));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestMaintenanceCalendar</code> checks window matching, recurrence, saving, the
+ * daily rebuild and that edits through the liveness port need the token.
+ * @author justin.good
+ */
+public class TestMaintenanceCalendar extends TestCase
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm");
+    private File file;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("maintenance", ".txt");
+        file.delete();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testGroupAndSender() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        MaintenanceCalendar calendar = new MaintenanceCalendar(file);
+        String added = calendar.submit(TrapperAlive.parseQuery("group=timeout"
+            + "&sender=10.0.112.0%2F24&from=" + format(now - HOUR) + "&to="
+            + format(now + HOUR)));
+        assertTrue(added, added.startsWith("added 1 "));
+
+        InetAddress inside = InetAddress.getByName("10.0.112.9");
+        InetAddress outside = InetAddress.getByName("10.0.113.9");
+        assertTrue(calendar.isSuppressed("timeout", inside, now));
+        assertFalse(calendar.isSuppressed("timeout", outside, now));
+        assertFalse(calendar.isSuppressed("rconnect", inside, now));
+        assertFalse(calendar.isSuppressed("timeout", inside, now + 2 * HOUR));
+
+        // saved, so a new calendar loads the same window
+        MaintenanceCalendar loaded = new MaintenanceCalendar(file);
+        assertTrue(loaded.isSuppressed("timeout", inside, now));
+
+        calendar.submit(TrapperAlive.parseQuery("remove=1"));
+        assertFalse(calendar.isSuppressed("timeout", inside, now));
+    }
+
+    public void testDailyRepeat() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        MaintenanceCalendar calendar = new MaintenanceCalendar(file);
+        calendar.submit(TrapperAlive.parseQuery("from=" + format(now - 49 * HOUR) + "&to="
+            + format(now - 47 * HOUR) + "&repeat=daily"));
+
+        InetAddress sender = InetAddress.getByName("10.0.0.1");
+        assertTrue(calendar.isSuppressed("any", sender, now));
+        assertFalse(calendar.isSuppressed("any", sender, now + 3 * HOUR));
+        assertTrue(calendar.isSuppressed("any", sender, now + 24 * HOUR));
+    }
+
+    public void testBadWindow() throws Exception
+    {
+        MaintenanceCalendar calendar = new MaintenanceCalendar(file);
+        String result = calendar.submit(TrapperAlive.parseQuery("from=tomorrow&to=later"));
+        assertTrue(result, result.startsWith("error: "));
+    }
+
+    public void testRefresh() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        MaintenanceCalendar calendar = new MaintenanceCalendar(file);
+        calendar.submit(TrapperAlive.parseQuery("from=" + format(now + 200 * HOUR)
+            + "&to=" + format(now + 202 * HOUR)));
+
+        // beyond the week indexed, and checking never rebuilds the index
+        InetAddress sender = InetAddress.getByName("10.0.0.1");
+        long during = now + 201 * HOUR;
+        assertFalse(calendar.isSuppressed("any", sender, during));
+
+        calendar.refresh(during);
+        assertTrue(calendar.isSuppressed("any", sender, during));
+    }
+
+    public void testEditNeedsToken() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        MaintenanceCalendar calendar = new MaintenanceCalendar(file);
+        TrapperAlive alive = new TrapperAlive(0);
+        alive.addPage("/maintenance", calendar);
+        alive.start();
+        try
+        {
+            String add = "/maintenance?from=" + format(now - HOUR).replace(":", "%3A")
+                + "&to=" + format(now + HOUR).replace(":", "%3A");
+            InetAddress sender = InetAddress.getByName("10.0.0.1");
+
+            assertTrue(get(alive, add).contains("liveness.token"));
+            alive.setToken("secret");
+            assertTrue(get(alive, add).contains("bad token"));
+            assertTrue(get(alive, add + "&token=wrong").contains("bad token"));
+            assertFalse(calendar.isSuppressed("any", sender, now));
+
+            assertTrue(get(alive, add + "&token=secret").contains("added 1 "));
+            assertTrue(calendar.isSuppressed("any", sender, now));
+        }
+        finally
+        {
+            alive.close();
+        }
+    }
+
+    private static String get(TrapperAlive aAlive, String aPath) throws Exception
+    {
+        Socket socket = new Socket("127.0.0.1", aAlive.getPort());
+        try
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + aPath + " HTTP/1.0\r\n\r\n").getBytes());
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream()));
+            StringBuilder str = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                str.append(line).append("\n");
+            }
+            return str.toString();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private String format(long aTime)
+    {
+        return sdf.format(new Date(aTime));
+    }
+}
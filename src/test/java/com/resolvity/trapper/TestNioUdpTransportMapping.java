@@ -0,0 +1,108 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.TransportMapping;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.TransportListener;
+
+/**
+ * <code>TestNioUdpTransportMapping</code> listens on a loopback port with several readers
+ * and checks every datagram from several senders is delivered once, on one socket per
+ * reader where SO_REUSEPORT is available and on one shared socket where it is not.
+ * @author justin.good
+ */
+public class TestNioUdpTransportMapping extends TestCase
+{
+    private static final int READERS = 4;
+    private static final int SENDERS = 8;
+    private static final int PER_SENDER = 25;
+
+    private InetAddress loopback;
+    private NioUdpTransportMapping transport;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        loopback = InetAddress.getByName("127.0.0.1");
+        transport = new NioUdpTransportMapping(new UdpAddress(loopback, 0), READERS, 0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        transport.close();
+    }
+
+    public void testSocketPerReader() throws Exception
+    {
+        transport.listen();
+        assertTrue(transport.isListening());
+        assertTrue(transport.getLocalPort() > 0);
+
+        // whatever this JVM offers decides between one socket per reader and one shared
+        DatagramChannel probe = DatagramChannel.open();
+        boolean reusePort = NioUdpTransportMapping.setReusePort(probe);
+        probe.close();
+        assertEquals(reusePort ? READERS : 1, transport.getSocketCount());
+
+        final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch done = new CountDownLatch(SENDERS * PER_SENDER);
+        transport.addTransportListener(new TransportListener()
+        {
+            public void processMessage(TransportMapping aTransport, Address aAddress,
+                                       ByteBuffer aMessage)
+            {
+                byte[] bytes = new byte[aMessage.remaining()];
+                aMessage.get(bytes);
+                if (received.add(new String(bytes)))
+                {
+                    done.countDown();
+                }
+            }
+        });
+
+        // distinct source ports, so SO_REUSEPORT spreads them over the sockets
+        for (int s = 0; s < SENDERS; ++s)
+        {
+            DatagramSocket sender = new DatagramSocket(0, loopback);
+            for (int i = 0; i < PER_SENDER; ++i)
+            {
+                byte[] bytes = (s + "-" + i).getBytes();
+                sender.send(new DatagramPacket(bytes, bytes.length, loopback,
+                                               transport.getLocalPort()));
+            }
+            sender.close();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(SENDERS * PER_SENDER, received.size());
+    }
+
+    public void testClose() throws Exception
+    {
+        transport.listen();
+        transport.close();
+        assertFalse(transport.isListening());
+        assertEquals(0, transport.getSocketCount());
+        assertEquals(-1, transport.getLocalPort());
+
+        // the port is free again once every socket is closed
+        transport.listen();
+        assertTrue(transport.isListening());
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestPriorityLanes</code> checks that a full lane drops its traps and that a
+ * reserved worker keeps the top lane moving while the shared workers are stuck, and
+ * that a task which fails still counts as finished.
+ * @author justin.good
+ */
+public class TestPriorityLanes extends TestCase
+{
+    private PriorityLanes lanes;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        release.countDown();
+        if (lanes != null)
+        {
+            lanes.stop();
+        }
+    }
+
+    public void testLanes()
+    {
+        lanes = new PriorityLanes(weights(), 1, 0, 10);
+        assertTrue(lanes.hasLane("high"));
+        assertTrue(lanes.hasLane(PriorityLanes.DEFAULT_LANE));
+        assertFalse(lanes.hasLane("urgent"));
+        assertEquals("high", lanes.getTopLane());
+    }
+
+    public void testFull() throws Exception
+    {
+        lanes = new PriorityLanes(weights(), 1, 0, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(lanes.submit("low", blocker(started)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the only worker is stuck, so the lane fills and then drops
+        assertTrue(lanes.submit("low", noop()));
+        assertTrue(lanes.submit("low", noop()));
+        assertFalse(lanes.submit("low", noop()));
+        assertTrue(lanes.render().contains("low weight=1 depth=2 dropped=1"));
+
+        // other lanes have their own room, unknown names share the default lane's
+        assertTrue(lanes.submit("high", noop()));
+        assertTrue(lanes.submit("urgent", noop()));
+        assertTrue(lanes.render().contains("normal weight=2 depth=1 dropped=0"));
+
+        release.countDown();
+        assertTrue(lanes.drain(System.currentTimeMillis() + 5000));
+    }
+
+    public void testError() throws Exception
+    {
+        // the worker it kills no longer runs anything, but the task is not pending
+        lanes = new PriorityLanes(weights(), 2, 0, 2);
+        assertTrue(lanes.submit("low", new Runnable()
+        {
+            public void run()
+            {
+                throw new Error("task failed");
+            }
+        }));
+        assertTrue(lanes.submit("low", noop()));
+        assertTrue(lanes.drain(System.currentTimeMillis() + 5000));
+    }
+
+    public void testReserved() throws Exception
+    {
+        lanes = new PriorityLanes(weights(), 2, 1, 10);
+
+        // the shared worker is stuck on a slow bulk trap
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(lanes.submit("low", blocker(started)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the reserved worker leaves low alone but still runs high
+        final CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(lanes.submit("low", noop()));
+        assertTrue(lanes.submit("high", new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        }));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(lanes.render().contains("low weight=1 depth=1"));
+    }
+
+    public void testReservedLeavesAShared() throws Exception
+    {
+        // asking to reserve every worker still leaves one for the other lanes
+        lanes = new PriorityLanes(weights(), 1, 1, 10);
+        final CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(lanes.submit("low", new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        }));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Map<String,Integer> weights()
+    {
+        Map<String,Integer> weights = new LinkedHashMap<String,Integer>();
+        weights.put("high", 8);
+        weights.put("normal", 2);
+        weights.put("low", 1);
+        return weights;
+    }
+
+    private Runnable blocker(final CountDownLatch aStarted)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                aStarted.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    // stopped
+                }
+            }
+        };
+    }
+
+    private static Runnable noop()
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestRetrySpool</code> checks backoff, ordering and recovery after a restart.
+ * @author justin.good
+ */
+public class TestRetrySpool extends TestCase
+{
+    private static final String KEY = "[ops@example.com]";
+    private static final List<String> HOSTS = Arrays.asList("127.0.0.1:2525");
+
+    private File dir;
+    private FlakyMailer mailer;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile("spool", "");
+        dir.delete();
+        mailer = new FlakyMailer();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testBackoff() throws Exception
+    {
+        RetrySpool spool = new RetrySpool(dir, mailer, 10, 60, 1);
+        assertFalse(spool.hasBacklog(KEY));
+        spool.add(KEY, HOSTS, makeMessage("one"));
+        assertTrue(spool.hasBacklog(KEY));
+
+        long now = System.currentTimeMillis();
+        mailer.failures = 2;
+        assertTrue(spool.retryNext(now)); // fails, backs off 10s
+        assertFalse(spool.retryNext(now + 5000));
+        assertTrue(spool.retryNext(now + 10000)); // fails, backs off 20s
+        assertFalse(spool.retryNext(now + 29000));
+        assertTrue(spool.retryNext(now + 30000)); // delivered
+
+        assertEquals(0, spool.getDepth());
+        assertFalse(spool.hasBacklog(KEY));
+        assertEquals(Arrays.asList("one"), mailer.subjects);
+        spool.close();
+    }
+
+    public void testRestart() throws Exception
+    {
+        RetrySpool spool = new RetrySpool(dir, mailer, 10, 60, 1);
+        spool.add(KEY, HOSTS, makeMessage("one"));
+        spool.add(KEY, HOSTS, makeMessage("two"));
+        spool.add("[other@example.com]", HOSTS, makeMessage("three"));
+
+        // the first is delivered, then we stop
+        assertTrue(spool.retryNext(System.currentTimeMillis()));
+        spool.close();
+
+        spool = new RetrySpool(dir, mailer, 10, 60, 1);
+        assertEquals(2, spool.getDepth());
+        long now = System.currentTimeMillis();
+        while (spool.retryNext(now))
+        {
+            // drain
+        }
+        assertEquals(Arrays.asList("one", "two", "three"), mailer.subjects);
+
+        // empty now, and stays empty after another restart
+        spool.close();
+        spool = new RetrySpool(dir, mailer, 10, 60, 1);
+        assertEquals(0, spool.getDepth());
+        spool.close();
+    }
+
+    private static Message makeMessage(String aSubject) throws MessagingException
+    {
+        MimeMessage msg = new MimeMessage(Session.getInstance(new Properties()));
+        msg.setSubject(aSubject);
+        msg.setContent("body", "text/plain");
+        return msg;
+    }
+
+    /**
+     * <code>FlakyMailer</code> fails a given number of times, then keeps the subject of
+     * each message it is given.
+     */
+    private static class FlakyMailer implements Mailer
+    {
+        int failures;
+        final List<String> subjects = new ArrayList<String>();
+
+        /** {@inheritDoc} */
+        public void send(Message aMessage) throws MessagingException
+        {
+            if (failures > 0)
+            {
+                --failures;
+                throw new MessagingException("unavailable");
+            }
+            subjects.add(aMessage.getSubject());
+        }
+    }
+}
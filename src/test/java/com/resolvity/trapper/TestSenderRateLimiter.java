@@ -0,0 +1,75 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestSenderRateLimiter</code> drives the token buckets with explicit times.
+ * @author justin.good
+ */
+public class TestSenderRateLimiter extends TestCase
+{
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    public void testBurstThenRefill() throws Exception
+    {
+        // 60 per minute is one per second, with a burst of 3
+        SenderRateLimiter limiter = new SenderRateLimiter(60, 3, 100, 5);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        long now = 0;
+
+        assertTrue(limiter.tryAcquire(a, now));
+        assertTrue(limiter.tryAcquire(a, now));
+        assertTrue(limiter.tryAcquire(a, now));
+        assertFalse(limiter.tryAcquire(a, now));
+
+        // half a token is not enough, a whole one is
+        assertFalse(limiter.tryAcquire(a, now + SECOND / 2));
+        assertTrue(limiter.tryAcquire(a, now + SECOND));
+        assertFalse(limiter.tryAcquire(a, now + SECOND));
+
+        // a long silence refills to the burst size, not beyond
+        now += 3600 * SECOND;
+        for (int i = 0; i < 3; ++i)
+        {
+            assertTrue(limiter.tryAcquire(a, now));
+        }
+        assertFalse(limiter.tryAcquire(a, now));
+    }
+
+    public void testFrequentCallsStillRefill() throws Exception
+    {
+        SenderRateLimiter limiter = new SenderRateLimiter(60, 1, 100, 5);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        assertTrue(limiter.tryAcquire(a, 0));
+
+        // calls every 100 microseconds must not lose the fractional refill
+        int granted = 0;
+        for (long t = 0; t <= 2 * SECOND; t += SECOND / 10000)
+        {
+            if (limiter.tryAcquire(a, t))
+            {
+                ++granted;
+            }
+        }
+        assertEquals(2, granted);
+    }
+
+    public void testSendersAreIndependentAndBounded() throws Exception
+    {
+        SenderRateLimiter limiter = new SenderRateLimiter(60, 1, 2, 5);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        InetAddress c = InetAddress.getByName("10.0.0.3");
+
+        assertTrue(limiter.tryAcquire(a, 0));
+        assertTrue(limiter.tryAcquire(b, 0));
+        assertFalse(limiter.tryAcquire(a, 0));
+
+        // c evicts b, the least recently seen, so b starts over
+        assertTrue(limiter.tryAcquire(c, 0));
+        assertTrue(limiter.tryAcquire(b, 0));
+    }
+}
@@ -0,0 +1,129 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestStormMonitor</code> drives a storm on a virtual clock and checks its
+ * summaries are sent without the classifier's lock, and that scheduled digests still go
+ * out while it lasts.
+ * @author justin.good
+ */
+public class TestStormMonitor extends TestCase
+{
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long START = 1262304000000L; // 2010-01-01
+
+    private File file;
+    private VirtualClock clock;
+    private TrapFixtures.RecordingMailer mailer;
+    private TrapClassifier classifier;
+    private InetAddress sender;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        // a digest ten minutes in, in local time, and another much later
+        SimpleDateFormat hhmm = new SimpleDateFormat("HH:mm");
+        String first = hhmm.format(new Date(START + 10 * MINUTE));
+        String second = hhmm.format(new Date(START + 12 * 60 * MINUTE));
+
+        file = TrapFixtures.writeProperties("burst.find=Burst\nburst.limit=0\n",
+            "burst.forward.1.address=burst@example.com\n",
+            "burst.forward.1.template=basic.email.txt\n",
+            "digest.find=Digest\ndigest.limit=100\n",
+            "digest.schedule=" + first + "," + second + "\n",
+            "digest.forward.1.address=digest@example.com\n",
+            "digest.forward.1.template=basic.email.txt\n");
+
+        ReadableProperties props = new ReadableProperties(file.getPath(), ',');
+        clock = new VirtualClock(START);
+        mailer = new TrapFixtures.RecordingMailer();
+        TrapContext context = new TrapContext(mailer, clock);
+        TrapGroup burst = new TrapGroup(props, "burst", context);
+        TrapGroup digest = new TrapGroup(props, "digest", context);
+        List<TrapGroup> accept = new ArrayList<TrapGroup>(Arrays.asList(burst, digest));
+
+        classifier = new TrapClassifier(accept, new ArrayList<TrapGroup>(), clock);
+        classifier.setStorm(new StormMonitor(60, 10, 1));
+        mailer.watch(classifier);
+        sender = InetAddress.getByName("127.0.0.1");
+        classifier.consolidate(); // first check only starts the rate
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testSummaryOutsideLock()
+    {
+        startStorm();
+
+        // during the storm traps are only counted
+        for (int i = 0; i < 50; ++i)
+        {
+            assertTrue(classifier.classify(TrapFixtures.makeTrap("Burst " + i), sender));
+        }
+        assertTrue(mailer.subjects.isEmpty());
+
+        clock.advance(MINUTE);
+        classifier.consolidate();
+        assertEquals(Arrays.asList("trap storm: 50 traps in 1 groups"), mailer.subjects);
+        assertTrue(mailer.locked.isEmpty());
+
+        // quiet for a minute ends it, with a final summary of what came since
+        classifier.classify(TrapFixtures.makeTrap("Burst last"), sender);
+        clock.advance(30 * SECOND);
+        classifier.consolidate();
+        clock.advance(30 * SECOND);
+        classifier.consolidate();
+        assertFalse(classifier.getStorm().isActive());
+        assertEquals("trap storm over: 1 traps in 1 groups", mailer.subjects.get(1));
+        assertTrue(mailer.locked.isEmpty());
+    }
+
+    public void testDigestDuringStorm()
+    {
+        // saved for the digest before the storm
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Digest 1"), sender));
+        startStorm();
+        assertFalse(mailer.sentTo("digest@example.com"));
+
+        // the schedule comes round mid storm, and the digest still goes out
+        clock.advance(10 * MINUTE);
+        classifier.classify(TrapFixtures.makeTrap("Burst again"), sender);
+        classifier.consolidate();
+        assertTrue(classifier.getStorm().isActive());
+        assertTrue(mailer.sentTo("digest@example.com"));
+    }
+
+    /**
+     * Send 100 traps in 30 seconds, 200 a minute, well over the enter rate
+     */
+    private void startStorm()
+    {
+        for (int i = 0; i < 100; ++i)
+        {
+            classifier.classify(TrapFixtures.makeTrap("Burst " + i), sender);
+        }
+        clock.advance(30 * SECOND);
+        classifier.consolidate();
+        assertTrue(classifier.getStorm().isActive());
+        mailer.clear();
+    }
+}
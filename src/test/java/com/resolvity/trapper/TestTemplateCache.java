@@ -0,0 +1,67 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestTemplateCache</code> checks templates are loaded once per cache, and that
+ * each configuration's cache is its own.
+ * @author justin.good
+ */
+public class TestTemplateCache extends TestCase
+{
+    public void testLoadedOnce() throws Exception
+    {
+        TemplateCache cache = new TemplateCache();
+        String basic = cache.load("basic.email.txt");
+        assertTrue(basic.startsWith("$name $sender"));
+        assertSame(basic, cache.load("basic.email.txt"));
+
+        cache.load("digest.email.txt");
+        cache.load("basic.email.txt");
+        assertEquals(2, cache.getPaths());
+        assertEquals(2, cache.getTexts());
+    }
+
+    public void testMissing()
+    {
+        TemplateCache cache = new TemplateCache();
+        try
+        {
+            cache.load(null);
+            fail("no path");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+        try
+        {
+            cache.load("no-such-template.txt");
+            fail("no such template");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+        assertEquals(0, cache.getPaths());
+        assertEquals(0, cache.getTexts());
+    }
+
+    public void testPerConfiguration() throws Exception
+    {
+        // a configuration built again reads its templates again, into a cache of its own
+        TrapContext first = new TrapContext(SmtpMailer.INSTANCE, SystemClock.INSTANCE);
+        TrapContext second = new TrapContext(SmtpMailer.INSTANCE, SystemClock.INSTANCE);
+        assertNotSame(first.getTemplates(), second.getTemplates());
+
+        String text = first.getTemplates().load("basic.email.txt");
+        assertEquals(0, second.getTemplates().getPaths());
+        String again = second.getTemplates().load("basic.email.txt");
+        assertEquals(text, again);
+        assertNotSame(text, again);
+        assertEquals(1, first.getTemplates().getTexts());
+    }
+}
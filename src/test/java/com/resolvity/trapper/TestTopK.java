@@ -0,0 +1,122 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestTopK</code> checks the heavy hitters are found and counted within the
+ * Space-Saving error bound, and how they are described.
+ * @author justin.good
+ */
+public class TestTopK extends TestCase
+{
+    public void testExactUnderCapacity()
+    {
+        TopK top = new TopK(4);
+        offer(top, "a", 5);
+        offer(top, "b", 3);
+        offer(top, "c", 1);
+
+        List<TopK.Counter> list = top.top(10);
+        assertEquals(3, list.size());
+        assertEquals("a", list.get(0).getItem());
+        assertEquals(5, list.get(0).getCount());
+        assertEquals(0, list.get(0).getError());
+        assertEquals("c", list.get(2).getItem());
+        assertEquals(9, top.getTotal());
+        assertEquals(2, top.top(2).size());
+    }
+
+    public void testEvictsMinimum()
+    {
+        TopK top = new TopK(2);
+        offer(top, "a", 3);
+        offer(top, "b", 1);
+
+        // c replaces b, the smallest, and inherits its count as the possible error
+        top.offer("c");
+        List<TopK.Counter> list = top.top(2);
+        assertEquals("a", list.get(0).getItem());
+        assertEquals("c", list.get(1).getItem());
+        assertEquals(2, list.get(1).getCount());
+        assertEquals(1, list.get(1).getError());
+
+        // one-offs keep evicting each other, but never a, which is over half the stream
+        for (int i = 0; i < 10; ++i)
+        {
+            top.offer("x" + i);
+            top.offer("a");
+        }
+        assertEquals("a", top.top(1).get(0).getItem());
+        assertEquals(13, top.top(1).get(0).getCount());
+        assertEquals("x9", top.top(2).get(1).getItem());
+    }
+
+    public void testErrorBound()
+    {
+        // two heavy hitters in a lot of noise, more than 1/capacity of the stream each
+        TopK top = new TopK(20);
+        Random random = new Random(1);
+        int n = 100000;
+        int hot = 0;
+        int warm = 0;
+        for (int i = 0; i < n; ++i)
+        {
+            int r = random.nextInt(100);
+            if (r < 20)
+            {
+                top.offer("hot");
+                ++hot;
+            }
+            else if (r < 30)
+            {
+                top.offer("warm");
+                ++warm;
+            }
+            else
+            {
+                top.offer("noise" + random.nextInt(10000));
+            }
+        }
+
+        // never under, and over by at most its error, itself at most n/capacity
+        List<TopK.Counter> list = top.top(2);
+        assertEquals("hot", list.get(0).getItem());
+        assertEquals("warm", list.get(1).getItem());
+        assertCount(hot, list.get(0), n / 20);
+        assertCount(warm, list.get(1), n / 20);
+        assertEquals(n, top.getTotal());
+    }
+
+    public void testDescribe()
+    {
+        TopK top = new TopK(2);
+        offer(top, "10.0.0.1", 3);
+        offer(top, "10.0.0.2", 1);
+        top.offer("10.0.0.3");
+        assertEquals("3 10.0.0.1\n2 (max 1 over) 10.0.0.3\n", top.describe(5));
+        assertEquals("3 10.0.0.1\n", top.describe(1));
+
+        top.clear();
+        assertEquals("", top.describe(5));
+        assertEquals(0, top.getTotal());
+    }
+
+    private static void assertCount(int aTrue, TopK.Counter aCounter, int aMaxError)
+    {
+        assertTrue(aCounter.getCount() >= aTrue);
+        assertTrue(aCounter.getCount() - aCounter.getError() <= aTrue);
+        assertTrue(aCounter.getError() <= aMaxError);
+    }
+
+    private static void offer(TopK aTop, String aItem, int aTimes)
+    {
+        for (int i = 0; i < aTimes; ++i)
+        {
+            aTop.offer(aItem);
+        }
+    }
+}
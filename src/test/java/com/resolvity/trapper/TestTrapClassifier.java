@@ -0,0 +1,114 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestTrapClassifier</code> drives consolidation with a virtual clock, so windows
+ * of many minutes are checked without sleeping.
+ * @author justin.good
+ */
+public class TestTrapClassifier extends TestCase
+{
+    private static final long MINUTE = 60000L;
+    private static final long START = 1262304000000L; // 2010-01-01
+
+    private File file;
+    private VirtualClock clock;
+    private TrapGroup group;
+    private TrapClassifier classifier;
+    private InetAddress sender;
+    private TrapFixtures.RecordingMailer mailer;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = TrapFixtures.writeProperties(
+            "burst.find=Burst\nburst.limit=3\nburst.minutes=15\n",
+            "burst.forward.1.address=ops@example.com\n",
+            "burst.forward.1.template=basic.email.txt\n");
+
+        ReadableProperties props = new ReadableProperties(file.getPath(), ',');
+        List<TrapGroup> accept = new ArrayList<TrapGroup>();
+        mailer = new TrapFixtures.RecordingMailer();
+        group = new TrapGroup(props, "burst", mailer);
+        accept.add(group);
+
+        clock = new VirtualClock(START);
+        classifier = new TrapClassifier(accept, new ArrayList<TrapGroup>(), clock);
+        sender = InetAddress.getByName("127.0.0.1");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testConsolidation()
+    {
+        // up to the limit within the window, every trap is forwarded
+        for (int i = 0; i < 3; ++i)
+        {
+            assertTrue(classifier.classify(TrapFixtures.makeTrap("Burst " + i), sender));
+            clock.advance(1000);
+        }
+        assertFalse(classifier.isConsolidating(group));
+
+        assertTrue(classifier.classify(TrapFixtures.makeTrap("Burst 3"), sender));
+        assertTrue(classifier.isConsolidating(group));
+
+        // still consolidating while the window is open
+        clock.advance(5 * MINUTE);
+        classifier.consolidate();
+        assertTrue(classifier.isConsolidating(group));
+
+        // only one trap in the window since consolidation started, below the limit
+        clock.advance(11 * MINUTE);
+        classifier.consolidate();
+        assertFalse(classifier.isConsolidating(group));
+    }
+
+    public void testWindowSlides()
+    {
+        // traps spread wider than the window never consolidate
+        for (int i = 0; i < 10; ++i)
+        {
+            assertTrue(classifier.classify(TrapFixtures.makeTrap("Burst " + i), sender));
+            assertFalse(classifier.isConsolidating(group));
+            clock.advance(6 * MINUTE);
+        }
+    }
+
+    public void testFlush()
+    {
+        for (int i = 0; i < 4; ++i)
+        {
+            clock.advance(1000);
+            assertTrue(classifier.classify(TrapFixtures.makeTrap("Burst " + i), sender));
+        }
+        assertTrue(classifier.isConsolidating(group));
+        assertEquals(3, mailer.subjects.size());
+
+        // shutdown sends the open window at once
+        clock.advance(1000);
+        classifier.flush();
+        assertFalse(classifier.isConsolidating(group));
+        assertEquals(4, mailer.subjects.size());
+        assertEquals("burst 1", mailer.subjects.get(3));
+    }
+
+    public void testUnmatched()
+    {
+        assertFalse(classifier.classify(TrapFixtures.makeTrap("Quiet"), sender));
+    }
+}
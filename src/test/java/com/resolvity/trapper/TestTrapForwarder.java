@@ -0,0 +1,104 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestTrapForwarder</code> sends through SmtpSinks, checking delivery, failover
+ * across the smtp list and temporary failures.
+ * @author justin.good
+ */
+public class TestTrapForwarder extends TestCase
+{
+    private File file;
+    private SmtpSink primary;
+    private SmtpSink backup;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        primary = new SmtpSink();
+        backup = new SmtpSink();
+        file = File.createTempFile("forward", ".properties");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        primary.stop();
+        backup.stop();
+        file.delete();
+    }
+
+    public void testSend() throws Exception
+    {
+        TrapForwarder fwd = makeForwarder(primary.getAddress());
+        assertTrue(fwd.sendText("subject", "body"));
+
+        primary.assertMessages(1);
+        SmtpSink.Mail mail = primary.getMails().get(0);
+        assertEquals("<trap@resolvity.com>", mail.getFrom());
+        assertEquals("<ops@example.com>", mail.getTo().get(0));
+        assertTrue(mail.getData(), mail.getData().contains("Subject: subject"));
+    }
+
+    public void testFailover() throws Exception
+    {
+        TrapForwarder fwd = makeForwarder(primary.getAddress() + "," + backup.getAddress());
+        primary.dropNext(1);
+        assertTrue(fwd.sendText("subject", "body"));
+
+        assertEquals(1, primary.getDropped());
+        primary.assertMessages(0);
+        backup.assertMessages(1);
+    }
+
+    public void testTemporaryFailure() throws Exception
+    {
+        TrapForwarder fwd = makeForwarder(primary.getAddress());
+        primary.failNext(1);
+        assertFalse(fwd.sendText("subject", "body"));
+        assertEquals(1, primary.getRejected());
+
+        assertTrue(fwd.sendText("subject", "body"));
+        primary.assertMessages(1);
+        assertEquals(2, primary.getConnections());
+    }
+
+    public void testTemplate() throws Exception
+    {
+        TrapForwarder fwd = makeForwarder(primary.getAddress());
+        Map<String,String> map = new HashMap<String,String>();
+        map.put("name", "timeout");
+        map.put("sender", "host1");
+        map.put("stack", "prod");
+        map.put("sid", "42");
+        map.put("remainder", "detail");
+        assertTrue(fwd.send(map));
+
+        primary.assertMessages(1);
+        SmtpSink.Mail mail = primary.getMails().get(0);
+        assertEquals("<prod@resolvity.com>", mail.getFrom());
+        assertTrue(mail.getData(), mail.getData().contains("Subject: timeout host1 prod"));
+        assertTrue(mail.getData(), mail.getData().contains("session: 42"));
+    }
+
+    private TrapForwarder makeForwarder(String aSmtp) throws Exception
+    {
+        FileWriter out = new FileWriter(file);
+        out.write("smtp=" + aSmtp + "\n");
+        out.write("f.address=ops@example.com\n");
+        out.write("f.template=basic.email.txt\n");
+        out.close();
+        return new TrapForwarder(new ReadableProperties(file.getPath(), ','), "f");
+    }
+}
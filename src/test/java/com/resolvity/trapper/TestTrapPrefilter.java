@@ -0,0 +1,282 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestTrapPrefilter</code> checks that the trap OID is located in raw datagrams
+ * without decoding them, that ignore groups drop by sender, range and enterprise, and
+ * the edges of address ranges.
+ * @author justin.good
+ */
+public class TestTrapPrefilter extends TestCase
+{
+    // 1.3.6.1.4.1.29449
+    private static final byte[] RESOLVITY = {0x2B, 6, 1, 4, 1, (byte) 0x81, (byte) 0xE6, 9};
+    // 1.3.6.1.2.1.1.3.0
+    private static final byte[] SYS_UP_TIME = {0x2B, 6, 1, 2, 1, 1, 3, 0};
+    // 1.3.6.1.6.3.1.1.4.1.0
+    private static final byte[] SNMP_TRAP_OID = {0x2B, 6, 1, 6, 3, 1, 1, 4, 1, 0};
+    // 1.3.6.1.4.1.9
+    private static final byte[] CISCO = {0x2B, 6, 1, 4, 1, 9};
+
+    public void testV1Enterprise()
+    {
+        assertOid(RESOLVITY, message(0, v1pdu(RESOLVITY)));
+    }
+
+    public void testV2TrapOid()
+    {
+        assertOid(RESOLVITY, message(1, v2pdu(0xA7)));
+    }
+
+    public void testInformTrapOid()
+    {
+        assertOid(RESOLVITY, message(1, v2pdu(0xA6)));
+    }
+
+    public void testGarbage()
+    {
+        assertEquals(-1, TrapPrefilter.findTrapOid(ByteBuffer.wrap(new byte[] {0x30})));
+        assertEquals(-1, TrapPrefilter.findTrapOid(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+
+        // a get request is not a trap
+        byte[] get = message(1, tlv(0xA0, concat(tlv(0x02, new byte[] {1}),
+                                                 tlv(0x02, new byte[] {0}),
+                                                 tlv(0x02, new byte[] {0}),
+                                                 tlv(0x30, new byte[0]))));
+        assertEquals(-1, TrapPrefilter.findTrapOid(ByteBuffer.wrap(get)));
+
+        // truncated trap
+        byte[] msg = message(1, v2pdu(0xA7));
+        byte[] cut = new byte[msg.length - 4];
+        System.arraycopy(msg, 0, cut, 0, cut.length);
+        assertEquals(-1, TrapPrefilter.findTrapOid(ByteBuffer.wrap(cut)));
+    }
+
+    public void testAcceptBySender() throws Exception
+    {
+        TrapPrefilter filter = prefilter();
+        ByteBuffer trap = ByteBuffer.wrap(message(1, v2pdu(0xA7, CISCO)));
+
+        assertFalse(filter.accept(inet("192.168.1.5"), trap)); // host
+        assertFalse(filter.accept(inet("10.0.112.200"), trap)); // CIDR
+        assertTrue(filter.accept(inet("10.0.113.1"), trap));
+        assertTrue(filter.accept(inet("192.168.1.6"), trap));
+        assertEquals(0, trap.position());
+
+        String render = filter.render();
+        assertTrue(render.startsWith("passed=2 dropped=2\n"));
+        assertTrue(render.contains("host dropped=1\n"));
+        assertTrue(render.contains("lab dropped=1\n"));
+    }
+
+    public void testAcceptByEnterprise() throws Exception
+    {
+        TrapPrefilter filter = prefilter();
+        InetAddress other = inet("172.16.0.1");
+
+        // any sender of ours, v1 or v2, and a sub-tree of ours too
+        assertFalse(filter.accept(other, ByteBuffer.wrap(message(1, v2pdu(0xA7)))));
+        assertFalse(filter.accept(other, ByteBuffer.wrap(message(0, v1pdu(RESOLVITY)))));
+        byte[] sub = concat(RESOLVITY, new byte[] {2, 1});
+        assertFalse(filter.accept(other, ByteBuffer.wrap(message(1, v2pdu(0xA7, sub)))));
+
+        // a prefix of ours is not ours, nor is a malformed message
+        byte[] parent = {0x2B, 6, 1, 4, 1};
+        assertTrue(filter.accept(other, ByteBuffer.wrap(message(1, v2pdu(0xA7, parent)))));
+        assertTrue(filter.accept(other, ByteBuffer.wrap(new byte[] {0x30, 1, 2})));
+
+        // cisco from the branch range, but not from elsewhere
+        ByteBuffer cisco = ByteBuffer.wrap(message(1, v2pdu(0xA7, CISCO)));
+        assertFalse(filter.accept(inet("10.9.4.4"), cisco));
+        assertTrue(filter.accept(other, cisco));
+
+        String render = filter.render();
+        assertTrue(render.startsWith("passed=3 dropped=4\n"));
+        assertTrue(render.contains("vendor dropped=3\n"));
+        assertTrue(render.contains("branch dropped=1\n"));
+        assertFalse(render.contains("body"));
+    }
+
+    public void testRangeZero() throws Exception
+    {
+        AddressRange all = AddressRange.parse("0.0.0.0/0");
+        assertTrue(all.contains(inet("0.0.0.0")));
+        assertTrue(all.contains(inet("255.255.255.255")));
+        assertFalse(all.contains(inet("::1"))); // only the same family
+    }
+
+    public void testRangeHost() throws Exception
+    {
+        AddressRange host = AddressRange.parse("10.0.112.7/32");
+        assertTrue(host.contains(inet("10.0.112.7")));
+        assertFalse(host.contains(inet("10.0.112.6")));
+        assertFalse(host.contains(inet("10.0.112.8")));
+    }
+
+    public void testRangeNotAligned() throws Exception
+    {
+        // host bits in the base are ignored, as for a route
+        AddressRange range = AddressRange.parse("10.0.112.77/24");
+        assertTrue(range.contains(inet("10.0.112.0")));
+        assertTrue(range.contains(inet("10.0.112.255")));
+        assertFalse(range.contains(inet("10.0.113.77")));
+
+        // a prefix inside a byte
+        AddressRange odd = AddressRange.parse("10.0.112.200/27");
+        assertTrue(odd.contains(inet("10.0.112.192")));
+        assertTrue(odd.contains(inet("10.0.112.223")));
+        assertFalse(odd.contains(inet("10.0.112.191")));
+        assertFalse(odd.contains(inet("10.0.112.224")));
+    }
+
+    public void testRangeIpv6() throws Exception
+    {
+        AddressRange range = AddressRange.parse("2001:db8::/32");
+        assertTrue(range.contains(inet("2001:db8::1")));
+        assertTrue(range.contains(inet("2001:db8:ffff:ffff::")));
+        assertFalse(range.contains(inet("2001:db9::1")));
+        assertFalse(range.contains(inet("32.1.13.184"))); // the same leading bytes
+
+        assertTrue(AddressRange.parse("::1/128").contains(inet("::1")));
+        assertTrue(AddressRange.parse("::/0").contains(inet("fe80::1")));
+    }
+
+    public void testRangeBad()
+    {
+        String[] bad = {"10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x", "::/129", "10.0.0.0"};
+        for (String spec : bad)
+        {
+            try
+            {
+                AddressRange.parse(spec);
+                fail(spec);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * @return prefilter of ignore groups by host, CIDR block, enterprise and both, plus
+     *         one which cannot be prefiltered
+     */
+    private static TrapPrefilter prefilter() throws Exception
+    {
+        File file = TrapFixtures.writeProperties("host.sender=192.168.1.5\n",
+            "lab.sender=10.0.112.0/24\n",
+            "vendor.enterprise=1.3.6.1.4.1.29449\n",
+            "branch.sender=10.9.0.0/16\nbranch.enterprise=1.3.6.1.4.1.9\n",
+            "body.sender=172.16.0.1\nbody.find=anything\n");
+        try
+        {
+
+            ReadableProperties props = new ReadableProperties(file.getPath(), ',');
+            List<TrapGroup> ignore = new ArrayList<TrapGroup>();
+            for (String name : new String[] {"host", "lab", "vendor", "branch", "body"})
+            {
+                ignore.add(new TrapGroup(props, name));
+            }
+            TrapPrefilter filter = new TrapPrefilter(ignore);
+            assertFalse(filter.isEmpty());
+            return filter;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static InetAddress inet(String aAddress) throws Exception
+    {
+        return InetAddress.getByName(aAddress);
+    }
+
+    private static void assertOid(byte[] aExpected, byte[] aMessage)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(aMessage);
+        long found = TrapPrefilter.findTrapOid(buf);
+        assertTrue(found > 0);
+
+        int offset = (int) (found >>> 32);
+        int length = (int) found;
+        assertEquals(aExpected.length, length);
+        for (int i = 0; i < length; ++i)
+        {
+            assertEquals(aExpected[i], aMessage[offset + i]);
+        }
+        assertEquals(0, buf.position());
+    }
+
+    private static byte[] v1pdu(byte[] aEnterprise)
+    {
+        return tlv(0xA4, concat(tlv(0x06, aEnterprise),
+                                tlv(0x40, new byte[] {127, 0, 0, 1}),
+                                tlv(0x02, new byte[] {6}),
+                                tlv(0x02, new byte[] {1}),
+                                tlv(0x43, new byte[] {5}),
+                                tlv(0x30, new byte[0])));
+    }
+
+    private static byte[] v2pdu(int aTag)
+    {
+        return v2pdu(aTag, RESOLVITY);
+    }
+
+    private static byte[] v2pdu(int aTag, byte[] aTrapOid)
+    {
+        byte[] upTime = tlv(0x30, concat(tlv(0x06, SYS_UP_TIME), tlv(0x43, new byte[] {5})));
+        byte[] trapOid = tlv(0x30, concat(tlv(0x06, SNMP_TRAP_OID), tlv(0x06, aTrapOid)));
+        return tlv(aTag, concat(tlv(0x02, new byte[] {1}),
+                                tlv(0x02, new byte[] {0}),
+                                tlv(0x02, new byte[] {0}),
+                                tlv(0x30, concat(upTime, trapOid))));
+    }
+
+    private static byte[] message(int aVersion, byte[] aPdu)
+    {
+        return tlv(0x30, concat(tlv(0x02, new byte[] {(byte) aVersion}),
+                                tlv(0x04, "public".getBytes()),
+                                aPdu));
+    }
+
+    private static byte[] tlv(int aTag, byte[] aContent)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(aTag);
+        if (aContent.length < 0x80)
+        {
+            out.write(aContent.length);
+        }
+        else
+        {
+            out.write(0x82);
+            out.write(aContent.length >> 8);
+            out.write(aContent.length & 0xff);
+        }
+        out.write(aContent, 0, aContent.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... aParts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : aParts)
+        {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>TestTrapRecorder</code> checks a capture plays back what was recorded, and that
+ * recording again after a partial record does not corrupt what follows.
+ * @author justin.good
+ */
+public class TestTrapRecorder extends TestCase
+{
+    private File file;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("traps", ".cap");
+        file.delete();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        InetAddress v4 = InetAddress.getByName("10.0.112.9");
+        InetAddress v6 = InetAddress.getByName("::1");
+        byte[] first = new byte[] { 0x30, 0x01, 0x02 };
+        byte[] second = new byte[1500];
+        second[1499] = 7;
+
+        TrapRecorder recorder = new TrapRecorder(file);
+        recorder.record(1000L, v4, 162, first);
+        recorder.close();
+
+        // a second session appends to the same capture
+        recorder = new TrapRecorder(file);
+        recorder.record(2000L, v6, 50000, second);
+        recorder.close();
+
+        TrapRecorder.Playback playback = TrapRecorder.open(file);
+        TrapRecorder.Record record = playback.next();
+        assertEquals(1000L, record.getTime());
+        assertEquals(v4, record.getSender());
+        assertEquals(162, record.getPort());
+        assertTrue(Arrays.equals(first, record.getBytes()));
+
+        record = playback.next();
+        assertEquals(2000L, record.getTime());
+        assertEquals(v6, record.getSender());
+        assertEquals(50000, record.getPort());
+        assertTrue(Arrays.equals(second, record.getBytes()));
+
+        assertNull(playback.next());
+        playback.close();
+    }
+
+    public void testTruncated() throws Exception
+    {
+        TrapRecorder recorder = new TrapRecorder(file);
+        recorder.record(1000L, InetAddress.getByName("10.0.0.1"), 162, new byte[10]);
+        recorder.close();
+
+        // a partial record, as if the catcher died mid write
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0 });
+        out.close();
+
+        TrapRecorder.Playback playback = TrapRecorder.open(file);
+        assertNotNull(playback.next());
+        assertNull(playback.next());
+        playback.close();
+    }
+
+    public void testRecordAfterTruncated() throws Exception
+    {
+        TrapRecorder recorder = new TrapRecorder(file);
+        recorder.record(1000L, InetAddress.getByName("10.0.0.1"), 162, new byte[10]);
+        recorder.close();
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0 });
+        out.close();
+
+        // recording again cuts the partial record, so the new one is read intact
+        recorder = new TrapRecorder(file);
+        recorder.record(2000L, InetAddress.getByName("10.0.0.2"), 162, new byte[] { 5 });
+        recorder.close();
+
+        TrapRecorder.Playback playback = TrapRecorder.open(file);
+        assertEquals(1000L, playback.next().getTime());
+        TrapRecorder.Record record = playback.next();
+        assertEquals(2000L, record.getTime());
+        assertEquals(InetAddress.getByName("10.0.0.2"), record.getSender());
+        assertTrue(Arrays.equals(new byte[] { 5 }, record.getBytes()));
+        assertNull(playback.next());
+        playback.close();
+    }
+
+    public void testNotACaptureNotAppended() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a capture".getBytes());
+        out.close();
+        try
+        {
+            new TrapRecorder(file);
+            fail("expected IOException");
+        }
+        catch (IOException ex)
+        {
+            assertEquals("not a capture".length(), file.length());
+        }
+    }
+
+    public void testNotACapture() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a capture".getBytes());
+        out.close();
+        try
+        {
+            TrapRecorder.open(file);
+            fail("expected IOException");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+    }
+}
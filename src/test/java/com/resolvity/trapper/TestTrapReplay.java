@@ -0,0 +1,122 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+import com.resolvity.utility.file.ReadableProperties;
+
+/**
+ * <code>TestTrapReplay</code> records v2c traps to a capture and replays them through
+ * configurations on a virtual clock.
+ * @author justin.good
+ */
+public class TestTrapReplay extends TestCase
+{
+    private static final long MINUTE = 60000L;
+    private static final long START = 1262304000000L; // 2010-01-01
+
+    private File capture;
+    private File file;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception
+    {
+        capture = File.createTempFile("traps", ".cap");
+        capture.delete();
+
+        // four traps a second apart from one sender
+        InetAddress sender = InetAddress.getByName("10.0.0.1");
+        TrapRecorder recorder = new TrapRecorder(capture);
+        for (int i = 0; i < 4; ++i)
+        {
+            recorder.record(START + i * 1000L, sender, 162, encode("Burst " + i));
+        }
+        recorder.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        capture.delete();
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+
+    public void testConsolidation() throws Exception
+    {
+        List<TrapReplay.Email> emails = new TrapReplay(capture, 0).replay(props(""));
+
+        // three forwarded as they came, the fourth consolidated once the window closed
+        assertEquals(4, emails.size());
+        assertEquals(START + 2000L, emails.get(2).getTime());
+        assertTrue(emails.get(3).getTime() >= START + 15 * MINUTE);
+        assertEquals("[ops@example.com]", emails.get(0).getTo());
+    }
+
+    public void testRateLimited() throws Exception
+    {
+        String limit = "ratelimit.rate=1\nratelimit.burst=2\n";
+        List<TrapReplay.Email> emails = new TrapReplay(capture, 0).replay(props(limit));
+        assertEquals(2, emails.size());
+    }
+
+    public void testEmptyCapture() throws Exception
+    {
+        capture.delete();
+        new TrapRecorder(capture).close();
+        assertTrue(new TrapReplay(capture, 0).replay(props("")).isEmpty());
+    }
+
+    private ReadableProperties props(String aExtra) throws IOException
+    {
+        file = TrapFixtures.writeProperties("accept=burst\n",
+            "burst.find=Burst\nburst.limit=3\nburst.minutes=15\n",
+            "burst.forward.1.address=ops@example.com\n",
+            "burst.forward.1.template=basic.email.txt\n", aExtra);
+        return new ReadableProperties(file.getPath(), ',');
+    }
+
+    /**
+     * @param aBody text of the trap's one varbind
+     * @return v2c trap datagram, community "public"
+     * @throws IOException
+     */
+    private static byte[] encode(String aBody) throws IOException
+    {
+        PDU pdu = new PDU();
+        pdu.setType(PDU.TRAP);
+        pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(0)));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, TestSendTraps.makeOID(100)));
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(1), new OctetString(aBody)));
+
+        Integer32 version = new Integer32(SnmpConstants.version2c);
+        OctetString community = new OctetString("public");
+        int length = version.getBERLength() + community.getBERLength() + pdu.getBERLength();
+        BEROutputStream out = new BEROutputStream(ByteBuffer.allocate(
+            length + BER.getBERLengthOfLength(length) + 1));
+        BER.encodeHeader(out, BER.SEQUENCE, length);
+        version.encodeBER(out);
+        community.encodeBER(out);
+        pdu.encodeBER(out);
+        return out.getBuffer().array();
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * <code>TrapFixtures</code> holds what the classifier tests share: a temporary
+ * configuration, traps with a body and stack, and a Mailer which keeps what it is given.
+ * @author justin.good
+ */
+final class TrapFixtures
+{
+    private TrapFixtures()
+    {
+    }
+
+    /**
+     * @param aText text of the properties, written one after the other
+     * @return temporary properties file, for the caller to delete
+     * @throws IOException
+     */
+    static File writeProperties(String... aText) throws IOException
+    {
+        File file = File.createTempFile("trap", ".properties");
+        FileWriter out = new FileWriter(file);
+        try
+        {
+            for (String text : aText)
+            {
+                out.write(text);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @param aBody body, variable 1
+     * @return V1 trap
+     */
+    static PDU makeTrap(String aBody)
+    {
+        PDU pdu = new PDUv1();
+        pdu.setType(PDU.V1TRAP);
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(1), new OctetString(aBody)));
+        return pdu;
+    }
+
+    /**
+     * @param aBody body, variable 1
+     * @param aStack stack, variable 2
+     * @return V1 trap
+     */
+    static PDU makeTrap(String aBody, String aStack)
+    {
+        PDU pdu = makeTrap(aBody);
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(2), new OctetString(aStack)));
+        return pdu;
+    }
+
+    /**
+     * <code>RecordingMailer</code> keeps the subject, recipients and text of every email,
+     * and the subjects of those sent while holding the lock it watches.
+     */
+    static class RecordingMailer implements Mailer
+    {
+        final List<String> subjects = new ArrayList<String>();
+        final List<String> recipients = new ArrayList<String>();
+        final List<String> sent = new ArrayList<String>(); // subject and recipients
+        final List<String> bodies = new ArrayList<String>();
+        final List<String> locked = new ArrayList<String>();
+        private Object lock;
+
+        /**
+         * @param aLock lock, such as a TrapClassifier, which no email should be sent under
+         */
+        synchronized void watch(Object aLock)
+        {
+            lock = aLock;
+        }
+
+        /** {@inheritDoc} */
+        public synchronized void send(Message aMessage) throws MessagingException
+        {
+            String to = Arrays.toString(aMessage.getAllRecipients());
+            subjects.add(aMessage.getSubject());
+            recipients.add(to);
+            sent.add(aMessage.getSubject() + " " + to);
+            try
+            {
+                bodies.add(String.valueOf(aMessage.getContent()));
+            }
+            catch (IOException ex)
+            {
+                throw new MessagingException(ex.toString());
+            }
+            if (lock != null && Thread.holdsLock(lock))
+            {
+                locked.add(aMessage.getSubject());
+            }
+        }
+
+        /**
+         * @param aAddress recipient
+         * @return true if an email was sent to aAddress alone
+         */
+        synchronized boolean sentTo(String aAddress)
+        {
+            return recipients.contains("[" + aAddress + "]");
+        }
+
+        /**
+         * @param aSent subject, a space and the recipients
+         * @return emails sent with that subject to those recipients
+         */
+        synchronized int count(String aSent)
+        {
+            int n = 0;
+            for (String sent : this.sent)
+            {
+                if (sent.equals(aSent))
+                {
+                    ++n;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Forget what was sent so far
+         */
+        synchronized void clear()
+        {
+            subjects.clear();
+            recipients.clear();
+            sent.clear();
+            bodies.clear();
+            locked.clear();
+        }
+    }
+}
@@ -0,0 +1,467 @@
+// Copyright 2010 Resolvity Inc.
+package com.resolvity.trapper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * <code>TrapLoad</code> drives a TrapCatcher in this process over loopback UDP with a
+ * mix of v1 traps, v2c traps and v2c informs shaped like our timeout, rconnect and
+ * customer_id traps, and counts and times the emails it sends, over SMTP, to an
+ * SmtpSink in this process, so the forwarders' real path (composing, SMTP conversations,
+ * permits and fan-out) is part of what is measured. Every group forwards every trap
+ * (limit=0), so each trap sent should come out as exactly one email, stamped with the
+ * trap's sequence number and send time and timed to when the sink accepted it.
+ * <p>
+ * Each step runs one rate for a number of seconds and reports loss (sent but never
+ * mailed), end to end latency percentiles, and process CPU and heap allocation per trap
+ * (the generator's own thread excluded). Rates double from the starting rate until a
+ * step is unsustainable (loss above 0.1% or p99 above one second), then the highest
+ * sustainable rate is found by bisection:
+ * <pre>
+ * TrapLoad [startRate] [seconds] [v1=1,v2c=1,inform=1]
+ * </pre>
+ * Per trap CPU and allocation need the com.sun.management beans; they show as -1
+ * without them.
+ * @author justin.good
+ */
+public class TrapLoad
+{
+    private static final int TRAP_PORT = 16162;
+    private static final int ALIVE_PORT = 16163;
+    private static final double MAX_LOSS = 0.001;
+    private static final long MAX_P99_MILLIS = 1000;
+    private static final int BISECTIONS = 4;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DRAIN_QUIET_MILLIS = 1000;
+    private static final long DRAIN_MAX_MILLIS = 15000;
+    private static final Pattern STAMP = Pattern.compile("load (\\d+) (\\d+)");
+    private static final OID RESOLVITY = new OID(new int[] {1, 3, 6, 1, 4, 1, 29449});
+    private static final String[] MESSAGES = {
+        "Load ICOMS Account: Get Account Details RapidConnect GetAccountDetails Failed:"
+            + " JavaException: com.resolvity.runtime.rconnect.RapidConnectTimeout",
+        "Get Account Details Failed: com.resolvity.runtime.rconnect.RapidConnectException",
+        "account could not be retrieved by customer ID" };
+
+    private final Random random = new Random();
+    private final StampCounter counter = new StampCounter();
+    private SmtpSink sink;
+    private final int seconds;
+    private final int[] mix; // cumulative weights of v1, v2c and inform
+    private Snmp snmp;
+    private long sequence;
+
+    /**
+     * @param aSeconds length of each step
+     * @param aV1 weight of v1 traps
+     * @param aV2c weight of v2c traps
+     * @param aInform weight of v2c informs
+     */
+    public TrapLoad(int aSeconds, int aV1, int aV2c, int aInform)
+    {
+        seconds = aSeconds;
+        mix = new int[] { aV1, aV1 + aV2c, aV1 + aV2c + aInform };
+    }
+
+    /**
+     * Start the TrapCatcher and our sending session
+     * @throws IOException
+     */
+    public void start() throws IOException
+    {
+        sink = new SmtpSink();
+        sink.setListener(counter);
+
+        File file = File.createTempFile("load", ".properties");
+        file.deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write("address=udp://127.0.0.1:" + TRAP_PORT + "\n");
+        out.write("liveness=" + ALIVE_PORT + "\n");
+        out.write("smtp=" + sink.getAddress() + "\n");
+        out.write("threads=4\nreaders=2\nreceiveBuffer=4194304\n");
+        out.write("accept=timeout,rconnect,customer_id\n");
+        writeGroup(out, "timeout", "RapidConnectTimeout");
+        writeGroup(out, "rconnect", "RapidConnectException");
+        writeGroup(out, "customer_id", "retrieved by customer ID");
+        out.close();
+
+        new TrapCatcher(file.getPath()).start();
+
+        DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping();
+        snmp = new Snmp(transport);
+        transport.listen(); // for inform responses
+    }
+
+    private static void writeGroup(FileWriter aOut, String aName, String aFind)
+        throws IOException
+    {
+        aOut.write(aName + ".find=" + aFind + "\n");
+        aOut.write(aName + ".limit=0\n");
+        aOut.write(aName + ".rename=1.3.6.1.4.1.29449.1=stack,1.3.6.1.4.1.29449.2=sid\n");
+        aOut.write(aName + ".forward.1.address=load@localhost\n");
+        aOut.write(aName + ".forward.1.template=basic.email.txt\n");
+    }
+
+    /**
+     * @param aRate traps per second
+     * @return Step with the results
+     * @throws Exception
+     */
+    public Step run(int aRate) throws Exception
+    {
+        final long total = (long) aRate * seconds;
+        final long first = sequence;
+        counter.reset(first, total);
+
+        final long cpuStart = processCpu();
+        final long allocStart = allocated();
+        final long ownCpuStart = threadCpu();
+        final long ownAllocStart = threadAllocated();
+        final long start = System.nanoTime();
+        final AtomicInteger timeouts = new AtomicInteger();
+
+        for (long i = 0; i < total; ++i)
+        {
+            long due = start + i * 1000000000L / aRate;
+            long wait = due - System.nanoTime();
+            if (wait > NANOS_PER_MILLI)
+            {
+                Thread.sleep(wait / NANOS_PER_MILLI);
+            }
+            send(sequence++, timeouts);
+        }
+        final long sendNanos = System.nanoTime() - start;
+
+        // wait for the last traps to be mailed
+        long lastCount = -1;
+        long quietSince = System.currentTimeMillis();
+        final long drainStart = quietSince;
+        while (System.currentTimeMillis() - drainStart < DRAIN_MAX_MILLIS)
+        {
+            long count = counter.getReceived();
+            long now = System.currentTimeMillis();
+            if (count == total)
+            {
+                break;
+            }
+            if (count != lastCount)
+            {
+                lastCount = count;
+                quietSince = now;
+            }
+            else if (now - quietSince >= DRAIN_QUIET_MILLIS)
+            {
+                break;
+            }
+            Thread.sleep(50);
+        }
+
+        long cpu = processCpu() - cpuStart - (threadCpu() - ownCpuStart);
+        long alloc = allocated() - allocStart - (threadAllocated() - ownAllocStart);
+        return new Step(aRate, total, total * 1000000000.0 / sendNanos,
+                        counter.getReceived(), counter.getLatencies(), timeouts.get(),
+                        (cpuStart < 0) ? -1 : cpu / total,
+                        (allocStart < 0) ? -1 : alloc / total);
+    }
+
+    /**
+     * @param aSequence sequence number of the trap
+     * @param aTimeouts counts informs which were not acknowledged
+     * @throws IOException
+     */
+    private void send(long aSequence, final AtomicInteger aTimeouts) throws IOException
+    {
+        CommunityTarget target = new CommunityTarget();
+        target.setCommunity(new OctetString("public"));
+        target.setAddress(GenericAddress.parse("udp:127.0.0.1/" + TRAP_PORT));
+        target.setRetries(0); // a retry would be a second trap
+        target.setTimeout(2000);
+
+        int kind = random.nextInt(mix[2]);
+        PDU pdu;
+        if (kind < mix[0])
+        {
+            PDUv1 v1 = new PDUv1();
+            v1.setEnterprise(RESOLVITY);
+            v1.setType(PDU.V1TRAP);
+            target.setVersion(SnmpConstants.version1);
+            pdu = v1;
+        }
+        else
+        {
+            pdu = new PDU();
+            pdu.setType((kind < mix[1]) ? PDU.TRAP : PDU.INFORM);
+            target.setVersion(SnmpConstants.version2c);
+        }
+
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(1), new OctetString("load")));
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(2),
+                                    new OctetString(String.valueOf(aSequence % 1000))));
+        pdu.add(new VariableBinding(RESOLVITY,
+            new OctetString(MESSAGES[(int) (aSequence % MESSAGES.length)])));
+        pdu.add(new VariableBinding(TestSendTraps.makeOID(9),
+            new OctetString("load " + aSequence + " " + System.nanoTime())));
+
+        if (pdu.getType() == PDU.INFORM)
+        {
+            snmp.send(pdu, target, null, new ResponseListener()
+            {
+                public void onResponse(ResponseEvent aEvent)
+                {
+                    ((Snmp) aEvent.getSource()).cancel(aEvent.getRequest(), this);
+                    if (aEvent.getResponse() == null)
+                    {
+                        aTimeouts.incrementAndGet();
+                    }
+                }
+            });
+        }
+        else
+        {
+            snmp.send(pdu, target);
+        }
+    }
+
+    private static long processCpu()
+    {
+        Object os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long threadCpu()
+    {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    private static long allocated()
+    {
+        Object threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+            long sum = 0;
+            for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+            {
+                sum += Math.max(0, bytes);
+            }
+            return sum;
+        }
+        return -1;
+    }
+
+    private static long threadAllocated()
+    {
+        Object threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * <code>Step</code> is the result of running one rate.
+     */
+    public static class Step
+    {
+        private final int rate;
+        private final long sent;
+        private final double achieved;
+        private final long received;
+        private final long[] latencies; // sorted, nanoseconds
+        private final int timeouts;
+        private final long cpuPerTrap;
+        private final long bytesPerTrap;
+
+        Step(int aRate, long aSent, double aAchieved, long aReceived, long[] aLatencies,
+             int aTimeouts, long aCpuPerTrap, long aBytesPerTrap)
+        {
+            rate = aRate;
+            sent = aSent;
+            achieved = aAchieved;
+            received = aReceived;
+            latencies = aLatencies;
+            timeouts = aTimeouts;
+            cpuPerTrap = aCpuPerTrap;
+            bytesPerTrap = aBytesPerTrap;
+        }
+
+        /**
+         * @return fraction of sent traps which were never mailed
+         */
+        public double getLoss()
+        {
+            return (sent == 0) ? 0 : (sent - received) / (double) sent;
+        }
+
+        /**
+         * @param aPercent percentile, 0 to 100
+         * @return latency in milliseconds, or -1 if nothing was received
+         */
+        public double getLatency(double aPercent)
+        {
+            if (latencies.length == 0)
+            {
+                return -1;
+            }
+            int index = (int) Math.ceil(aPercent / 100 * latencies.length) - 1;
+            index = Math.max(0, Math.min(latencies.length - 1, index));
+            return latencies[index] / (double) NANOS_PER_MILLI;
+        }
+
+        /**
+         * @return true if loss and p99 latency are within bounds
+         */
+        public boolean isSustainable()
+        {
+            return getLoss() <= MAX_LOSS && getLatency(99) <= MAX_P99_MILLIS
+                && getLatency(99) >= 0;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString()
+        {
+            return String.format("rate %d/s (achieved %.0f): sent %d, mailed %d, "
+                + "loss %.3f%%, inform timeouts %d, latency ms p50 %.1f p90 %.1f "
+                + "p99 %.1f max %.1f, cpu %dus/trap, alloc %dB/trap%s", rate, achieved,
+                sent, received, getLoss() * 100, timeouts, getLatency(50), getLatency(90),
+                getLatency(99), getLatency(100), cpuPerTrap / 1000, bytesPerTrap,
+                isSustainable() ? "" : " UNSUSTAINABLE");
+        }
+    }
+
+    /**
+     * <code>StampCounter</code> reads the stamp of each email the sink accepts to count it
+     * and measure its latency.
+     */
+    private static class StampCounter implements SmtpSink.Listener
+    {
+        private long first;
+        private long[] latencies = new long[0];
+        private int count;
+
+        synchronized void reset(long aFirst, long aTotal)
+        {
+            first = aFirst;
+            latencies = new long[(int) aTotal];
+            count = 0;
+        }
+
+        synchronized long getReceived()
+        {
+            return count;
+        }
+
+        synchronized long[] getLatencies()
+        {
+            long[] sorted = new long[count];
+            System.arraycopy(latencies, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /** {@inheritDoc} */
+        public void accepted(SmtpSink.Mail aMail)
+        {
+            // undo quoted-printable soft line breaks, which may split the stamp
+            Matcher m = STAMP.matcher(aMail.getData().replace("=\n", ""));
+            if (!m.find())
+            {
+                return;
+            }
+            long seq = Long.parseLong(m.group(1));
+            long sent = Long.parseLong(m.group(2));
+            synchronized (this)
+            {
+                // late arrivals from an earlier step are not counted in this one
+                if (seq >= first && count < latencies.length)
+                {
+                    latencies[count++] = aMail.getAccepted() - sent;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int rate = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int[] weights = { 1, 1, 1 };
+        if (args.length > 2)
+        {
+            String[] kinds = { "v1", "v2c", "inform" };
+            Arrays.fill(weights, 0);
+            for (String part : args[2].split(","))
+            {
+                String[] pair = part.split("=");
+                weights[Arrays.asList(kinds).indexOf(pair[0].trim())] =
+                    Integer.parseInt(pair[1].trim());
+            }
+        }
+
+        TrapLoad load = new TrapLoad(seconds, weights[0], weights[1], weights[2]);
+        load.start();
+        load.run(Math.max(1, rate / 10)); // warm up
+        System.out.println("warmed up");
+
+        // double until a step fails, then bisect between the last good and first bad
+        int good = 0;
+        int bad = 0;
+        while (bad == 0)
+        {
+            Step step = load.run(rate);
+            System.out.println(step);
+            if (step.isSustainable())
+            {
+                good = rate;
+                rate *= 2;
+            }
+            else
+            {
+                bad = rate;
+            }
+        }
+        for (int i = 0; i < BISECTIONS && bad - good > 1; ++i)
+        {
+            int mid = (good + bad) / 2;
+            Step step = load.run(mid);
+            System.out.println(step);
+            if (step.isSustainable())
+            {
+                good = mid;
+            }
+            else
+            {
+                bad = mid;
+            }
+        }
+        System.out.println("max sustainable rate: " + good + "/s");
+        System.exit(0);
+    }
+}